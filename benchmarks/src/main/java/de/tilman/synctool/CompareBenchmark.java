@@ -0,0 +1,97 @@
+/*
+ * Copyright 2012 Tilman Liero
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.tilman.synctool;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * The comparison of two equal files, once by their attributes only as done
+ * without hashing and once by their contents with the supported hash
+ * algorithms.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CompareBenchmark {
+
+	@Param({ "4096", "1048576", "67108864" })
+	public int fileSize;
+
+	private File directory;
+	private File src;
+	private File dest;
+	private FileComparator md5;
+	private FileComparator xxHash64;
+
+	@Setup
+	public void setUp() throws Exception {
+		directory = SyntheticTree.createTempDirectory("synctool-compare");
+		src = SyntheticTree.createFile(new File(directory, "src"), fileSize);
+		dest = SyntheticTree.createFile(new File(directory, "dest"), fileSize);
+		dest.setLastModified(src.lastModified());
+		md5 = new FileComparator("MD5");
+		xxHash64 = new FileComparator("XXHASH64");
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(directory);
+	}
+
+	@Benchmark
+	public boolean attributes(ThroughputCounters counters) throws Exception {
+		FileEntry srcFile = FileEntry.read(src);
+		FileEntry destFile = FileEntry.read(dest);
+		counters.files++;
+		return srcFile.lastModified() == destFile.lastModified() && srcFile.length() == destFile.length();
+	}
+
+	@Benchmark
+	public String hashMD5(ThroughputCounters counters) throws Exception {
+		counters.files++;
+		counters.bytes += 2L * fileSize;
+		return md5.compare(src, dest);
+	}
+
+	@Benchmark
+	public String hashXXHash64(ThroughputCounters counters) throws Exception {
+		counters.files++;
+		counters.bytes += 2L * fileSize;
+		return xxHash64.compare(src, dest);
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2012 Tilman Liero
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.tilman.synctool;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * The copy engine compared with the copy of Commons IO that was used before,
+ * and the in-place update of an unchanged file, which only reads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CopyBenchmark {
+
+	@Param({ "4096", "1048576", "67108864" })
+	public int fileSize;
+
+	private File directory;
+	private File src;
+	private File destDir;
+	private final FileCopier copier = new FileCopier();
+
+	@Setup
+	public void setUp() throws Exception {
+		directory = SyntheticTree.createTempDirectory("synctool-copy");
+		File srcDir = new File(directory, "src");
+		srcDir.mkdir();
+		destDir = new File(directory, "dest");
+		destDir.mkdir();
+		src = SyntheticTree.createFile(new File(srcDir, "file"), fileSize);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(directory);
+	}
+
+	@Benchmark
+	public void copyFile(ThroughputCounters counters) throws Exception {
+		copier.copyFileToDirectory(src, destDir);
+		counters.files++;
+		counters.bytes += fileSize;
+	}
+
+	@Benchmark
+	public void copyFileCommonsIO(ThroughputCounters counters) throws Exception {
+		FileUtils.copyFileToDirectory(src, destDir);
+		counters.files++;
+		counters.bytes += fileSize;
+	}
+
+	@Benchmark
+	public long updateUnchangedFile(ThroughputCounters counters) throws Exception {
+		if (!new File(destDir, src.getName()).exists())
+			copier.copyFileToDirectory(src, destDir);
+		counters.files++;
+		counters.bytes += fileSize;
+		return copier.updateFileInDirectory(src, destDir);
+	}
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2012 Tilman Liero
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.tilman.synctool;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Looks up history entries in the database, in the in-memory snapshot and in
+ * the history file. The history is filled by synchronizing a tree of the
+ * SMALL shape.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class HistoryBenchmark {
+
+	private File directory;
+	private Connection connection;
+	private int sourceId;
+	private PreparedStatement selectFileSql;
+	private HistorySnapshot snapshot;
+	private File historyFile;
+	private FileHistoryStore fileStore;
+	private String[] keys;
+	private int next;
+
+	@Setup
+	public void setUp() throws Exception {
+		BasicConfigurator.configure();
+		Logger.getRootLogger().setLevel(Level.WARN);
+
+		directory = SyntheticTree.createTempDirectory("synctool-history");
+		File src = new File(directory, "src");
+		File dest = new File(directory, "dest");
+		File db = new File(directory, "db");
+		SyntheticTree.create(src, SyntheticTree.Shape.SMALL);
+		dest.mkdir();
+		String[] arguments = { "-s", "-f", db.getPath(), src.getPath(), dest.getPath() };
+		new SyncTool(SyncTool.createParser().parse(arguments)).sync(src.getPath(), dest.getPath());
+
+		connection = DriverManager.getConnection("jdbc:h2:file:" + db, "sa", "");
+		Statement statement = connection.createStatement();
+		ResultSet resultSet = statement.executeQuery("SELECT id FROM Source");
+		resultSet.next();
+		sourceId = resultSet.getInt(1);
+		List<String> paths = new ArrayList<String>();
+		resultSet = statement.executeQuery("SELECT path FROM File WHERE idSource=" + sourceId);
+		while (resultSet.next()) {
+			paths.add(resultSet.getString(1));
+		}
+		statement.close();
+		keys = paths.toArray(new String[paths.size()]);
+
+		// the same query as used by SyncTool
+		selectFileSql = connection.prepareStatement("SELECT * FROM File WHERE path=? AND idSource=" + sourceId + " LIMIT 1");
+		snapshot = HistorySnapshot.load(connection, sourceId);
+
+		// the same entries in a history file
+		historyFile = new File(directory, "history");
+		FileHistoryStore store = new FileHistoryStore(historyFile, directory.getPath(), 1000, 5000, false);
+		for (String key : keys) {
+			store.add(key, 0L, 0L);
+		}
+		store.close();
+		fileStore = new FileHistoryStore(historyFile, directory.getPath(), 1000, 5000, true);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		fileStore.close();
+		selectFileSql.close();
+		connection.close();
+		FileUtils.deleteDirectory(directory);
+	}
+
+	private String nextKey() {
+		String key = keys[next];
+		next = (next + 1) % keys.length;
+		return key;
+	}
+
+	@Benchmark
+	public boolean queryDatabase() throws Exception {
+		selectFileSql.setString(1, nextKey());
+		ResultSet resultSet = selectFileSql.executeQuery();
+		try {
+			return resultSet.next();
+		} finally {
+			resultSet.close();
+		}
+	}
+
+	@Benchmark
+	public boolean querySnapshot() {
+		return snapshot.contains(nextKey());
+	}
+
+	@Benchmark
+	public boolean queryFile() {
+		return fileStore.contains(nextKey());
+	}
+
+	@Benchmark
+	public HistorySnapshot loadSnapshot(ThroughputCounters counters) throws Exception {
+		counters.files += keys.length;
+		return HistorySnapshot.load(connection, sourceId);
+	}
+
+	/**
+	 * Opening a history file only maps it, so its cost does not depend on the
+	 * number of entries.
+	 */
+	@Benchmark
+	public FileHistoryStore openFile(ThroughputCounters counters) throws Exception {
+		counters.files += keys.length;
+		FileHistoryStore store = new FileHistoryStore(historyFile, directory.getPath(), 1000, 5000, true);
+		store.close();
+		return store;
+	}
+}
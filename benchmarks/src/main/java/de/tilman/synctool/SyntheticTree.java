@@ -0,0 +1,102 @@
+/*
+ * Copyright 2012 Tilman Liero
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.tilman.synctool;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+
+
+/**
+ * Generates directory trees of different shapes for the benchmarks. The
+ * contents are pseudo-random but reproducible.
+ */
+class SyntheticTree {
+
+	enum Shape {
+		/** a single directory with many small files */
+		WIDE(1, 20000, 100, false),
+		/** a chain of nested directories */
+		DEEP(200, 50, 100, true),
+		/** many directories with small files */
+		SMALL(100, 200, 4096, false),
+		/** a few huge files */
+		HUGE(1, 4, 64 * 1024 * 1024, false);
+
+		final int directories;
+		final int filesPerDirectory;
+		final int fileSize;
+		final boolean nested;
+
+		Shape(int directories, int filesPerDirectory, int fileSize, boolean nested) {
+			this.directories = directories;
+			this.filesPerDirectory = filesPerDirectory;
+			this.fileSize = fileSize;
+			this.nested = nested;
+		}
+
+		long files() {
+			return (long) directories * filesPerDirectory;
+		}
+
+		long bytes() {
+			return files() * fileSize;
+		}
+	}
+
+	/**
+	 * Creates a tree in an empty directory.
+	 */
+	static void create(File root, Shape shape) throws IOException {
+		Random random = new Random(42);
+		byte[] data = new byte[shape.fileSize];
+		File directory = root;
+		for (int d = 0; d < shape.directories; d++) {
+			File parent = shape.nested ? directory : root;
+			directory = new File(parent, "dir" + d);
+			directory.mkdirs();
+			for (int f = 0; f < shape.filesPerDirectory; f++) {
+				random.nextBytes(data);
+				FileUtils.writeByteArrayToFile(new File(directory, "file" + f), data);
+			}
+		}
+	}
+
+	/**
+	 * Creates a file of the given size.
+	 */
+	static File createFile(File file, int size) throws IOException {
+		byte[] data = new byte[size];
+		new Random(42).nextBytes(data);
+		FileUtils.writeByteArrayToFile(file, data);
+		return file;
+	}
+
+	/**
+	 * Creates an empty temporary directory.
+	 */
+	static File createTempDirectory(String prefix) throws IOException {
+		File directory = File.createTempFile(prefix, "");
+		directory.delete();
+		directory.mkdir();
+		return directory;
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2012 Tilman Liero
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.tilman.synctool;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.martiansoftware.jsap.JSAPResult;
+
+
+/**
+ * A complete run over two trees that are already synchronized: traversal,
+ * history lookups and comparison of the file attributes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class TraversalBenchmark {
+
+	@Param({ "WIDE", "DEEP", "SMALL", "HUGE" })
+	public String shape;
+
+	private SyntheticTree.Shape treeShape;
+
+	@Param({ "", "--merge-walk", "--threads 4", "--history-store file" })
+	public String options;
+
+	private File directory;
+	private JSAPResult config;
+
+	@Setup
+	public void setUp() throws Exception {
+		BasicConfigurator.configure();
+		Logger.getRootLogger().setLevel(Level.WARN);
+
+		treeShape = SyntheticTree.Shape.valueOf(shape);
+		directory = SyntheticTree.createTempDirectory("synctool-traversal");
+		File src = new File(directory, "src");
+		File dest = new File(directory, "dest");
+		SyntheticTree.create(src, treeShape);
+		dest.mkdir();
+
+		String arguments = "-s -f " + new File(directory, "db") + " " + options + " " + src + " " + dest;
+		config = SyncTool.createParser().parse(arguments.trim().split(" +"));
+
+		// the first run copies the tree
+		sync();
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(directory);
+	}
+
+	private void sync() {
+		new SyncTool(config).sync(config.getString("source path"), config.getString("destination path"));
+	}
+
+	@Benchmark
+	public void syncUnchanged(ThroughputCounters counters) {
+		sync();
+		counters.files += treeShape.files();
+	}
+}
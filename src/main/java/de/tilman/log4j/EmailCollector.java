@@ -1,8 +1,9 @@
 package de.tilman.log4j;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.LinkedList;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
 import java.util.Properties;
 
 import javax.mail.Message;
@@ -13,37 +14,86 @@ import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 
 import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.apache.log4j.spi.LoggingEvent;
 
+/**
+ * Collects log messages and sends them by e-mail when closed. The first lines
+ * of a run and the most recent lines are kept in preallocated buffers that
+ * only hold the time stamps and messages of the events; the lines are
+ * formatted when the report is sent. Lines in between are only counted, by
+ * level and by the operations set with {@link #setOperations(String...)}.
+ */
 public class EmailCollector extends AppenderSkeleton {
 	
 	private final static Logger log = Logger.getLogger(EmailCollector.class);
 	
+	private final static DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss,SSS").withZone(
+			ZoneId.systemDefault());
+	
+	/**
+	 * The first lines of the run
+	 */
+	private final long[] headTimes;
+	private final String[] headMessages;
+	private int headCount;
+	
 	/**
-	 * Maximum number of lines to collect
+	 * The most recent lines, used as a ring buffer
 	 */
-	private int bufferSize;
+	private final long[] tailTimes;
+	private final String[] tailMessages;
+	private int tailNext;
+	private int tailCount;
+	
+	private long total;
+	private long warnings;
+	private long errors;
+	
+	private String[] operations = new String[0];
+	private long[] operationCounts = new long[0];
 	
-	private LinkedList<String> lineBuffer;
+	private List<String> summary;
 	
 	private String smtpUser;
 	private String smtpPassword;
 	private String emailRecipient;
 	private String emailSubject;
 	
-	private SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss,SSS");
-	
-	public EmailCollector(int bufferSize, String smtpUser, String smtpPassword, String emailRecipient, String emailSubject) {
+	/**
+	 * @param headSize the number of lines kept from the start of the run
+	 * @param bufferSize the number of most recent lines kept
+	 */
+	public EmailCollector(int headSize, int bufferSize, String smtpUser, String smtpPassword, String emailRecipient, String emailSubject) {
 		this.setName("EmailCollector");
-		this.bufferSize = bufferSize;
-		lineBuffer = new LinkedList<String>();
+		headTimes = new long[headSize];
+		headMessages = new String[headSize];
+		tailTimes = new long[bufferSize];
+		tailMessages = new String[bufferSize];
 		this.smtpUser = smtpUser;
 		this.smtpPassword = smtpPassword;
 		this.emailRecipient = emailRecipient;
 		this.emailSubject = emailSubject;
 	}
 
+	/**
+	 * Sets lines to be put at the top of the report, before the collected
+	 * messages.
+	 */
+	public void setSummary(List<String> summary) {
+		this.summary = summary;
+	}
+
+	/**
+	 * Sets the operations counted for the report. A message belongs to an
+	 * operation if it starts with the operation's name followed by a blank.
+	 */
+	public synchronized void setOperations(String... operations) {
+		this.operations = operations.clone();
+		operationCounts = new long[operations.length];
+	}
+
 	/**
 	 * Close the EmailCollector and send collected messages.
 	 * 
@@ -69,13 +119,7 @@ public class EmailCollector extends AppenderSkeleton {
 			message.addRecipient(Message.RecipientType.TO, new InternetAddress(emailRecipient));
 			message.setSubject(emailSubject);
 			
-			StringBuffer sb = new StringBuffer();
-			while (lineBuffer.size() > 0) {
-				sb.append(lineBuffer.poll());
-				sb.append("\n");
-			}
-			
-			message.setText(sb.toString());
+			message.setText(report());
 			Transport transport = session.getTransport("smtp");
 			transport.connect(host, smtpUser, smtpPassword);
 			transport.sendMessage(message, message.getAllRecipients());
@@ -87,17 +131,85 @@ public class EmailCollector extends AppenderSkeleton {
 		this.closed = true;
 	}
 
+	/**
+	 * @return the text of the report
+	 */
+	synchronized String report() {
+		StringBuilder sb = new StringBuilder();
+		if (summary != null) {
+			for (String line : summary) {
+				sb.append(line);
+				sb.append("\n");
+			}
+			sb.append("\n");
+		}
+		
+		sb.append("Messages: ").append(total);
+		sb.append(", warnings: ").append(warnings);
+		sb.append(", errors: ").append(errors).append("\n");
+		for (int i = 0; i < operations.length; i++) {
+			sb.append(operations[i]).append(": ").append(operationCounts[i]).append("\n");
+		}
+		sb.append("\n");
+		
+		for (int i = 0; i < headCount; i++) {
+			appendLine(sb, headTimes[i], headMessages[i]);
+		}
+		long omitted = total - headCount - tailCount;
+		if (omitted > 0)
+			sb.append("[").append(omitted).append(" lines omitted]\n");
+		int first = tailCount < tailMessages.length ? 0 : tailNext;
+		for (int i = 0; i < tailCount; i++) {
+			int index = (first + i) % tailMessages.length;
+			appendLine(sb, tailTimes[index], tailMessages[index]);
+		}
+		return sb.toString();
+	}
+	
+	private static void appendLine(StringBuilder sb, long time, String message) {
+		FORMATTER.formatTo(Instant.ofEpochMilli(time), sb);
+		sb.append(" - ").append(message).append("\n");
+	}
+
+	private static boolean isOperation(String message, String operation) {
+		return message != null && message.length() > operation.length() && message.startsWith(operation)
+				&& message.charAt(operation.length()) == ' ';
+	}
+
 	@Override
 	public boolean requiresLayout() {
 		return false;
 	}
 
+	/**
+	 * Stores the event. Called by {@link AppenderSkeleton#doAppend(LoggingEvent)}
+	 * while holding the lock on the appender.
+	 */
 	@Override
 	protected void append(LoggingEvent event) {
-		if (lineBuffer.size() >= bufferSize) {
-			lineBuffer.removeFirst();
+		String message = event.getRenderedMessage();
+		total++;
+		if (event.getLevel().isGreaterOrEqual(Level.ERROR))
+			errors++;
+		else if (event.getLevel().isGreaterOrEqual(Level.WARN))
+			warnings++;
+		for (int i = 0; i < operations.length; i++) {
+			if (isOperation(message, operations[i])) {
+				operationCounts[i]++;
+				break;
+			}
+		}
+		
+		if (headCount < headMessages.length) {
+			headTimes[headCount] = event.getTimeStamp();
+			headMessages[headCount++] = message;
+		} else if (tailMessages.length > 0) {
+			tailTimes[tailNext] = event.getTimeStamp();
+			tailMessages[tailNext] = message;
+			tailNext = (tailNext + 1) % tailMessages.length;
+			if (tailCount < tailMessages.length)
+				tailCount++;
 		}
-		lineBuffer.add(formatter.format(new Date(event.getTimeStamp())) + " - " + event.getRenderedMessage());
 	}
 
 }
@@ -18,9 +18,17 @@
 
 package de.tilman.log4j;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.apache.log4j.AppenderSkeleton;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PatternLayout;
+import org.apache.log4j.spi.ErrorCode;
 import org.apache.log4j.spi.LoggingEvent;
 import org.jivesoftware.smack.Chat;
 import org.jivesoftware.smack.ConnectionConfiguration;
@@ -33,6 +41,13 @@ import org.jivesoftware.smack.packet.Message;
 
 /**
  * A simple log4j appender that connects the logger to an XMPP recipient.  
+ * <p>
+ * Logging events are only put into a bounded buffer, so logging never waits
+ * for the network. A background thread sends the buffered lines, combining
+ * the lines of one interval, but at most a fixed number of lines, into one
+ * message. If the buffer is full, further lines are dropped and the number
+ * of dropped lines is reported with the next message. Closing the appender
+ * sends all remaining lines.
  * 
  * @author Tilman Liero
  */
@@ -40,20 +55,46 @@ public class JabberAppender extends AppenderSkeleton {
 	
 	private final static Logger log = Logger.getLogger(JabberAppender.class);
 	
+	final static int DEFAULT_BUFFER_SIZE = 1000;
+	final static int DEFAULT_LINES_PER_MESSAGE = 50;
+	final static long DEFAULT_INTERVAL = 2000;
+	
+	/**
+	 * Maximum time in milliseconds to wait for the remaining lines being sent
+	 * when the appender is closed
+	 */
+	private final static long CLOSE_TIMEOUT = 30000;
+	
+	/**
+	 * Put into the buffer by {@link #close()} to stop the sender thread
+	 */
+	private final static String END = new String("END");
+	
 	XMPPConnection connection;
 	String recipient;
 	Chat chat;
 	
+	private final BlockingQueue<String> buffer;
+	private final int linesPerMessage;
+	private final long interval;
+	private final AtomicInteger dropped = new AtomicInteger();
+	private final Thread sender;
+	
 	public JabberAppender(String recipient, String server, String user, String password) throws XMPPException {
-		this.setLayout(new PatternLayout("%m%n"));
+		this(DEFAULT_BUFFER_SIZE, DEFAULT_LINES_PER_MESSAGE, DEFAULT_INTERVAL);
 		
 		log.info("Connecting to " + server);
-		ConnectionConfiguration jabberConfig = new ConnectionConfiguration(server);
-		jabberConfig.setSendPresence(false);
-		jabberConfig.setRosterLoadedAtLogin(false);
-		connection = new XMPPConnection(jabberConfig);
-		connection.connect();
-		connection.login(user, password);
+		try {
+			ConnectionConfiguration jabberConfig = new ConnectionConfiguration(server);
+			jabberConfig.setSendPresence(false);
+			jabberConfig.setRosterLoadedAtLogin(false);
+			connection = new XMPPConnection(jabberConfig);
+			connection.connect();
+			connection.login(user, password);
+		} catch (XMPPException xe) {
+			buffer.offer(END);
+			throw xe;
+		}
 
 		chat = connection.getChatManager().createChat(recipient, new MessageListener() {
 			@Override
@@ -63,15 +104,102 @@ public class JabberAppender extends AppenderSkeleton {
 		});
 	}
 
+	/**
+	 * Creates an appender without a connection, for subclasses overriding
+	 * {@link #sendChat(String)}.
+	 * 
+	 * @param bufferSize the maximum number of lines waiting to be sent
+	 * @param linesPerMessage the maximum number of lines combined into one
+	 *        message
+	 * @param interval the time in milliseconds lines are collected for one
+	 *        message
+	 */
+	JabberAppender(int bufferSize, int linesPerMessage, long interval) {
+		this.setLayout(new PatternLayout("%m%n"));
+		this.buffer = new ArrayBlockingQueue<String>(bufferSize);
+		this.linesPerMessage = linesPerMessage;
+		this.interval = interval;
+		
+		sender = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				sendBufferedLines();
+			}
+		}, "JabberAppender");
+		sender.setDaemon(true);
+		sender.start();
+	}
+
 	@Override
 	protected void append(LoggingEvent event) {
-		sendChat(layout.format(event));
+		if (!buffer.offer(layout.format(event)))
+			dropped.incrementAndGet();
+	}
+
+	/**
+	 * Sends the buffered lines until {@link #END} is taken from the buffer.
+	 */
+	private void sendBufferedLines() {
+		List<String> lines = new ArrayList<String>(linesPerMessage);
+		boolean end = false;
+		try {
+			while (!end) {
+				String line = buffer.take();
+				long deadline = System.currentTimeMillis() + interval;
+				// collect the lines of one interval
+				while (line != END) {
+					lines.add(line);
+					if (lines.size() >= linesPerMessage)
+						break;
+					long wait = deadline - System.currentTimeMillis();
+					line = wait > 0 ? buffer.poll(wait, TimeUnit.MILLISECONDS) : buffer.poll();
+					if (line == null)
+						break;
+				}
+				end = line == END;
+				send(lines);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Sends the given lines as one message, together with the number of lines
+	 * dropped since the last message.
+	 */
+	private void send(List<String> lines) {
+		StringBuilder message = new StringBuilder();
+		for (String line : lines) {
+			message.append(line);
+		}
+		lines.clear();
+		int count = dropped.getAndSet(0);
+		if (count > 0)
+			message.append("[" + count + " lines dropped]");
+		// remove the line break of the last line
+		int length = message.length();
+		while (length > 0 && Character.isWhitespace(message.charAt(length - 1))) {
+			length--;
+		}
+		if (length > 0)
+			sendChat(message.substring(0, length));
 	}
 
 	@Override
 	public void close() {
+		if (closed)
+			return;
 		log.info("Closing XMPP connection");
-		connection.disconnect();
+		closed = true;
+		try {
+			buffer.put(END);
+			sender.join(CLOSE_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (connection != null)
+			connection.disconnect();
 	}
 
 	@Override
@@ -83,7 +211,8 @@ public class JabberAppender extends AppenderSkeleton {
 		try {
 			chat.sendMessage(message);
 		} catch (XMPPException xe) {
-			log.error(xe.getMessage(), xe);
+			// not logged, as the error message would be sent again
+			errorHandler.error(xe.getMessage(), xe, ErrorCode.WRITE_FAILURE);
 		}
 	}
 
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2012 Tilman Liero
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.tilman.synctool;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+
+
+/**
+ * The progress of an interrupted run, read from the checkpoint journal in the
+ * database. The journal holds the directory pairs whose contents have been
+ * synchronized completely and the copies and deletions that have been
+ * started but not finished. It is written through the {@link HistoryWriter} during every run
+ * and cleared once a run over the whole trees has finished, so a run that
+ * finds a journal resumes the previous one.
+ * <p>
+ * Completed directory pairs are skipped like unchanged directories of an
+ * incremental run, see {@link DirectoryIndex}. A directory pair is only
+ * recorded once its subdirectories have been completed, so the
+ * subdirectories of a completed pair are found among the completed pairs.
+ * Incremental runs do not record directories here, as the records of the
+ * directory index serve the same purpose. Interrupted copies matter
+ * because the history of a new file is written before the file is copied: a
+ * file that exists on one side only would otherwise be taken for a deletion
+ * on the other side. Interrupted deletions matter the other way round: the
+ * history of a deleted file is removed before the file is deleted, possibly
+ * only at the end of the pass, and the file would otherwise be copied back.
+ */
+class Checkpoint {
+
+	private static class Copy {
+		Long size;
+		long mtime;
+		long copied;
+	}
+
+	private final DirectoryIndex directories;
+	private final HashMap<String, Copy> copies = new HashMap<String, Copy>();
+	private final HashMap<String, Copy> deletions = new HashMap<String, Copy>();
+
+	private Checkpoint(DirectoryIndex directories) {
+		this.directories = directories;
+	}
+
+	/**
+	 * Loads the checkpoint journal of a source directory.
+	 *
+	 * @param connection the database connection
+	 * @param sourceId the id of the source directory
+	 * @return the checkpoint
+	 */
+	static Checkpoint load(Connection connection, int sourceId) throws SQLException {
+		Checkpoint checkpoint = new Checkpoint(DirectoryIndex.load(connection, "CheckpointDirectory", sourceId));
+		checkpoint.directories.addRecordedSubdirectories();
+		PreparedStatement selectSql = connection.prepareStatement("SELECT path, size, mtime, copied FROM CheckpointCopy WHERE idSource=?");
+		try {
+			selectSql.setInt(1, sourceId);
+			ResultSet resultSet = selectSql.executeQuery();
+			while (resultSet.next()) {
+				Copy copy = new Copy();
+				copy.size = resultSet.getLong(2);
+				if (resultSet.wasNull())
+					copy.size = null;
+				copy.mtime = resultSet.getLong(3);
+				copy.copied = resultSet.getLong(4);
+				checkpoint.copies.put(resultSet.getString(1), copy);
+			}
+		} finally {
+			selectSql.close();
+		}
+		selectSql = connection.prepareStatement("SELECT path, size, mtime FROM CheckpointDeletion WHERE idSource=?");
+		try {
+			selectSql.setInt(1, sourceId);
+			ResultSet resultSet = selectSql.executeQuery();
+			while (resultSet.next()) {
+				Copy deletion = new Copy();
+				deletion.size = resultSet.getLong(2);
+				if (resultSet.wasNull())
+					deletion.size = null;
+				deletion.mtime = resultSet.getLong(3);
+				checkpoint.deletions.put(resultSet.getString(1), deletion);
+			}
+		} finally {
+			selectSql.close();
+		}
+		return checkpoint;
+	}
+
+	/**
+	 * @return true if the journal does not hold any progress
+	 */
+	boolean isEmpty() {
+		return directories.size() == 0 && copies.isEmpty() && deletions.isEmpty();
+	}
+
+	/**
+	 * @return the number of completed directory pairs
+	 */
+	int getCompletedDirectories() {
+		return directories.size();
+	}
+
+	/**
+	 * @return the number of interrupted copies
+	 */
+	int getInterruptedCopies() {
+		return copies.size();
+	}
+
+	/**
+	 * @return the number of interrupted deletions
+	 */
+	int getInterruptedDeletions() {
+		return deletions.size();
+	}
+
+	/**
+	 * Forgets the progress of the interrupted run once it has been resumed
+	 * completely.
+	 */
+	void clear() {
+		directories.clear();
+		copies.clear();
+		deletions.clear();
+	}
+
+	/**
+	 * Returns the subdirectory pairs of a directory pair that has been
+	 * completed by the interrupted run and not changed since.
+	 *
+	 * @return the pairs of subdirectories or null, if the directory pair
+	 *         still has to be synchronized
+	 */
+	List<File[]> getCompletedSubdirectories(String path, File srcDir, File destDir) {
+		return directories.getUnchangedSubdirectories(path, srcDir, destDir);
+	}
+
+	/**
+	 * Checks whether the copy of a file or directory has been interrupted.
+	 */
+	boolean isInterruptedCopy(String path) {
+		return copies.containsKey(path);
+	}
+
+	/**
+	 * Checks whether the temporary file or directory of an interrupted copy
+	 * holds anything worth resuming from.
+	 */
+	boolean isResumable(String path) {
+		Copy copy = copies.get(path);
+		return copy != null && (copy.size == null || copy.copied > 0);
+	}
+
+	/**
+	 * Returns the position from which an interrupted copy of a file can be
+	 * resumed.
+	 *
+	 * @param path the history key of the file
+	 * @param file the file about to be copied
+	 * @return the last position reported by the interrupted copy or 0, if
+	 *         there is none or the file has changed since
+	 */
+	long getCopied(String path, FileEntry file) {
+		Copy copy = copies.get(path);
+		if (copy == null || copy.size == null || file.isDirectory())
+			return 0;
+		if (copy.size != file.length() || copy.mtime != file.lastModified())
+			return 0;
+		return copy.copied;
+	}
+
+	/**
+	 * Checks whether the deletion of a file or directory has been
+	 * interrupted. A file must not have changed since; a directory may have
+	 * lost some of its entries already.
+	 */
+	boolean isInterruptedDeletion(String path, FileEntry file) {
+		Copy deletion = deletions.get(path);
+		if (deletion == null || (deletion.size == null) != file.isDirectory())
+			return false;
+		return file.isDirectory() || deletion.size == file.length() && deletion.mtime == file.lastModified();
+	}
+}
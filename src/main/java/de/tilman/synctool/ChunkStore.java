@@ -0,0 +1,944 @@
+/*
+ * Copyright 2012 Tilman Liero
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package de.tilman.synctool;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+
+/**
+ * Stores the files of the destination as chunks, so data contained in
+ * several files or destinations is stored only once. Every file is split
+ * into chunks at positions that depend on the content only, using a gear
+ * hash, so inserting data into a file changes only the chunks around the
+ * insertion. Each chunk is stored compressed in a file named by the SHA-256
+ * hash of its content, and chunks that exist already are not written again.
+ * <p>
+ * In the destination tree, every file is replaced by a manifest of the same
+ * name and modification time that lists the chunks of the file. The size of
+ * the file is recorded in the manifest and, where the file system supports
+ * it, in an extended attribute of the manifest, so unchanged files are
+ * recognized from their metadata alone. Files found in the destination that
+ * are not manifests, because they were copied before the chunk store was
+ * used, are stored as chunks and replaced by manifests when they are read.
+ * <p>
+ * Chunks and manifests are forced to disk before they are renamed to their
+ * final names, so a manifest never refers to a chunk lost in a power failure.
+ * <p>
+ * Several destinations may share a chunk store. Each of them is registered
+ * in the file {@value #ROOTS_FILE} of the store, so unused chunks can be
+ * found by reading the manifests of all destinations, with a fixed amount of
+ * memory, see {@link UsedChunks}. Within a process,
+ * chunks are neither stored nor read while unused chunks are removed; the
+ * store must not be used by several processes at the same time.
+ */
+class ChunkStore {
+
+	private final static Logger log = Logger.getLogger(ChunkStore.class);
+
+	final static int MIN_CHUNK_SIZE = 16 * 1024;
+	final static int MAX_CHUNK_SIZE = 256 * 1024;
+
+	/**
+	 * A chunk ends where these bits of the gear hash are 0, on average
+	 * 64 KB after the minimum chunk size
+	 */
+	private final static long BOUNDARY_MASK = 0xFFFFL << 48;
+
+	private final static String MANIFEST_HEADER = "synctool-manifest 1";
+	final static String ROOTS_FILE = "roots";
+	private final static String CHUNK_TEMP_SUFFIX = ".tmp";
+
+	/**
+	 * The extended attribute of a manifest holding the size of its file
+	 */
+	private final static String SIZE_ATTRIBUTE = "synctool.size";
+
+	/**
+	 * The number of chunk hashes held in memory while looking for unused
+	 * chunks, 8 MB
+	 */
+	private final static int USED_CHUNKS_BUFFER_SIZE = 1024 * 1024;
+
+	/**
+	 * The number of chunk names of a chunk directory sorted in memory
+	 */
+	private final static int LISTING_CHUNK_SIZE = 10000;
+
+	private final static byte RAW = 0;
+	private final static byte DEFLATED = 1;
+
+	/**
+	 * Random values for the gear hash. They must never change, or the chunks
+	 * of new copies would no longer match the stored ones.
+	 */
+	private final static long[] GEAR = new long[256];
+
+	static {
+		Random random = new Random(0x5EED5EEDL);
+		for (int i = 0; i < GEAR.length; i++) {
+			GEAR[i] = random.nextLong();
+		}
+	}
+
+	/**
+	 * Stores and the removal of unused chunks exclude each other, for every
+	 * chunk store used in this process.
+	 */
+	private final static Map<String, ReadWriteLock> locks = new HashMap<String, ReadWriteLock>();
+
+	/**
+	 * The contents of a manifest.
+	 */
+	static class Manifest {
+
+		final long size;
+		final List<String> chunks;
+		final List<Integer> lengths;
+
+		Manifest(long size, List<String> chunks, List<Integer> lengths) {
+			this.size = size;
+			this.chunks = chunks;
+			this.lengths = lengths;
+		}
+	}
+
+	/**
+	 * Splits a stream into chunks. The current chunk is found in the buffer
+	 * at the offset.
+	 */
+	private static class Chunker {
+
+		private final InputStream in;
+		final byte[] buffer;
+		int offset;
+		private int start;
+		private int end;
+		private boolean eof;
+
+		Chunker(InputStream in, byte[] buffer) {
+			this.in = in;
+			this.buffer = buffer;
+		}
+
+		/**
+		 * @return the length of the next chunk, 0 at the end of the stream
+		 */
+		int next() throws IOException {
+			if (end - start < MAX_CHUNK_SIZE && !eof) {
+				System.arraycopy(buffer, start, buffer, 0, end - start);
+				end -= start;
+				start = 0;
+				while (end < buffer.length && !eof) {
+					int read = in.read(buffer, end, buffer.length - end);
+					if (read < 0)
+						eof = true;
+					else
+						end += read;
+				}
+			}
+			int length = boundary(buffer, start, end - start);
+			offset = start;
+			start += length;
+			return length;
+		}
+	}
+
+	private final File directory;
+	private final ReadWriteLock lock;
+
+	private final AtomicLong bytesStored = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final AtomicLong bytesDeduplicated = new AtomicLong();
+	private final AtomicLong manifestsRemoved = new AtomicLong();
+	private volatile boolean withoutAttributes;
+
+	private final ThreadLocal<byte[][]> buffers = new ThreadLocal<byte[][]>() {
+		@Override
+		protected byte[][] initialValue() {
+			return new byte[][] { new byte[MAX_CHUNK_SIZE * 2], new byte[MAX_CHUNK_SIZE] };
+		}
+	};
+
+	private final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	private final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.BEST_SPEED);
+		}
+	};
+
+	private final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater();
+		}
+	};
+
+	/**
+	 * @param directory the directory of the chunk store
+	 */
+	ChunkStore(File directory) throws IOException {
+		this.directory = directory;
+		synchronized (locks) {
+			String path = directory.getCanonicalPath();
+			ReadWriteLock lock = locks.get(path);
+			if (lock == null) {
+				lock = new ReentrantReadWriteLock();
+				locks.put(path, lock);
+			}
+			this.lock = lock;
+		}
+	}
+
+	/**
+	 * Finds the end of the chunk starting at the offset.
+	 * 
+	 * @param length the number of bytes available
+	 * @return the length of the chunk
+	 */
+	static int boundary(byte[] data, int offset, int length) {
+		if (length <= MIN_CHUNK_SIZE)
+			return length;
+		int limit = Math.min(length, MAX_CHUNK_SIZE);
+		long hash = 0;
+		for (int i = MIN_CHUNK_SIZE; i < limit; i++) {
+			hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+			if ((hash & BOUNDARY_MASK) == 0)
+				return i + 1;
+		}
+		return limit;
+	}
+
+	/**
+	 * Adds a destination to the destinations whose manifests refer to the
+	 * chunks of the store.
+	 */
+	void register(File root) throws IOException {
+		String path = root.getCanonicalPath();
+		lock.writeLock().lock();
+		try {
+			Files.createDirectories(directory.toPath());
+			if (getRoots().contains(path))
+				return;
+			Files.write(new File(directory, ROOTS_FILE).toPath(), (path + "\n").getBytes(StandardCharsets.UTF_8),
+					StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private List<String> getRoots() throws IOException {
+		File file = new File(directory, ROOTS_FILE);
+		if (!file.exists())
+			return new ArrayList<String>();
+		return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Reads the size of the file described by a manifest, from the extended
+	 * attribute of the manifest if it has one. A file that is not a manifest
+	 * is stored as chunks and replaced by a manifest.
+	 * 
+	 * @param update false to leave the destination unchanged, so a file that
+	 *        is not a manifest is kept and reported as it is
+	 * @return an entry of the manifest that reports the size of the file
+	 */
+	FileEntry readEntry(FileEntry manifest, boolean update) throws IOException {
+		File file = manifest.getFile();
+		Long size = readSizeAttribute(file);
+		if (size != null)
+			return manifest.withLength(size);
+		if (!isManifest(file)) {
+			if (update)
+				convert(file);
+			return manifest;
+		}
+		BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8);
+		try {
+			size = readSize(reader, file);
+		} finally {
+			reader.close();
+		}
+		// manifests written without the attribute are read only once
+		if (update)
+			writeSizeAttribute(file, size);
+		return manifest.withLength(size);
+	}
+
+	/**
+	 * Checks whether a file starts like a manifest.
+	 */
+	static boolean isManifest(File file) throws IOException {
+		byte[] header = (MANIFEST_HEADER + "\n").getBytes(StandardCharsets.UTF_8);
+		byte[] start = new byte[header.length];
+		InputStream in = Files.newInputStream(file.toPath());
+		try {
+			return IOUtils.read(in, start) == start.length && Arrays.equals(header, start);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Stores a file found in the destination as chunks and replaces it by its
+	 * manifest.
+	 */
+	private void convert(File file) throws IOException {
+		log.info("Storing " + file + " as chunks");
+		File temp = FileCopier.temporaryFile(file);
+		lock.readLock().lock();
+		try {
+			writeManifest(file, temp, null);
+			FileCopier.rename(temp, file);
+		} catch (IOException e) {
+			temp.delete();
+			throw e;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the size stored in the extended attribute of a manifest or
+	 *         null, if it has none
+	 */
+	private Long readSizeAttribute(File manifest) {
+		if (withoutAttributes)
+			return null;
+		UserDefinedFileAttributeView view = Files.getFileAttributeView(manifest.toPath(), UserDefinedFileAttributeView.class);
+		if (view == null)
+			return null;
+		ByteBuffer buffer = ByteBuffer.allocate(8);
+		try {
+			if (view.read(SIZE_ATTRIBUTE, buffer) != 8)
+				return null;
+		} catch (IOException e) {
+			// the attribute is missing
+			return null;
+		}
+		buffer.flip();
+		return buffer.getLong();
+	}
+
+	/**
+	 * Stores the size of the file described by a manifest in an extended
+	 * attribute of the manifest. If the file system does not support
+	 * extended attributes, the manifests are read from then on.
+	 */
+	private void writeSizeAttribute(File manifest, long size) {
+		if (withoutAttributes)
+			return;
+		UserDefinedFileAttributeView view = Files.getFileAttributeView(manifest.toPath(), UserDefinedFileAttributeView.class);
+		try {
+			if (view == null)
+				throw new IOException("no user defined attributes");
+			ByteBuffer buffer = ByteBuffer.allocate(8);
+			buffer.putLong(size).flip();
+			view.write(SIZE_ATTRIBUTE, buffer);
+		} catch (IOException e) {
+			withoutAttributes = true;
+			log.info("Could not set an extended attribute of " + manifest + ", reading the sizes of files from their manifests: "
+					+ e.getMessage());
+		}
+	}
+
+	private static long readSize(BufferedReader reader, File manifest) throws IOException {
+		String size = MANIFEST_HEADER.equals(reader.readLine()) ? reader.readLine() : null;
+		if (size == null || !size.startsWith("size "))
+			throw new IOException(manifest + " is not a manifest");
+		try {
+			return Long.parseLong(size.substring(5));
+		} catch (NumberFormatException e) {
+			throw new IOException(manifest + " is not a manifest");
+		}
+	}
+
+	/**
+	 * Reads a manifest.
+	 */
+	static Manifest readManifest(File manifest) throws IOException {
+		BufferedReader reader = Files.newBufferedReader(manifest.toPath(), StandardCharsets.UTF_8);
+		try {
+			long size = readSize(reader, manifest);
+			List<String> chunks = new ArrayList<String>();
+			List<Integer> lengths = new ArrayList<Integer>();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int separator = line.indexOf(' ');
+				if (separator < 0)
+					throw new IOException(manifest + " is not a manifest");
+				chunks.add(line.substring(0, separator));
+				lengths.add(Integer.valueOf(line.substring(separator + 1)));
+			}
+			return new Manifest(size, chunks, lengths);
+		} catch (NumberFormatException e) {
+			throw new IOException(manifest + " is not a manifest");
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Stores a file and writes its manifest into a directory, replacing an
+	 * existing manifest of the same name.
+	 * 
+	 * @param throttle limits the rate of the writes or null
+	 * @return the size of the file; the number of bytes actually written is
+	 *         part of the {@link #getStatistics() statistics}
+	 */
+	long storeFile(File src, File directory, Throttle throttle) throws IOException {
+		File target = new File(directory, src.getName());
+		File temp = FileCopier.temporaryFile(target);
+		lock.readLock().lock();
+		try {
+			long written = writeManifest(src, temp, throttle);
+			if (target.exists())
+				manifestsRemoved.incrementAndGet();
+			FileCopier.rename(temp, target);
+			return written;
+		} catch (IOException e) {
+			temp.delete();
+			throw e;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Stores a directory with all its contents and writes the manifests of
+	 * its files into a directory. A resumable copy continues in the
+	 * temporary directory of an interrupted copy, keeping the manifests that
+	 * match their file, and leaves its temporary directory behind if it
+	 * fails.
+	 * 
+	 * @param resumable true if the copy can be resumed
+	 * @param throttle limits the rate of the writes or null
+	 * @return the size of the files stored
+	 */
+	long storeDirectory(File srcDir, File directory, boolean resumable, Throttle throttle) throws IOException {
+		File target = new File(directory, srcDir.getName());
+		if (target.exists())
+			throw new IOException("Target directory " + target + " already exists");
+		File temp = FileCopier.temporaryFile(target);
+		if (!resumable)
+			FileUtils.deleteDirectory(temp);
+		lock.readLock().lock();
+		try {
+			long written = storeTree(srcDir, temp, resumable, throttle);
+			FileCopier.rename(temp, target);
+			return written;
+		} catch (IOException e) {
+			if (!resumable)
+				FileUtils.deleteQuietly(temp);
+			throw e;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private long storeTree(File srcDir, File destDir, boolean resume, Throttle throttle) throws IOException {
+		if (!(resume && destDir.isDirectory()) && !destDir.mkdir())
+			throw new IOException("Could not create directory " + destDir);
+		File[] files = srcDir.listFiles();
+		if (files == null)
+			throw new IOException("Could not list directory " + srcDir);
+		long written = 0;
+		for (File file : files) {
+			File target = new File(destDir, file.getName());
+			if (file.isDirectory()) {
+				if (throttle != null && !(resume && target.isDirectory()))
+					throttle.acquireOperation();
+				written += storeTree(file, target, resume, throttle);
+			} else if (!resume || !target.isFile() || target.lastModified() != file.lastModified()
+					|| readManifest(target).size != file.length()) {
+				if (throttle != null)
+					throttle.acquireOperation();
+				written += writeManifest(file, target, throttle);
+			}
+		}
+		destDir.setLastModified(srcDir.lastModified());
+		return written;
+	}
+
+	/**
+	 * Stores the chunks of a file and writes its manifest, which gets the
+	 * modification time of the file.
+	 * 
+	 * @return the size of the file
+	 */
+	private long writeManifest(File src, File manifest, Throttle throttle) throws IOException {
+		long lastModified = src.lastModified();
+		long size = 0;
+		StringBuilder text = new StringBuilder();
+		InputStream in = Files.newInputStream(src.toPath());
+		try {
+			Chunker chunker = new Chunker(in, buffers.get()[0]);
+			int length;
+			while ((length = chunker.next()) > 0) {
+				String id = hash(chunker.buffer, chunker.offset, length);
+				storeChunk(id, chunker.buffer, chunker.offset, length, throttle);
+				text.append(id).append(' ').append(length).append('\n');
+				size += length;
+			}
+		} finally {
+			in.close();
+		}
+		byte[] bytes = (MANIFEST_HEADER + "\nsize " + size + "\n" + text).getBytes(StandardCharsets.UTF_8);
+		FileChannel out = FileChannel.open(manifest.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			while (buffer.hasRemaining()) {
+				out.write(buffer);
+			}
+			out.force(false);
+		} finally {
+			out.close();
+		}
+		writeSizeAttribute(manifest, size);
+		Files.setLastModifiedTime(manifest.toPath(), FileTime.fromMillis(lastModified));
+		if (throttle != null)
+			throttle.acquire(bytes.length);
+		bytesStored.addAndGet(size);
+		bytesWritten.addAndGet(bytes.length);
+		return size;
+	}
+
+	private String hash(byte[] data, int offset, int length) {
+		MessageDigest digest = digests.get();
+		digest.update(data, offset, length);
+		return new String(Hex.encodeHex(digest.digest()));
+	}
+
+	private File chunkFile(String id) {
+		return new File(new File(directory, id.substring(0, 2)), id);
+	}
+
+	/**
+	 * Writes a chunk unless it is stored already. The chunk is compressed if
+	 * that makes it smaller. It is forced to disk before it gets its name,
+	 * and the directory afterwards, so the chunk is durable before any
+	 * manifest refers to it.
+	 * 
+	 * @return the number of bytes written
+	 */
+	private long storeChunk(String id, byte[] data, int offset, int length, Throttle throttle) throws IOException {
+		File file = chunkFile(id);
+		if (file.exists()) {
+			bytesDeduplicated.addAndGet(length);
+			return 0;
+		}
+
+		byte[] compressed = buffers.get()[1];
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setInput(data, offset, length);
+		deflater.finish();
+		int compressedLength = 0;
+		while (!deflater.finished() && compressedLength < length) {
+			compressedLength += deflater.deflate(compressed, compressedLength, Math.min(compressed.length, length) - compressedLength);
+		}
+		boolean deflated = deflater.finished() && compressedLength < length;
+
+		File chunkDir = file.getParentFile();
+		chunkDir.mkdirs();
+		// chunks may be stored by several threads at the same time
+		File temp = File.createTempFile("." + id, CHUNK_TEMP_SUFFIX, chunkDir);
+		try {
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				out.write(deflated ? DEFLATED : RAW);
+				if (deflated)
+					out.write(compressed, 0, compressedLength);
+				else
+					out.write(data, offset, length);
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			FileCopier.forceDirectory(chunkDir);
+		} catch (IOException e) {
+			temp.delete();
+			throw e;
+		}
+		long written = 1 + (deflated ? compressedLength : length);
+		if (throttle != null)
+			throttle.acquire(written);
+		bytesWritten.addAndGet(written);
+		return written;
+	}
+
+	/**
+	 * Reads a chunk and checks its content against its name.
+	 */
+	private byte[] readChunk(String id, int length) throws IOException {
+		byte[] stored;
+		try {
+			stored = Files.readAllBytes(chunkFile(id).toPath());
+		} catch (NoSuchFileException e) {
+			throw new IOException("Chunk " + id + " is missing");
+		}
+		byte[] data;
+		if (stored.length > 0 && stored[0] == DEFLATED) {
+			Inflater inflater = inflaters.get();
+			inflater.reset();
+			inflater.setInput(stored, 1, stored.length - 1);
+			data = new byte[length];
+			try {
+				int inflated = 0;
+				while (inflated < length && !inflater.finished()) {
+					int count = inflater.inflate(data, inflated, length - inflated);
+					if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+						break;
+					inflated += count;
+				}
+				if (inflated != length || !inflater.finished())
+					data = null;
+			} catch (DataFormatException e) {
+				data = null;
+			}
+		} else {
+			data = stored.length > 0 ? Arrays.copyOfRange(stored, 1, stored.length) : null;
+		}
+		if (data == null || data.length != length || !hash(data, 0, length).equals(id))
+			throw new IOException("Chunk " + id + " is damaged");
+		return data;
+	}
+
+	/**
+	 * Restores the file described by a manifest into a directory, replacing
+	 * an existing file of the same name.
+	 * 
+	 * @param throttle limits the rate of the writes or null
+	 * @return the number of bytes written
+	 */
+	long restoreFile(File manifest, File directory, Throttle throttle) throws IOException {
+		File target = new File(directory, manifest.getName());
+		File temp = FileCopier.temporaryFile(target);
+		lock.readLock().lock();
+		try {
+			long written = restoreContents(manifest, temp, throttle);
+			FileCopier.rename(temp, target);
+			return written;
+		} catch (IOException e) {
+			temp.delete();
+			throw e;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Restores the files described by the manifests of a directory into a
+	 * directory. A resumable copy continues in the temporary directory of an
+	 * interrupted copy, keeping the files that already have their size and
+	 * modification time, and leaves its temporary directory behind if it
+	 * fails.
+	 * 
+	 * @param resumable true if the copy can be resumed
+	 * @param throttle limits the rate of the writes or null
+	 * @return the number of bytes written
+	 */
+	long restoreDirectory(File manifestDir, File directory, boolean resumable, Throttle throttle) throws IOException {
+		File target = new File(directory, manifestDir.getName());
+		if (target.exists())
+			throw new IOException("Target directory " + target + " already exists");
+		File temp = FileCopier.temporaryFile(target);
+		if (!resumable)
+			FileUtils.deleteDirectory(temp);
+		lock.readLock().lock();
+		try {
+			long written = restoreTree(manifestDir, temp, resumable, throttle);
+			FileCopier.rename(temp, target);
+			return written;
+		} catch (IOException e) {
+			if (!resumable)
+				FileUtils.deleteQuietly(temp);
+			throw e;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private long restoreTree(File manifestDir, File destDir, boolean resume, Throttle throttle) throws IOException {
+		if (!(resume && destDir.isDirectory()) && !destDir.mkdir())
+			throw new IOException("Could not create directory " + destDir);
+		File[] files = manifestDir.listFiles();
+		if (files == null)
+			throw new IOException("Could not list directory " + manifestDir);
+		long written = 0;
+		for (File file : files) {
+			File target = new File(destDir, file.getName());
+			if (file.isDirectory()) {
+				if (throttle != null && !(resume && target.isDirectory()))
+					throttle.acquireOperation();
+				written += restoreTree(file, target, resume, throttle);
+			} else if (!resume || !target.isFile() || target.lastModified() != file.lastModified()
+					|| target.length() != readManifest(file).size) {
+				if (throttle != null)
+					throttle.acquireOperation();
+				written += restoreContents(file, target, throttle);
+			}
+		}
+		destDir.setLastModified(manifestDir.lastModified());
+		return written;
+	}
+
+	private long restoreContents(File manifest, File target, Throttle throttle) throws IOException {
+		long lastModified = manifest.lastModified();
+		Manifest contents = readManifest(manifest);
+		long written = 0;
+		OutputStream out = new FileOutputStream(target);
+		try {
+			for (int i = 0; i < contents.chunks.size(); i++) {
+				byte[] data = readChunk(contents.chunks.get(i), contents.lengths.get(i));
+				out.write(data);
+				written += data.length;
+				if (throttle != null)
+					throttle.acquire(data.length);
+			}
+		} finally {
+			out.close();
+		}
+		if (written != contents.size)
+			throw new IOException("The chunks of " + manifest + " do not add up to its size");
+		Files.setLastModifiedTime(target.toPath(), FileTime.fromMillis(lastModified));
+		return written;
+	}
+
+	/**
+	 * Checks whether a file has the content described by a manifest. The
+	 * file is split into chunks and their hashes are compared with those in
+	 * the manifest; the chunks themselves are not read.
+	 */
+	boolean sameContents(File file, File manifest) throws IOException {
+		// a file of the destination that has not been stored as chunks yet
+		if (!isManifest(manifest))
+			return FileUtils.contentEquals(file, manifest);
+		Manifest contents = readManifest(manifest);
+		InputStream in = Files.newInputStream(file.toPath());
+		try {
+			Chunker chunker = new Chunker(in, buffers.get()[0]);
+			int i = 0;
+			int length;
+			while ((length = chunker.next()) > 0) {
+				if (i == contents.chunks.size() || length != contents.lengths.get(i)
+						|| !hash(chunker.buffer, chunker.offset, length).equals(contents.chunks.get(i)))
+					return false;
+				i++;
+			}
+			return i == contents.chunks.size();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Deletes a manifest or a directory of manifests. The chunks they refer
+	 * to are kept until the next removal of unused chunks.
+	 */
+	void delete(File file) throws IOException {
+		if (file.isDirectory())
+			FileUtils.deleteDirectory(file);
+		else
+			Files.deleteIfExists(file.toPath());
+		manifestsRemoved.incrementAndGet();
+	}
+
+	/**
+	 * @return true if manifests have been replaced or deleted since unused
+	 *         chunks have been removed
+	 */
+	boolean hasUnusedChunks() {
+		return manifestsRemoved.get() > 0;
+	}
+
+	/**
+	 * Deletes the chunks that are not referred to by any manifest of the
+	 * registered destinations. The manifests are read one by one and the
+	 * chunks they refer to are collected in {@link UsedChunks}, then the
+	 * chunk directories are walked in sorted order. Nothing is deleted if a
+	 * destination is missing or contains a damaged manifest.
+	 * 
+	 * @return the number of bytes freed
+	 */
+	long removeUnusedChunks() throws IOException {
+		return removeUnusedChunks(USED_CHUNKS_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param bufferSize the number of chunk hashes held in memory
+	 */
+	long removeUnusedChunks(int bufferSize) throws IOException {
+		lock.writeLock().lock();
+		// the first 8 bytes of the hashes, which may keep an unused chunk by chance
+		UsedChunks used = new UsedChunks(bufferSize);
+		try {
+			manifestsRemoved.set(0);
+			for (String root : getRoots()) {
+				File rootDir = new File(root);
+				if (!rootDir.isDirectory()) {
+					log.warn("Keeping unused chunks, as destination " + root + " is missing");
+					return 0;
+				}
+				markChunks(rootDir, used);
+			}
+
+			long freed = 0;
+			int deleted = 0;
+			String[] chunkDirs = directory.list();
+			if (chunkDirs == null)
+				throw new IOException("Could not list directory " + directory);
+			// the chunks are looked up in the order of their names
+			Arrays.sort(chunkDirs);
+			for (String chunkDirName : chunkDirs) {
+				File chunkDir = new File(directory, chunkDirName);
+				if (!chunkDir.isDirectory())
+					continue;
+				SortedListing chunks = new SortedListing(chunkDir, LISTING_CHUNK_SIZE);
+				try {
+					String name;
+					while ((name = chunks.next()) != null) {
+						boolean unused = name.endsWith(CHUNK_TEMP_SUFFIX) || name.length() == 64 && !used.contains(prefix(name));
+						if (unused) {
+							File chunk = new File(chunkDir, name);
+							freed += chunk.length();
+							deleted++;
+							Files.deleteIfExists(chunk.toPath());
+						}
+					}
+				} finally {
+					chunks.close();
+				}
+			}
+			log.info("Removed " + deleted + " unused chunks, " + SyncMetrics.formatBytes(freed));
+			return freed;
+		} finally {
+			used.close();
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Adds the chunks referred to by the manifests in a destination tree,
+	 * including those of interrupted copies that may be resumed. Files that
+	 * are not manifests do not refer to any chunks.
+	 */
+	private static void markChunks(File directory, UsedChunks used) throws IOException {
+		DirectoryStream<Path> stream = Files.newDirectoryStream(directory.toPath());
+		try {
+			for (Path path : stream) {
+				String name = path.getFileName().toString();
+				if (FileCopier.isPartialMarker(name))
+					continue;
+				File file = path.toFile();
+				if (file.isDirectory()) {
+					markChunks(file, used);
+				} else if (isManifest(file)) {
+					try {
+						markManifest(file, used);
+					} catch (IOException e) {
+						// an interrupted copy may have left an incomplete manifest
+						if (!FileCopier.isTemporary(name))
+							throw e;
+					}
+				}
+			}
+		} finally {
+			stream.close();
+		}
+	}
+
+	private static void markManifest(File manifest, UsedChunks used) throws IOException {
+		BufferedReader reader = Files.newBufferedReader(manifest.toPath(), StandardCharsets.UTF_8);
+		try {
+			readSize(reader, manifest);
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.indexOf(' ') != 64)
+					throw new IOException(manifest + " is not a manifest");
+				used.add(prefix(line));
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException(manifest + " is not a manifest");
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static long prefix(String chunk) {
+		return Long.parseUnsignedLong(chunk.substring(0, 16), 16);
+	}
+
+	/**
+	 * @return a line describing the data stored by this run
+	 */
+	String getStatistics() {
+		return "Chunk store: " + SyncMetrics.formatBytes(bytesStored.get()) + " stored, "
+				+ SyncMetrics.formatBytes(bytesDeduplicated.get()) + " of it found in existing chunks, "
+				+ SyncMetrics.formatBytes(bytesWritten.get()) + " written";
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2012 Tilman Liero
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package de.tilman.synctool;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * The synchronization history in the File table of the database. Changes are
+ * written by the {@link HistoryWriter}. The history is loaded into a
+ * {@link HistorySnapshot} if it fits into the cache size, otherwise the
+ * database is queried for each file.
+ */
+class DatabaseHistoryStore implements HistoryStore {
+
+	private final static Logger log = Logger.getLogger(DatabaseHistoryStore.class);
+
+	private final Connection connection;
+	private final int sourceId;
+	private final HistoryWriter writer;
+	private final SyncMetrics metrics;
+	private final PreparedStatement selectFileSql;
+	private HistorySnapshot snapshot;
+
+	/**
+	 * @param connection the database connection
+	 * @param sourceId the id of the source directory
+	 * @param writer the writer for the changes or null for a dry run
+	 * @param cacheSize the maximum memory in bytes used for a snapshot, 0 to
+	 *        always query the database
+	 * @param metrics the metrics recording the query latencies
+	 */
+	DatabaseHistoryStore(Connection connection, int sourceId, HistoryWriter writer, long cacheSize, SyncMetrics metrics)
+			throws SQLException {
+		this.connection = connection;
+		this.sourceId = sourceId;
+		this.writer = writer;
+		this.metrics = metrics;
+		selectFileSql = connection.prepareStatement("SELECT * FROM File WHERE path=? AND idSource=" + sourceId + " LIMIT 1");
+
+		// load the history into memory if it fits into the configured cache size
+		if (cacheSize > 0) {
+			long historySize = HistorySnapshot.estimateSize(connection, sourceId);
+			if (historySize <= cacheSize) {
+				log.info("Loading synchronization history into memory");
+				snapshot = HistorySnapshot.load(connection, sourceId);
+				log.info("Loaded " + snapshot.size() + " history entries");
+			} else {
+				log.info("Synchronization history exceeds the cache size (" + historySize / 1024 / 1024
+						+ " MB), querying the database for each file");
+			}
+		}
+	}
+
+	@Override
+	public long size() throws IOException {
+		if (snapshot != null)
+			return snapshot.size();
+		try {
+			PreparedStatement countSql = connection.prepareStatement("SELECT COUNT(*) FROM File WHERE idSource=?");
+			try {
+				countSql.setInt(1, sourceId);
+				ResultSet resultSet = countSql.executeQuery();
+				resultSet.next();
+				return resultSet.getLong(1);
+			} finally {
+				countSql.close();
+			}
+		} catch (SQLException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public boolean contains(String path) throws IOException {
+		if (snapshot != null)
+			return snapshot.contains(path);
+		long start = System.nanoTime();
+		try {
+			return query(path);
+		} catch (SQLException e) {
+			throw new IOException(e);
+		} finally {
+			metrics.databaseLatency.record(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Looks up a path in the database. The prepared statement is shared by
+	 * all traversal threads, so access to the database is serialized.
+	 */
+	private synchronized boolean query(String path) throws SQLException {
+		selectFileSql.setString(1, path);
+		ResultSet resultSet = selectFileSql.executeQuery();
+		try {
+			return resultSet.next();
+		} finally {
+			resultSet.close();
+		}
+	}
+
+	@Override
+	public void add(String path, Long size, long mtime) throws IOException {
+		if (snapshot != null)
+			snapshot.add(path);
+		try {
+			if (writer != null)
+				writer.insert(path, size, mtime);
+		} catch (SQLException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public void update(String path, Long size, long mtime) throws IOException {
+		try {
+			if (writer != null)
+				writer.update(path, size, mtime);
+		} catch (SQLException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public void remove(String path) throws IOException {
+		if (snapshot != null)
+			snapshot.remove(path);
+		try {
+			if (writer != null)
+				writer.delete(path);
+		} catch (SQLException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Releases the prepared statement. The pending changes are written when
+	 * the {@link HistoryWriter} is closed.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			selectFileSql.close();
+		} catch (SQLException e) {
+			throw new IOException(e);
+		}
+	}
+}
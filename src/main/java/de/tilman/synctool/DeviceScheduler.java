@@ -0,0 +1,116 @@
+/*
+ * Copyright 2012 Tilman Liero
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package de.tilman.synctool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+
+/**
+ * Limits the number of jobs using the same device at the same time. Jobs on
+ * different devices run in parallel, while jobs sharing a disk take turns
+ * instead of slowing each other down with interleaved reads and writes.
+ * <p>
+ * A job holds the permits of its source and its destination device while it
+ * runs. The permits are always acquired in the order in which the devices
+ * were first seen, so two jobs waiting for each other's devices cannot
+ * deadlock.
+ */
+class DeviceScheduler {
+
+	/**
+	 * The permits of one device
+	 */
+	private static class Device {
+
+		final int order;
+		final Semaphore permits;
+
+		Device(int order, int jobsPerDevice) {
+			this.order = order;
+			this.permits = new Semaphore(jobsPerDevice, true);
+		}
+	}
+
+	private final int jobsPerDevice;
+	private final Map<FileStore, Device> devices = new HashMap<FileStore, Device>();
+
+	/**
+	 * @param jobsPerDevice the maximum number of jobs using one device
+	 */
+	DeviceScheduler(int jobsPerDevice) {
+		this.jobsPerDevice = jobsPerDevice;
+	}
+
+	private synchronized Device getDevice(File directory) throws IOException {
+		FileStore store = Files.getFileStore(directory.toPath());
+		Device device = devices.get(store);
+		if (device == null) {
+			device = new Device(devices.size(), jobsPerDevice);
+			devices.put(store, device);
+		}
+		return device;
+	}
+
+	/**
+	 * Waits until a job may use the devices of its directories.
+	 * 
+	 * @return the permits to pass to {@link #release(List)}
+	 */
+	List<Semaphore> acquire(File srcDir, File destDir) throws IOException, InterruptedException {
+		Device first = getDevice(srcDir);
+		Device second = getDevice(destDir);
+		if (second.order < first.order) {
+			Device device = first;
+			first = second;
+			second = device;
+		}
+
+		List<Semaphore> acquired = new ArrayList<Semaphore>(2);
+		try {
+			first.permits.acquire();
+			acquired.add(first.permits);
+			if (second != first) {
+				second.permits.acquire();
+				acquired.add(second.permits);
+			}
+		} catch (InterruptedException e) {
+			release(acquired);
+			throw e;
+		}
+		return acquired;
+	}
+
+	/**
+	 * Releases the devices of a finished job.
+	 */
+	void release(List<Semaphore> acquired) {
+		for (Semaphore permits : acquired) {
+			permits.release();
+		}
+	}
+}
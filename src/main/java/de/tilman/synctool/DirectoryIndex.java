@@ -0,0 +1,170 @@
+/*
+ * Copyright 2012 Tilman Liero
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.tilman.synctool;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * The modification times of all directory pairs recorded by the last runs.
+ * Adding, removing or renaming an entry changes the modification time of its
+ * directory, so a directory pair whose times have not changed since the
+ * record was written still contains the same entries. Its subdirectories are
+ * stored with the record, which allows descending into them without reading
+ * the directory listings.
+ * <p>
+ * Files modified in place do not change the modification time of their
+ * directory and are only detected by a full run.
+ */
+class DirectoryIndex {
+
+	/**
+	 * Coarsest timestamp resolution of the supported file systems (FAT).
+	 * Records written less than this after the last change of a directory are
+	 * not trusted, because a later change might not alter its timestamp.
+	 */
+	private final static long TIMESTAMP_RESOLUTION = 2000;
+
+	/**
+	 * Separates the subdirectory names, cannot occur in a file name.
+	 */
+	final static String SUBDIRECTORY_SEPARATOR = "/";
+
+	private static class Record {
+		long srcMtime;
+		long destMtime;
+		long recorded;
+		String[] subdirectories;
+	}
+
+	private final HashMap<String, Record> records = new HashMap<String, Record>();
+
+	private DirectoryIndex() {
+	}
+
+	/**
+	 * Loads the directory records of a source directory.
+	 *
+	 * @param connection the database connection
+	 * @param table the table holding the records
+	 * @param sourceId the id of the source directory
+	 * @return the index
+	 */
+	static DirectoryIndex load(Connection connection, String table, int sourceId) throws SQLException {
+		DirectoryIndex index = new DirectoryIndex();
+		PreparedStatement selectSql = connection.prepareStatement("SELECT path, srcMtime, destMtime, recorded, subdirectories FROM "
+				+ table + " WHERE idSource=?");
+		try {
+			selectSql.setFetchSize(10000);
+			selectSql.setInt(1, sourceId);
+			ResultSet resultSet = selectSql.executeQuery();
+			while (resultSet.next()) {
+				Record record = new Record();
+				record.srcMtime = resultSet.getLong(2);
+				record.destMtime = resultSet.getLong(3);
+				record.recorded = resultSet.getLong(4);
+				String subdirectories = resultSet.getString(5);
+				record.subdirectories = subdirectories.isEmpty() ? new String[0] : subdirectories.split(SUBDIRECTORY_SEPARATOR);
+				index.records.put(resultSet.getString(1), record);
+			}
+		} finally {
+			selectSql.close();
+		}
+		return index;
+	}
+
+	/**
+	 * @return the number of directory records
+	 */
+	int size() {
+		return records.size();
+	}
+
+	/**
+	 * Adds every recorded directory to the subdirectories of the record of
+	 * its parent directory, for records written without their
+	 * subdirectories.
+	 */
+	void addRecordedSubdirectories() {
+		Map<String, Set<String>> children = new HashMap<String, Set<String>>();
+		for (String path : records.keySet()) {
+			if (path.isEmpty())
+				continue;
+			int separator = path.lastIndexOf(SyncTool.KEY_SEPARATOR);
+			String parent = separator < 0 ? "" : path.substring(0, separator);
+			if (!records.containsKey(parent))
+				continue;
+			Set<String> names = children.get(parent);
+			if (names == null) {
+				names = new LinkedHashSet<String>(Arrays.asList(records.get(parent).subdirectories));
+				children.put(parent, names);
+			}
+			names.add(path.substring(separator + 1));
+		}
+		for (Map.Entry<String, Set<String>> entry : children.entrySet()) {
+			records.get(entry.getKey()).subdirectories = entry.getValue().toArray(new String[entry.getValue().size()]);
+		}
+	}
+
+	/**
+	 * Removes all records.
+	 */
+	void clear() {
+		records.clear();
+	}
+
+	/**
+	 * Returns the subdirectory pairs of an unchanged directory pair.
+	 *
+	 * @param path the history key of the source directory
+	 * @param srcDir the source directory
+	 * @param destDir the destination directory
+	 * @return the pairs of subdirectories or null, if the directory pair has
+	 *         changed since it was recorded
+	 */
+	List<File[]> getUnchangedSubdirectories(String path, File srcDir, File destDir) {
+		Record record = records.get(path);
+		if (record == null)
+			return null;
+
+		long srcMtime = srcDir.lastModified();
+		long destMtime = destDir.lastModified();
+		if (srcMtime != record.srcMtime || destMtime != record.destMtime)
+			return null;
+		if (srcMtime > record.recorded - TIMESTAMP_RESOLUTION || destMtime > record.recorded - TIMESTAMP_RESOLUTION)
+			return null;
+
+		List<File[]> subdirectories = new ArrayList<File[]>(record.subdirectories.length);
+		for (String name : record.subdirectories) {
+			subdirectories.add(new File[] { new File(srcDir, name), new File(destDir, name) });
+		}
+		return subdirectories;
+	}
+}
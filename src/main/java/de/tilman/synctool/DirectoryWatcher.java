@@ -0,0 +1,192 @@
+/*
+ * Copyright 2012 Tilman Liero
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package de.tilman.synctool;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Watches all directories of the source and the destination tree for
+ * changes. Changes are reported as the history keys of the directories whose
+ * entries have changed, so both trees map to the same keys. Directories
+ * created later are watched as soon as their creation is reported; temporary
+ * directories of unfinished copies are not watched, as they are renamed when
+ * the copy is complete.
+ */
+class DirectoryWatcher implements Closeable {
+
+	private final static Logger log = Logger.getLogger(DirectoryWatcher.class);
+
+	/**
+	 * Changes are collected for at most this many debounce intervals, so
+	 * continuous changes cannot hold up the synchronization forever.
+	 */
+	private final static int MAX_DEBOUNCE_INTERVALS = 10;
+
+	/**
+	 * A watched directory and its history key.
+	 */
+	private static class Watched {
+
+		final Path directory;
+		final String key;
+
+		Watched(Path directory, String key) {
+			this.directory = directory;
+			this.key = key;
+		}
+	}
+
+	private final WatchService service;
+	private final Map<WatchKey, Watched> directories = new HashMap<WatchKey, Watched>();
+
+	/**
+	 * Starts watching the two trees.
+	 *
+	 * @param srcRoot the source directory
+	 * @param destRoot the destination directory
+	 */
+	DirectoryWatcher(File srcRoot, File destRoot) throws IOException {
+		service = FileSystems.getDefault().newWatchService();
+		try {
+			register(srcRoot.toPath(), "");
+			register(destRoot.toPath(), "");
+		} catch (IOException e) {
+			service.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Watches a directory and all its subdirectories. Registering a directory
+	 * again, e.g. after it has been renamed, updates its key.
+	 */
+	private void register(Path directory, String key) throws IOException {
+		WatchKey watchKey = directory.register(service, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+		directories.put(watchKey, new Watched(directory, key));
+		DirectoryStream<Path> stream = Files.newDirectoryStream(directory);
+		try {
+			for (Path child : stream) {
+				String name = child.getFileName().toString();
+				if (!FileCopier.isTemporary(name) && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS))
+					register(child, SyncTool.childKey(key, name));
+			}
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * @return the number of watched directories
+	 */
+	int size() {
+		return directories.size();
+	}
+
+	/**
+	 * Waits for changes. After the first change, further changes are
+	 * collected until no change has been reported for the debounce interval.
+	 *
+	 * @param timeout the maximum time in milliseconds to wait for the first
+	 *        change
+	 * @param debounce the debounce interval in milliseconds
+	 * @return the sorted keys of the changed directories, an empty set if
+	 *         nothing has changed before the timeout or null, if changes have
+	 *         been lost and the trees have to be rescanned
+	 */
+	SortedSet<String> poll(long timeout, long debounce) throws InterruptedException {
+		SortedSet<String> changed = new TreeSet<String>();
+		boolean complete = true;
+		WatchKey watchKey = service.poll(timeout, TimeUnit.MILLISECONDS);
+		long deadline = System.currentTimeMillis() + debounce * MAX_DEBOUNCE_INTERVALS;
+		while (watchKey != null) {
+			complete &= process(watchKey, changed);
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+				break;
+			watchKey = service.poll(Math.min(debounce, remaining), TimeUnit.MILLISECONDS);
+		}
+		return complete ? changed : null;
+	}
+
+	/**
+	 * Adds the key of the changed directory and watches new subdirectories.
+	 *
+	 * @return false if changes have been lost
+	 */
+	private boolean process(WatchKey watchKey, SortedSet<String> changed) {
+		boolean complete = true;
+		Watched watched = directories.get(watchKey);
+		for (WatchEvent<?> event : watchKey.pollEvents()) {
+			if (event.kind() == OVERFLOW) {
+				complete = false;
+				continue;
+			}
+			if (watched == null)
+				continue;
+			changed.add(watched.key);
+			String name = event.context().toString();
+			if (event.kind() == ENTRY_CREATE && !FileCopier.isTemporary(name)) {
+				Path child = watched.directory.resolve(name);
+				if (!Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS))
+					continue;
+				try {
+					register(child, SyncTool.childKey(watched.key, name));
+				} catch (NoSuchFileException e) {
+					// already gone again
+				} catch (IOException e) {
+					log.warn("Could not watch " + child + ": " + e.getMessage());
+					complete = false;
+				}
+			}
+		}
+		if (!watchKey.reset())
+			directories.remove(watchKey);
+		return complete;
+	}
+
+	@Override
+	public void close() throws IOException {
+		service.close();
+	}
+}
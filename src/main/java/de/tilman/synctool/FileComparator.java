@@ -0,0 +1,155 @@
+/*
+ * Copyright 2012 Tilman Liero
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.tilman.synctool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.codec.binary.Hex;
+
+
+/**
+ * Compares the contents of two files block by block. Both files are read in
+ * lockstep into direct buffers that are reused by each thread, and the
+ * comparison stops at the first block that differs. The contents are hashed
+ * on the fly, so the hash of identical files is available without reading
+ * them again.
+ */
+class FileComparator {
+
+	/**
+	 * Size of the blocks read from each file
+	 */
+	final static int BLOCK_SIZE = 256 * 1024;
+
+	private final String algorithm;
+
+	private final ThreadLocal<ByteBuffer[]> buffers = new ThreadLocal<ByteBuffer[]>() {
+		@Override
+		protected ByteBuffer[] initialValue() {
+			return new ByteBuffer[] { ByteBuffer.allocateDirect(BLOCK_SIZE), ByteBuffer.allocateDirect(BLOCK_SIZE) };
+		}
+	};
+
+	/**
+	 * @param algorithm the hash algorithm, "MD5" or "XXHASH64"
+	 */
+	FileComparator(String algorithm) throws NoSuchAlgorithmException {
+		this.algorithm = algorithm;
+		createDigest();
+	}
+
+	String getAlgorithm() {
+		return algorithm;
+	}
+
+	MessageDigest createDigest() throws NoSuchAlgorithmException {
+		if (algorithm.equalsIgnoreCase("XXHASH64"))
+			return new XXHash64();
+		return MessageDigest.getInstance(algorithm);
+	}
+
+	/**
+	 * Compares the contents of two files.
+	 *
+	 * @return the hex encoded hash of the contents if both files are equal,
+	 *         null if they differ
+	 */
+	String compare(File src, File dest) throws IOException {
+		ByteBuffer srcBuffer = buffers.get()[0];
+		ByteBuffer destBuffer = buffers.get()[1];
+
+		MessageDigest digest;
+		try {
+			digest = createDigest();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+
+		FileChannel srcChannel = FileChannel.open(src.toPath(), StandardOpenOption.READ);
+		try {
+			FileChannel destChannel = FileChannel.open(dest.toPath(), StandardOpenOption.READ);
+			try {
+				while (true) {
+					int srcRead = fill(srcChannel, srcBuffer);
+					int destRead = fill(destChannel, destBuffer);
+					if (srcRead != destRead || !srcBuffer.equals(destBuffer))
+						return null;
+					if (srcRead == 0)
+						break;
+					digest.update(srcBuffer);
+				}
+			} finally {
+				destChannel.close();
+			}
+		} finally {
+			srcChannel.close();
+		}
+
+		return new String(Hex.encodeHex(digest.digest()));
+	}
+
+	/**
+	 * Hashes the contents of a single file.
+	 *
+	 * @return the hex encoded hash
+	 */
+	String hash(File file) throws IOException {
+		ByteBuffer buffer = buffers.get()[0];
+
+		MessageDigest digest;
+		try {
+			digest = createDigest();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			while (fill(channel, buffer) > 0) {
+				digest.update(buffer);
+			}
+		} finally {
+			channel.close();
+		}
+
+		return new String(Hex.encodeHex(digest.digest()));
+	}
+
+	/**
+	 * Reads from the channel until the buffer is full or the end of the file
+	 * has been reached. The buffer is flipped for reading.
+	 *
+	 * @return the number of bytes read
+	 */
+	private static int fill(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.clear();
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0)
+				break;
+		}
+		buffer.flip();
+		return buffer.remaining();
+	}
+}
@@ -0,0 +1,567 @@
+/*
+ * Copyright 2012 Tilman Liero
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.tilman.synctool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+
+/**
+ * Copies files and directories. The data is transferred with
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+ * which lets the kernel copy without passing the data through the Java heap,
+ * falling back to a large direct buffer if the channel transfers nothing.
+ * <p>
+ * Copies are written to a temporary file or directory next to the target,
+ * which gets the modification time of the source and is then renamed to the
+ * target. The data is forced to disk before the rename, so an interrupted
+ * copy or a power loss never leaves a partially written target behind, only
+ * a temporary file that is removed by the next run.
+ * <p>
+ * Large files can also be updated in place, writing only the blocks that
+ * differ. While such an update is running, a marker file next to the target
+ * records that the target is incomplete; see {@link #resetPartial(File)}.
+ * <p>
+ * Interrupted copies can be resumed from their temporary file or directory.
+ * File copies report their progress every time a certain amount of data has
+ * been forced to disk, and a resumed copy continues from the last position
+ * reported. A resumed directory copy keeps the files that already have the
+ * size and modification time of their source.
+ * <p>
+ * A {@link Throttle} can limit the rate of the copies. The data is then
+ * transferred in chunks of {@link Throttle#CHUNK_SIZE}, and every file
+ * created by a directory copy counts as an operation.
+ * <p>
+ * Files can be cloned within a file system that supports reflinks, like
+ * btrfs or XFS, which shares the data instead of copying it.
+ */
+class FileCopier {
+
+	private final static Logger log = Logger.getLogger(FileCopier.class);
+
+	private final static String TEMP_PREFIX = ".synctool-";
+	private final static String TEMP_SUFFIX = ".tmp";
+	private final static String PARTIAL_SUFFIX = ".partial";
+
+	/**
+	 * Maximum number of bytes handed to a single transferTo() call
+	 */
+	private final static long TRANSFER_SIZE = 64L * 1024 * 1024;
+
+	final static int BUFFER_SIZE = 1024 * 1024;
+
+	/**
+	 * Default amount of data after which the progress of a file copy is
+	 * forced to disk and reported
+	 */
+	final static long CHECKPOINT_SIZE = 256L * 1024 * 1024;
+
+	/**
+	 * Size of the blocks compared and rewritten by in-place updates
+	 */
+	final static int DELTA_BLOCK_SIZE = 64 * 1024;
+
+	/**
+	 * Receives the progress of a copy that can be resumed.
+	 */
+	interface Progress {
+
+		/**
+		 * @param position the number of bytes of the target that have been
+		 *        forced to disk
+		 */
+		void copied(long position) throws IOException;
+	}
+
+	private final long checkpointSize;
+
+	/**
+	 * File systems that do not support cloning
+	 */
+	private final Set<FileStore> withoutReflinks = ConcurrentHashMap.newKeySet();
+
+	private final ThreadLocal<ByteBuffer> buffer = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+	};
+
+	private final ThreadLocal<ByteBuffer[]> deltaBuffers = new ThreadLocal<ByteBuffer[]>() {
+		@Override
+		protected ByteBuffer[] initialValue() {
+			return new ByteBuffer[] { ByteBuffer.allocateDirect(DELTA_BLOCK_SIZE), ByteBuffer.allocateDirect(DELTA_BLOCK_SIZE) };
+		}
+	};
+
+	FileCopier() {
+		this(CHECKPOINT_SIZE);
+	}
+
+	/**
+	 * @param checkpointSize the amount of data in bytes after which the
+	 *        progress of a file copy is forced to disk and reported
+	 */
+	FileCopier(long checkpointSize) {
+		this.checkpointSize = checkpointSize;
+	}
+
+	/**
+	 * Checks whether a file name belongs to a temporary file of an unfinished
+	 * copy.
+	 */
+	static boolean isTemporary(String name) {
+		return name.startsWith(TEMP_PREFIX) && name.endsWith(TEMP_SUFFIX);
+	}
+
+	/**
+	 * Checks whether a file name belongs to the marker of an unfinished
+	 * in-place update.
+	 */
+	static boolean isPartialMarker(String name) {
+		return name.startsWith(TEMP_PREFIX) && name.endsWith(PARTIAL_SUFFIX);
+	}
+
+	/**
+	 * @return the name of the target of a temporary file
+	 */
+	static String temporaryTarget(String name) {
+		return name.substring(TEMP_PREFIX.length(), name.length() - TEMP_SUFFIX.length());
+	}
+
+	/**
+	 * @return the temporary file or directory written before the target
+	 */
+	static File temporaryFile(File target) {
+		return new File(target.getParentFile(), TEMP_PREFIX + target.getName() + TEMP_SUFFIX);
+	}
+
+	private static File partialMarker(File target) {
+		return new File(target.getParentFile(), TEMP_PREFIX + target.getName() + PARTIAL_SUFFIX);
+	}
+
+	/**
+	 * Handles the marker of an interrupted in-place update. The modification
+	 * time of the incompletely updated file is reset, so the next
+	 * synchronization considers it older than its counterpart and overwrites
+	 * it.
+	 *
+	 * @param marker the marker file
+	 * @return the incompletely updated file
+	 */
+	static File resetPartial(File marker) throws IOException {
+		String name = marker.getName();
+		File target = new File(marker.getParentFile(), name.substring(TEMP_PREFIX.length(), name.length() - PARTIAL_SUFFIX.length()));
+		if (target.exists())
+			Files.setLastModifiedTime(target.toPath(), FileTime.fromMillis(0));
+		Files.deleteIfExists(marker.toPath());
+		return target;
+	}
+
+	/**
+	 * Copies a file into a directory, replacing an existing file of the same
+	 * name.
+	 * 
+	 * @return the number of bytes copied
+	 */
+	long copyFileToDirectory(File src, File directory) throws IOException {
+		return copyFileToDirectory(src, directory, 0, null, null);
+	}
+
+	/**
+	 * Copies a file into a directory, continuing an interrupted copy if
+	 * possible.
+	 * 
+	 * @param resumeAt the last position reported by the interrupted copy or 0
+	 * @param progress receives the progress of the copy or null
+	 * @param throttle limits the rate of the copy or null
+	 * @return the number of bytes copied
+	 */
+	long copyFileToDirectory(File src, File directory, long resumeAt, Progress progress, Throttle throttle) throws IOException {
+		File target = new File(directory, src.getName());
+		File temp = temporaryFile(target);
+		try {
+			long copied = copyContents(src, temp, resumeAt, progress, throttle);
+			rename(temp, target);
+			return copied;
+		} catch (IOException e) {
+			// the progress reported so far stays usable
+			if (progress == null)
+				temp.delete();
+			throw e;
+		}
+	}
+
+	/**
+	 * Clones a file of the same file system into a directory. The clone
+	 * shares the data of the original until one of them is changed, so
+	 * nothing is copied. As Java has no access to the FICLONE ioctl, the
+	 * clone is made by <code>cp --reflink=always</code>.
+	 * 
+	 * @param original the file to be cloned
+	 * @param directory the target directory
+	 * @param name the name of the clone
+	 * @param lastModified the modification time of the clone
+	 * @return false if the file could not be cloned, because the file system
+	 *         does not support reflinks, the original is on another one or
+	 *         the clone failed for another reason
+	 */
+	boolean cloneFileToDirectory(File original, File directory, String name, long lastModified) throws IOException {
+		FileStore store = Files.getFileStore(directory.toPath());
+		if (withoutReflinks.contains(store) || !store.equals(Files.getFileStore(original.toPath())))
+			return false;
+		File target = new File(directory, name);
+		File temp = temporaryFile(target);
+		int status;
+		String output;
+		try {
+			ProcessBuilder builder = new ProcessBuilder("cp", "--reflink=always", "--", original.getPath(), temp.getPath())
+					.redirectErrorStream(true);
+			// the message tells whether reflinks are supported at all
+			builder.environment().put("LC_ALL", "C");
+			Process process = builder.start();
+			output = IOUtils.toString(process.getInputStream(), Charset.defaultCharset()).trim();
+			status = process.waitFor();
+		} catch (IOException e) {
+			// there is no cp that could clone the file
+			status = -1;
+			output = "Operation not supported";
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			temp.delete();
+			throw new InterruptedIOException("Interrupted while cloning " + original);
+		}
+		if (status != 0) {
+			temp.delete();
+			if (isReflinkUnsupported(output)) {
+				log.info("Reflinks are not supported on " + store + ", copying files instead of cloning them");
+				withoutReflinks.add(store);
+			} else {
+				log.warn("Could not clone " + original + ": " + output);
+			}
+			return false;
+		}
+		try {
+			Files.setLastModifiedTime(temp.toPath(), FileTime.fromMillis(lastModified));
+			rename(temp, target);
+			return true;
+		} catch (IOException e) {
+			temp.delete();
+			throw e;
+		}
+	}
+
+	/**
+	 * Checks whether a clone failed because the file system cannot clone any
+	 * file, as opposed to a problem with a single file like a lack of space.
+	 * 
+	 * @param message the output of cp
+	 */
+	static boolean isReflinkUnsupported(String message) {
+		return message.contains("Operation not supported") || message.contains("Invalid cross-device link")
+				|| message.contains("Inappropriate ioctl") || message.contains("Function not implemented")
+				|| message.contains("unrecognized option") || message.contains("invalid argument");
+	}
+
+	/**
+	 * Copies a directory with all its contents into a directory. The copy is
+	 * only visible under its final name once it is complete.
+	 * 
+	 * @return the number of bytes copied
+	 */
+	long copyDirectoryToDirectory(File srcDir, File directory) throws IOException {
+		return copyDirectoryToDirectory(srcDir, directory, false, null);
+	}
+
+	/**
+	 * Copies a directory with all its contents into a directory. A resumable
+	 * copy continues in the temporary directory of an interrupted copy,
+	 * keeping the files that already match their source, and leaves its
+	 * temporary directory behind if it fails.
+	 * 
+	 * @param resumable true if the copy can be resumed
+	 * @param throttle limits the rate of the copy or null
+	 * @return the number of bytes copied
+	 */
+	long copyDirectoryToDirectory(File srcDir, File directory, boolean resumable, Throttle throttle) throws IOException {
+		File target = new File(directory, srcDir.getName());
+		if (target.exists())
+			throw new IOException("Target directory " + target + " already exists");
+		File temp = temporaryFile(target);
+		if (!resumable)
+			FileUtils.deleteDirectory(temp);
+		try {
+			long copied = copyDirectory(srcDir, temp, resumable, throttle);
+			rename(temp, target);
+			return copied;
+		} catch (IOException e) {
+			if (!resumable)
+				FileUtils.deleteQuietly(temp);
+			throw e;
+		}
+	}
+
+	/**
+	 * Updates an existing file in a directory in place. Source and target are
+	 * compared block by block at the same offsets and only differing blocks
+	 * are written, so the amount of data written depends on the size of the
+	 * change rather than on the size of the file. Data inserted into the
+	 * middle of a file shifts all following blocks, though, which are then
+	 * rewritten.
+	 *
+	 * @return the number of bytes written
+	 */
+	long updateFileInDirectory(File src, File directory) throws IOException {
+		return updateFileInDirectory(src, directory, null);
+	}
+
+	/**
+	 * Updates an existing file in a directory in place, see
+	 * {@link #updateFileInDirectory(File, File)}. Both files are read at the
+	 * rate of the throttle.
+	 * 
+	 * @param throttle limits the rate of the update or null
+	 * @return the number of bytes written
+	 */
+	long updateFileInDirectory(File src, File directory, Throttle throttle) throws IOException {
+		File target = new File(directory, src.getName());
+		File marker = partialMarker(target);
+		Files.newOutputStream(marker.toPath()).close();
+
+		long written = 0;
+		FileChannel in = FileChannel.open(src.toPath(), StandardOpenOption.READ);
+		try {
+			FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			try {
+				ByteBuffer[] buffers = deltaBuffers.get();
+				ByteBuffer srcBlock = buffers[0];
+				ByteBuffer destBlock = buffers[1];
+				long size = in.size();
+				long position = 0;
+				while (position < size) {
+					if (throttle != null)
+						throttle.acquire(2L * DELTA_BLOCK_SIZE);
+					long start = System.nanoTime();
+					fill(in, srcBlock, position);
+					if (srcBlock.remaining() == 0)
+						break;
+					fill(out, destBlock, position);
+					int transferred = srcBlock.limit() + destBlock.limit();
+					if (!srcBlock.equals(destBlock)) {
+						while (srcBlock.hasRemaining()) {
+							int blockWritten = out.write(srcBlock, position + srcBlock.position());
+							written += blockWritten;
+							transferred += blockWritten;
+						}
+					}
+					if (throttle != null)
+						throttle.record(transferred, System.nanoTime() - start);
+					position += srcBlock.limit();
+				}
+				if (position != size || in.size() != size)
+					throw new IOException("File " + src + " changed while being copied");
+				if (out.size() > size)
+					out.truncate(size);
+				// the data has to be on disk before the marker is removed
+				out.force(false);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+		Files.setLastModifiedTime(target.toPath(), FileTime.fromMillis(src.lastModified()));
+		Files.delete(marker.toPath());
+		return written;
+	}
+
+	/**
+	 * Reads a block starting at the given position into the buffer and flips
+	 * it. The buffer contains less than a full block only at the end of the
+	 * file.
+	 */
+	private static void fill(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		buffer.clear();
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				break;
+		}
+		buffer.flip();
+	}
+
+	private long copyDirectory(File srcDir, File destDir, boolean resume, Throttle throttle) throws IOException {
+		if (!(resume && destDir.isDirectory()) && !destDir.mkdir())
+			throw new IOException("Could not create directory " + destDir);
+		File[] files = srcDir.listFiles();
+		if (files == null)
+			throw new IOException("Could not list directory " + srcDir);
+		long copied = 0;
+		for (File file : files) {
+			File target = new File(destDir, file.getName());
+			if (file.isDirectory()) {
+				if (throttle != null && !(resume && target.isDirectory()))
+					throttle.acquireOperation();
+				copied += copyDirectory(file, target, resume, throttle);
+			} else if (!resume || !target.isFile() || target.length() != file.length() || target.lastModified() != file.lastModified()) {
+				if (throttle != null)
+					throttle.acquireOperation();
+				copied += copyContents(file, target, 0, null, throttle);
+			}
+		}
+		// set after the contents, which change the modification time
+		destDir.setLastModified(srcDir.lastModified());
+		return copied;
+	}
+
+	/**
+	 * Copies the contents and the modification time of a file.
+	 * 
+	 * @return the number of bytes copied
+	 */
+	long copyContents(File src, File dest) throws IOException {
+		return copyContents(src, dest, 0, null, null);
+	}
+
+	/**
+	 * Copies the contents and the modification time of a file, keeping the
+	 * data the target already holds up to a given position.
+	 * 
+	 * @param resumeAt the position to continue from, ignored if the target is
+	 *        shorter
+	 * @param progress receives the progress of the copy or null
+	 * @param throttle limits the rate of the copy or null
+	 * @return the number of bytes copied
+	 */
+	private long copyContents(File src, File dest, long resumeAt, Progress progress, Throttle throttle) throws IOException {
+		if (resumeAt > 0 && !(dest.isFile() && dest.length() >= resumeAt))
+			resumeAt = 0;
+		long size;
+		FileChannel in = FileChannel.open(src.toPath(), StandardOpenOption.READ);
+		try {
+			FileChannel out = resumeAt > 0 ? FileChannel.open(dest.toPath(), StandardOpenOption.WRITE) : FileChannel.open(
+					dest.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+			try {
+				size = in.size();
+				if (resumeAt > size)
+					resumeAt = 0;
+				out.truncate(resumeAt);
+				out.position(resumeAt);
+				long position = resumeAt;
+				long checkpoint = position;
+				long transferSize = progress != null ? Math.min(TRANSFER_SIZE, checkpointSize) : TRANSFER_SIZE;
+				if (throttle != null)
+					transferSize = Math.min(transferSize, Throttle.CHUNK_SIZE);
+				while (position < size) {
+					long chunk = Math.min(size - position, transferSize);
+					if (throttle != null)
+						throttle.acquire(chunk);
+					long start = System.nanoTime();
+					long transferred = in.transferTo(position, chunk, out);
+					if (throttle != null)
+						throttle.record(transferred, System.nanoTime() - start);
+					if (transferred <= 0)
+						break;
+					position += transferred;
+					if (progress != null && position - checkpoint >= checkpointSize && position < size) {
+						out.force(false);
+						progress.copied(position);
+						checkpoint = position;
+					}
+				}
+				if (position < size)
+					position += copyBuffered(in, out, position, throttle);
+				if (position != size || in.size() != size)
+					throw new IOException("File " + src + " changed while being copied");
+				// the data has to be on disk before the copy is renamed and recorded
+				out.force(false);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+		Files.setLastModifiedTime(dest.toPath(), FileTime.fromMillis(src.lastModified()));
+		return size - resumeAt;
+	}
+
+	private long copyBuffered(FileChannel in, FileChannel out, long position, Throttle throttle) throws IOException {
+		ByteBuffer buffer = this.buffer.get();
+		long copied = 0;
+		in.position(position);
+		out.position(position);
+		buffer.clear();
+		while (in.read(buffer) >= 0 || buffer.position() > 0) {
+			buffer.flip();
+			int written = out.write(buffer);
+			copied += written;
+			buffer.compact();
+			if (throttle != null)
+				throttle.acquire(written);
+		}
+		return copied;
+	}
+
+	/**
+	 * Moves a completed temporary file or directory to its target.
+	 */
+	static void rename(File temp, File target) throws IOException {
+		Path source = temp.toPath();
+		try {
+			Files.move(source, target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Forces the entries of a directory to disk, so a file renamed into it
+	 * survives a power loss. Where directories cannot be opened, as on
+	 * Windows, nothing is done.
+	 */
+	static void forceDirectory(File directory) throws IOException {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+		} catch (IOException e) {
+			return;
+		}
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2012 Tilman Liero
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.tilman.synctool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * A file together with its attributes. The attributes are read once when the
+ * directory is listed and reused for all decisions about the file, so every
+ * entry costs a single stat call.
+ */
+class FileEntry {
+
+	private final File file;
+	private final BasicFileAttributes attributes;
+
+	FileEntry(File file, BasicFileAttributes attributes) {
+		this.file = file;
+		this.attributes = attributes;
+	}
+
+	/**
+	 * Reads the attributes of a single file.
+	 */
+	static FileEntry read(File file) throws IOException {
+		return new FileEntry(file, Files.readAttributes(file.toPath(), BasicFileAttributes.class));
+	}
+
+	/**
+	 * Reads the attributes of a single file.
+	 * 
+	 * @return the entry or null, if the file does not exist (anymore)
+	 */
+	static FileEntry readIfExists(File file) throws IOException {
+		try {
+			return read(file);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Lists a directory and reads the attributes of its entries. Entries that
+	 * disappear while the directory is read are skipped.
+	 */
+	static List<FileEntry> list(File directory) throws IOException {
+		return list(directory, null);
+	}
+
+	/**
+	 * Lists a directory and records the time needed to read the attributes of
+	 * each entry.
+	 * 
+	 * @param statLatency the histogram for the durations or null
+	 */
+	static List<FileEntry> list(File directory, SyncMetrics.Histogram statLatency) throws IOException {
+		List<FileEntry> entries = new ArrayList<FileEntry>();
+		DirectoryStream<Path> stream = Files.newDirectoryStream(directory.toPath());
+		try {
+			for (Path path : stream) {
+				long start = System.nanoTime();
+				try {
+					entries.add(new FileEntry(path.toFile(), Files.readAttributes(path, BasicFileAttributes.class)));
+				} catch (NoSuchFileException e) {
+					// deleted in the meantime
+				}
+				if (statLatency != null)
+					statLatency.record(System.nanoTime() - start);
+			}
+		} finally {
+			stream.close();
+		}
+		return entries;
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	String getName() {
+		return file.getName();
+	}
+
+	boolean isDirectory() {
+		return attributes.isDirectory();
+	}
+
+	long length() {
+		return attributes.size();
+	}
+
+	long lastModified() {
+		return attributes.lastModifiedTime().toMillis();
+	}
+
+	/**
+	 * @return an object identifying the file on its file system (device and
+	 *         inode on Unix) or null, if not available
+	 */
+	Object fileKey() {
+		return attributes.fileKey();
+	}
+
+	/**
+	 * @return an entry of the same file that reports a different size, like
+	 *         a manifest that reports the size of the file it describes
+	 */
+	FileEntry withLength(final long length) {
+		final BasicFileAttributes attributes = this.attributes;
+		return new FileEntry(file, new BasicFileAttributes() {
+			@Override
+			public FileTime lastModifiedTime() {
+				return attributes.lastModifiedTime();
+			}
+
+			@Override
+			public FileTime lastAccessTime() {
+				return attributes.lastAccessTime();
+			}
+
+			@Override
+			public FileTime creationTime() {
+				return attributes.creationTime();
+			}
+
+			@Override
+			public boolean isRegularFile() {
+				return attributes.isRegularFile();
+			}
+
+			@Override
+			public boolean isDirectory() {
+				return attributes.isDirectory();
+			}
+
+			@Override
+			public boolean isSymbolicLink() {
+				return attributes.isSymbolicLink();
+			}
+
+			@Override
+			public boolean isOther() {
+				return attributes.isOther();
+			}
+
+			@Override
+			public long size() {
+				return length;
+			}
+
+			@Override
+			public Object fileKey() {
+				return attributes.fileKey();
+			}
+		});
+	}
+
+	@Override
+	public String toString() {
+		return file.toString();
+	}
+}
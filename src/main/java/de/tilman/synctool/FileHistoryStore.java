@@ -0,0 +1,476 @@
+/*
+ * Copyright 2012 Tilman Liero
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package de.tilman.synctool;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * The synchronization history in a file of its own, without a database. The
+ * history file contains the entries sorted by path, followed by an
+ * open-addressing hash table of their offsets. It is mapped into memory, so
+ * opening the history does not read it and a lookup touches only the pages
+ * of its table slots and entry.
+ * <p>
+ * Changes are kept in memory and appended to a journal next to the history
+ * file. Like the {@link HistoryWriter}, the journal is written in batches,
+ * but every removal is written immediately together with the changes before
+ * it and forced to disk. A journal left behind by a killed run is replayed
+ * when the history is opened. When the journal has grown to a tenth of the
+ * history, it is merged into a new history file on close.
+ * <p>
+ * Both files name the canonical path of their source directory, and a file
+ * of another source is refused.
+ * <p>
+ * File format: a header of four ints (magic, version, number of entries,
+ * number of table slots) and the source as (int length, UTF-8 path), the
+ * entries as (int path length, UTF-8 path, long size, long mtime) and the
+ * table as one int offset per slot, 0 for empty slots. The journal starts
+ * with an int magic and the source in modified UTF-8.
+ */
+class FileHistoryStore implements HistoryStore {
+
+	private final static Logger log = Logger.getLogger(FileHistoryStore.class);
+
+	private final static int MAGIC = 0x53594e48;
+	private final static int VERSION = 2;
+	private final static int HEADER_SIZE = 16;
+	private final static int JOURNAL_MAGIC = 0x53594e4a;
+
+	/**
+	 * Stored as size of directories
+	 */
+	private final static long NO_SIZE = -1;
+
+	/**
+	 * The journal is merged into the history file once it has this fraction
+	 * of the number of history entries
+	 */
+	private final static int COMPACT_RATIO = 10;
+
+	/**
+	 * The most entries whose table size is still an int
+	 */
+	private final static int MAX_ENTRIES = 1 << 29;
+
+	private final static byte ADD = 'A';
+	private final static byte UPDATE = 'U';
+	private final static byte REMOVE = 'R';
+
+	/**
+	 * A change made since the history file was written
+	 */
+	private static class Change {
+
+		final boolean removed;
+		final long size;
+		final long mtime;
+
+		Change(boolean removed, long size, long mtime) {
+			this.removed = removed;
+			this.size = size;
+			this.mtime = mtime;
+		}
+	}
+
+	private final static Change REMOVED = new Change(true, NO_SIZE, 0);
+
+	private final File file;
+	private final File journalFile;
+	private final String source;
+	private final ByteBuffer data;
+	private final int entriesOffset;
+	private final int count;
+	private final int tableSize;
+	private final int tableOffset;
+	private final ConcurrentHashMap<String, Change> changes = new ConcurrentHashMap<String, Change>();
+
+	private final FileChannel journalChannel;
+	private final DataOutputStream journal;
+	private final int batchSize;
+	private final long flushInterval;
+	private int journalRecords;
+	private int pendingRecords;
+	private long lastFlush = System.currentTimeMillis();
+
+	/**
+	 * Opens the history file of a source directory, replaying the journal of
+	 * an interrupted run.
+	 * 
+	 * @param file the history file, which need not exist yet
+	 * @param source the canonical path of the source directory
+	 * @param batchSize the number of changes after which the journal is
+	 *        written
+	 * @param flushInterval the maximum time in milliseconds between two
+	 *        writes of the journal
+	 * @param readOnly true to keep all changes in memory, for dry runs
+	 */
+	FileHistoryStore(File file, String source, int batchSize, long flushInterval, boolean readOnly) throws IOException {
+		this.file = file;
+		this.journalFile = new File(file.getPath() + ".journal");
+		this.source = source;
+		this.batchSize = batchSize;
+		this.flushInterval = flushInterval;
+
+		if (file.exists()) {
+			FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			try {
+				if (channel.size() > Integer.MAX_VALUE)
+					throw new IOException("History file " + file + " is too large");
+				data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			} finally {
+				channel.close();
+			}
+			if (data.limit() < HEADER_SIZE + 4 || data.getInt(0) != MAGIC)
+				throw new IOException(file + " is not a history file");
+			if (data.getInt(4) != VERSION)
+				throw new IOException("Unsupported version " + data.getInt(4) + " of history file " + file);
+			checkSource(readString(HEADER_SIZE), file);
+			entriesOffset = HEADER_SIZE + 4 + data.getInt(HEADER_SIZE);
+			count = data.getInt(8);
+			tableSize = data.getInt(12);
+			tableOffset = data.limit() - tableSize * 4;
+		} else {
+			data = null;
+			entriesOffset = 0;
+			count = 0;
+			tableSize = 0;
+			tableOffset = 0;
+		}
+
+		if (journalFile.exists())
+			replayJournal(readOnly);
+		if (readOnly) {
+			journalChannel = null;
+			journal = null;
+		} else {
+			journalChannel = FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+					StandardOpenOption.APPEND);
+			journal = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(journalChannel)));
+			if (journalChannel.size() == 0) {
+				journal.writeInt(JOURNAL_MAGIC);
+				journal.writeUTF(source);
+				journal.flush();
+			}
+		}
+	}
+
+	private void checkSource(String fileSource, File file) throws IOException {
+		if (!fileSource.equals(source))
+			throw new IOException(file + " belongs to the source directory " + fileSource + ", not to " + source);
+	}
+
+	/**
+	 * Reads the changes of an interrupted run. A record cut off by the end of
+	 * the run is removed from the journal.
+	 */
+	private void replayJournal(boolean readOnly) throws IOException {
+		long valid = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+		try {
+			if (in.readInt() != JOURNAL_MAGIC)
+				throw new IOException(journalFile + " is not a history journal");
+			String journalSource = in.readUTF();
+			checkSource(journalSource, journalFile);
+			valid = 4 + 2 + utfLength(journalSource);
+			while (true) {
+				byte type = in.readByte();
+				String path = in.readUTF();
+				if (type == REMOVE) {
+					changes.put(path, REMOVED);
+				} else {
+					long size = in.readLong();
+					long mtime = in.readLong();
+					changes.put(path, new Change(false, size, mtime));
+				}
+				journalRecords++;
+				valid += 1 + 2 + utfLength(path) + (type == REMOVE ? 0 : 16);
+			}
+		} catch (EOFException e) {
+			// end of the journal
+		} finally {
+			in.close();
+		}
+		log.info("Replayed " + journalRecords + " history changes of an interrupted run");
+		if (!readOnly && valid < journalFile.length()) {
+			FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE);
+			try {
+				channel.truncate(valid);
+			} finally {
+				channel.close();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of bytes of a string written by
+	 *         {@link DataOutputStream#writeUTF(String)}, without the length
+	 */
+	private static int utfLength(String string) {
+		int length = 0;
+		for (int i = 0; i < string.length(); i++) {
+			char c = string.charAt(i);
+			length += c >= 0x0001 && c <= 0x007f ? 1 : c <= 0x07ff ? 2 : 3;
+		}
+		return length;
+	}
+
+	@Override
+	public long size() {
+		return count;
+	}
+
+	@Override
+	public boolean contains(String path) {
+		Change change = changes.get(path);
+		if (change != null)
+			return !change.removed;
+		return find(path.getBytes(StandardCharsets.UTF_8)) != 0;
+	}
+
+	/**
+	 * @return the offset of the entry with the given path or 0, if there is
+	 *         none
+	 */
+	private int find(byte[] path) {
+		if (tableSize == 0)
+			return 0;
+		int mask = tableSize - 1;
+		for (int slot = hash(path) & mask;; slot = (slot + 1) & mask) {
+			int offset = data.getInt(tableOffset + slot * 4);
+			if (offset == 0 || matches(offset, path))
+				return offset;
+		}
+	}
+
+	private boolean matches(int offset, byte[] path) {
+		if (data.getInt(offset) != path.length)
+			return false;
+		for (int i = 0; i < path.length; i++) {
+			if (data.get(offset + 4 + i) != path[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * FNV-1a hash of the UTF-8 bytes of a path
+	 */
+	private static int hash(byte[] path) {
+		int hash = 0x811c9dc5;
+		for (byte b : path) {
+			hash = (hash ^ (b & 0xff)) * 0x01000193;
+		}
+		return hash ^ (hash >>> 16);
+	}
+
+	@Override
+	public synchronized void add(String path, Long size, long mtime) throws IOException {
+		record(ADD, path, new Change(false, size == null ? NO_SIZE : size, mtime));
+	}
+
+	@Override
+	public synchronized void update(String path, Long size, long mtime) throws IOException {
+		record(UPDATE, path, new Change(false, size == null ? NO_SIZE : size, mtime));
+	}
+
+	@Override
+	public synchronized void remove(String path) throws IOException {
+		record(REMOVE, path, REMOVED);
+		flush();
+		if (journalChannel != null)
+			journalChannel.force(false);
+	}
+
+	private void record(byte type, String path, Change change) throws IOException {
+		changes.put(path, change);
+		if (journal == null)
+			return;
+		journal.writeByte(type);
+		journal.writeUTF(path);
+		if (type != REMOVE) {
+			journal.writeLong(change.size);
+			journal.writeLong(change.mtime);
+		}
+		journalRecords++;
+		if (++pendingRecords >= batchSize || System.currentTimeMillis() - lastFlush >= flushInterval)
+			flush();
+	}
+
+	private void flush() throws IOException {
+		if (journal == null || pendingRecords == 0)
+			return;
+		journal.flush();
+		pendingRecords = 0;
+		lastFlush = System.currentTimeMillis();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (journal == null)
+			return;
+		journal.close();
+		if (journalRecords > 0 && journalRecords >= count / COMPACT_RATIO) {
+			log.info("Writing " + journalRecords + " history changes to " + file);
+			compact();
+		}
+	}
+
+	/**
+	 * Merges the history file and the changes into a new history file, which
+	 * replaces the old one together with the journal.
+	 */
+	private void compact() throws IOException {
+		Iterator<Map.Entry<String, Change>> changeIterator = new TreeMap<String, Change>(changes).entrySet().iterator();
+		int[] offsets = new int[count + changes.size()];
+		int[] hashes = new int[offsets.length];
+		int entries = 0;
+
+		File temp = new File(file.getPath() + ".tmp");
+		FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			OutputStream stream = Channels.newOutputStream(channel);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+			out.write(new byte[HEADER_SIZE]);
+			byte[] sourceBytes = source.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(sourceBytes.length);
+			out.write(sourceBytes);
+
+			// both the history file and the changes are sorted by path
+			int baseIndex = 0;
+			int baseOffset = entriesOffset;
+			String basePath = count > 0 ? readString(baseOffset) : null;
+			Map.Entry<String, Change> change = changeIterator.hasNext() ? changeIterator.next() : null;
+			while (basePath != null || change != null) {
+				int order = basePath == null ? 1 : change == null ? -1 : basePath.compareTo(change.getKey());
+				byte[] path = null;
+				long size = 0, mtime = 0;
+				if (order < 0) {
+					path = basePath.getBytes(StandardCharsets.UTF_8);
+					size = data.getLong(baseOffset + 4 + path.length);
+					mtime = data.getLong(baseOffset + 12 + path.length);
+				} else if (!change.getValue().removed) {
+					path = change.getKey().getBytes(StandardCharsets.UTF_8);
+					size = change.getValue().size;
+					mtime = change.getValue().mtime;
+				}
+
+				if (path != null) {
+					if (out.size() > Integer.MAX_VALUE - path.length - 20)
+						throw new IOException("History file " + file + " is too large");
+					offsets[entries] = out.size();
+					hashes[entries++] = hash(path);
+					out.writeInt(path.length);
+					out.write(path);
+					out.writeLong(size);
+					out.writeLong(mtime);
+				}
+
+				if (order <= 0) {
+					baseOffset += 20 + data.getInt(baseOffset);
+					basePath = ++baseIndex < count ? readString(baseOffset) : null;
+				}
+				if (order >= 0)
+					change = changeIterator.hasNext() ? changeIterator.next() : null;
+			}
+
+			int slots = tableSize(entries);
+			int[] table = new int[slots];
+			for (int i = 0; i < entries; i++) {
+				int slot = hashes[i] & (slots - 1);
+				while (table[slot] != 0) {
+					slot = (slot + 1) & (slots - 1);
+				}
+				table[slot] = offsets[i];
+			}
+			for (int offset : table) {
+				out.writeInt(offset);
+			}
+			out.flush();
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(VERSION).putInt(entries).putInt(slots).flip();
+			channel.write(header, 0);
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+
+		try {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		// replaying the journal again on the new file would not change it
+		Files.delete(journalFile.toPath());
+	}
+
+	/**
+	 * @return the number of table slots for a number of entries, the power of
+	 *         two that keeps at least half of the slots empty, so a lookup of
+	 *         a missing path probes only a few slots
+	 */
+	static int tableSize(int entries) throws IOException {
+		if (entries > MAX_ENTRIES)
+			throw new IOException("Too many history entries: " + entries);
+		return Integer.highestOneBit(Math.max(entries, 1) * 2 - 1) << 1;
+	}
+
+	/**
+	 * @return the number of slots of the hash table of the history file
+	 */
+	int getTableSize() {
+		return tableSize;
+	}
+
+	/**
+	 * Reads a path stored as int length and UTF-8 bytes.
+	 */
+	private String readString(int offset) {
+		byte[] path = new byte[data.getInt(offset)];
+		for (int i = 0; i < path.length; i++) {
+			path[i] = data.get(offset + 4 + i);
+		}
+		return new String(path, StandardCharsets.UTF_8);
+	}
+}
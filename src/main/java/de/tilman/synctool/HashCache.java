@@ -0,0 +1,96 @@
+/*
+ * Copyright 2012 Tilman Liero
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.tilman.synctool;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+
+/**
+ * Looks up the content hashes of files computed by earlier runs. A cached hash
+ * is only valid while the size, modification time and inode of the file are
+ * unchanged, so modified files are hashed again automatically. New hashes
+ * are written by the {@link HistoryWriter}.
+ */
+class HashCache {
+
+	/**
+	 * Marks hashes of files in the source directory
+	 */
+	final static String SOURCE = "S";
+
+	/**
+	 * Marks hashes of files in the destination directory
+	 */
+	final static String DESTINATION = "D";
+
+	private final PreparedStatement selectHashSql;
+
+	/**
+	 * @param connection the database connection
+	 * @param sourceId the id of the source directory
+	 * @param algorithm the hash algorithm in use
+	 */
+	HashCache(Connection connection, int sourceId, String algorithm) throws SQLException {
+		selectHashSql = connection.prepareStatement("SELECT size, mtime, inode, hash FROM Hash WHERE idSource=" + sourceId
+				+ " AND side=? AND path=? AND algorithm=?");
+		selectHashSql.setString(3, algorithm);
+	}
+
+	/**
+	 * Returns the cached hash of a file.
+	 *
+	 * @param side {@link #SOURCE} or {@link #DESTINATION}
+	 * @param key the history key of the file
+	 * @param file the file
+	 * @return the hash or null, if no valid hash is cached
+	 */
+	synchronized String get(String side, String key, FileEntry file) throws SQLException {
+		selectHashSql.setString(1, side);
+		selectHashSql.setString(2, key);
+		ResultSet resultSet = selectHashSql.executeQuery();
+		try {
+			if (!resultSet.next())
+				return null;
+			if (resultSet.getLong(1) != file.length() || resultSet.getLong(2) != file.lastModified())
+				return null;
+			String inode = resultSet.getString(3);
+			if (inode != null && !inode.equals(inodeOf(file)))
+				return null;
+			return resultSet.getString(4);
+		} finally {
+			resultSet.close();
+		}
+	}
+
+	/**
+	 * @return a string identifying the file on its file system or null, if not
+	 *         available
+	 */
+	static String inodeOf(FileEntry file) {
+		Object fileKey = file.fileKey();
+		return fileKey == null ? null : fileKey.toString();
+	}
+
+	void close() throws SQLException {
+		selectHashSql.close();
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2012 Tilman Liero
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.tilman.synctool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Runs content comparisons on a pool of worker threads, so the traversal
+ * does not wait for large files being read. Comparisons are queued in a
+ * bounded queue; if it is full, the traversal thread runs the comparison
+ * itself, which keeps the number of pending comparisons bounded.
+ * <p>
+ * Every comparison reads one file on the source and one on the destination
+ * device. The number of comparisons reading from the same device at the same
+ * time is limited separately, so spinning disks are not slowed down by
+ * interleaved reads of several large files.
+ */
+class HashingService {
+
+	private final ThreadPoolExecutor executor;
+	private final Semaphore srcDevice;
+	private final Semaphore destDevice;
+
+	/**
+	 * @param threads the number of worker threads
+	 * @param threadsPerDevice the maximum number of comparisons reading from
+	 *        one device
+	 * @param srcRoot the source directory
+	 * @param destRoot the destination directory
+	 */
+	HashingService(int threads, int threadsPerDevice, File srcRoot, File destRoot) throws IOException {
+		executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(threads * 4),
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable runnable) {
+						return new Thread(runnable, "Hashing-" + count.incrementAndGet());
+					}
+				}, new ThreadPoolExecutor.CallerRunsPolicy());
+
+		FileStore srcStore = Files.getFileStore(srcRoot.toPath());
+		FileStore destStore = Files.getFileStore(destRoot.toPath());
+		srcDevice = new Semaphore(threadsPerDevice);
+		destDevice = srcStore.equals(destStore) ? null : new Semaphore(threadsPerDevice);
+	}
+
+	/**
+	 * Queues a comparison of a source and a destination file.
+	 */
+	void submit(final Runnable comparison) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				// always acquire the source device first to avoid deadlocks
+				srcDevice.acquireUninterruptibly();
+				try {
+					if (destDevice != null)
+						destDevice.acquireUninterruptibly();
+					try {
+						comparison.run();
+					} finally {
+						if (destDevice != null)
+							destDevice.release();
+					}
+				} finally {
+					srcDevice.release();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Waits for all queued comparisons and stops the worker threads.
+	 */
+	void shutdown() throws InterruptedException {
+		executor.shutdown();
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2012 Tilman Liero
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package de.tilman.synctool;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Date;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Decides when the database is compacted. H2 writes changed pages to new
+ * places in the file, so the file slowly fills with space that is no longer
+ * in use. Rewriting it with SHUTDOWN COMPACT takes time proportional to the
+ * size of the database, though, so it is only done
+ * <ul>
+ * <li>when the share of live data in the file has dropped below 100% minus
+ * the threshold,</li>
+ * <li>when the rows changed or deleted since the last compaction exceed the
+ * threshold in percent of all rows, or</li>
+ * <li>when the last compaction is older than the compaction interval.</li>
+ * </ul>
+ * Other runs end with a checkpoint. The time of the last compaction and the
+ * number of changed rows are kept in the Maintenance table. Dry runs leave
+ * both untouched and never compact.
+ */
+class HistoryMaintenance {
+
+	private final static Logger log = Logger.getLogger(HistoryMaintenance.class);
+
+	private final Connection connection;
+	private final int threshold;
+	private final long interval;
+
+	/**
+	 * @param connection the database connection
+	 * @param threshold the threshold in percent
+	 * @param interval the maximum time in milliseconds between two
+	 *        compactions, 0 for no limit
+	 */
+	HistoryMaintenance(Connection connection, int threshold, long interval) {
+		this.connection = connection;
+		this.threshold = threshold;
+		this.interval = interval;
+	}
+
+	/**
+	 * Records the rows changed by the run and shuts down the database,
+	 * compacting it if needed. The connection is closed afterwards.
+	 * 
+	 * @param changedRows the number of rows changed or deleted by the run
+	 * @param force true to compact in any case
+	 */
+	void shutdown(long changedRows, boolean force) throws SQLException {
+		Statement statement = connection.createStatement();
+		try {
+			ResultSet resultSet = statement.executeQuery("SELECT lastCompaction, changedRows FROM Maintenance");
+			long lastCompaction = System.currentTimeMillis();
+			if (resultSet.next()) {
+				lastCompaction = resultSet.getLong(1);
+				changedRows += resultSet.getLong(2);
+			} else {
+				// a new database counts as compacted
+				statement.executeUpdate("INSERT INTO Maintenance (lastCompaction, changedRows) VALUES (" + lastCompaction + ", 0)");
+			}
+			resultSet.close();
+
+			String reason = force ? "requested" : getCompactionReason(statement, lastCompaction, changedRows);
+			if (reason == null) {
+				statement.executeUpdate("UPDATE Maintenance SET changedRows=" + changedRows);
+				log.info("Writing checkpoint, " + changedRows + " rows changed since the last compaction on "
+						+ new Date(lastCompaction));
+				statement.execute("CHECKPOINT");
+				statement.execute("SHUTDOWN");
+				return;
+			}
+
+			log.info("Compacting database (" + reason + ")");
+			long start = System.currentTimeMillis();
+			statement.executeUpdate("UPDATE Maintenance SET lastCompaction=" + start + ", changedRows=0");
+			statement.execute("SHUTDOWN COMPACT");
+			log.info("Compacted database in " + (System.currentTimeMillis() - start) / 1000 + " s");
+		} finally {
+			statement.close();
+		}
+	}
+
+	/**
+	 * Shuts down the database after a dry run, without recording the run or
+	 * compacting the database. The connection is closed afterwards.
+	 */
+	void shutdownUnchanged() throws SQLException {
+		Statement statement = connection.createStatement();
+		try {
+			statement.execute("SHUTDOWN");
+		} finally {
+			statement.close();
+		}
+	}
+
+	/**
+	 * @return the reason for compacting the database or null, if it does not
+	 *         need to be compacted
+	 */
+	private String getCompactionReason(Statement statement, long lastCompaction, long changedRows) throws SQLException {
+		ResultSet resultSet = statement.executeQuery("SELECT SETTING_VALUE FROM INFORMATION_SCHEMA.SETTINGS"
+				+ " WHERE SETTING_NAME='info.CHUNKS_FILL_RATE'");
+		try {
+			if (resultSet.next()) {
+				int fillRate = Integer.parseInt(resultSet.getString(1));
+				if (fillRate < 100 - threshold)
+					return "only " + fillRate + "% of the file in use";
+			}
+		} finally {
+			resultSet.close();
+		}
+
+		resultSet = statement.executeQuery("SELECT (SELECT COUNT(*) FROM File) + (SELECT COUNT(*) FROM Hash)"
+				+ " + (SELECT COUNT(*) FROM Directory)");
+		try {
+			resultSet.next();
+			long rows = resultSet.getLong(1);
+			if (changedRows > 0 && changedRows * 100 >= rows * threshold)
+				return changedRows + " of " + rows + " rows changed since the last compaction";
+		} finally {
+			resultSet.close();
+		}
+
+		if (interval > 0 && System.currentTimeMillis() - lastCompaction >= interval)
+			return "last compaction on " + new Date(lastCompaction);
+		return null;
+	}
+}
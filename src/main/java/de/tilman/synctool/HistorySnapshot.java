@@ -0,0 +1,125 @@
+/*
+ * Copyright 2012 Tilman Liero
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.tilman.synctool;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * An in-memory copy of the synchronization history of one source directory.
+ * The paths are held in a sorted array and looked up by binary search, which
+ * replaces one database query per file. Changes made during the run are kept
+ * in two small overlay sets, so the snapshot always reflects the current
+ * state of the history.
+ */
+class HistorySnapshot {
+
+	/**
+	 * Estimated memory used per path in addition to its characters: the String
+	 * object, its character array and the array reference.
+	 */
+	private final static long BYTES_PER_ENTRY = 64;
+
+	private final String[] paths;
+	private final Set<String> added = ConcurrentHashMap.newKeySet();
+	private final Set<String> removed = ConcurrentHashMap.newKeySet();
+
+	private HistorySnapshot(String[] paths) {
+		this.paths = paths;
+	}
+
+	/**
+	 * Estimates the heap memory needed to hold the history of a source
+	 * directory.
+	 *
+	 * @param connection the database connection
+	 * @param sourceId the id of the source directory
+	 * @return the estimated size in bytes
+	 */
+	static long estimateSize(Connection connection, int sourceId) throws SQLException {
+		PreparedStatement sizeSql = connection.prepareStatement("SELECT COUNT(*), SUM(LENGTH(path)) FROM File WHERE idSource=?");
+		try {
+			sizeSql.setInt(1, sourceId);
+			ResultSet resultSet = sizeSql.executeQuery();
+			resultSet.next();
+			return resultSet.getLong(1) * BYTES_PER_ENTRY + resultSet.getLong(2) * 2;
+		} finally {
+			sizeSql.close();
+		}
+	}
+
+	/**
+	 * Loads the complete history of a source directory.
+	 *
+	 * @param connection the database connection
+	 * @param sourceId the id of the source directory
+	 * @return the snapshot
+	 */
+	static HistorySnapshot load(Connection connection, int sourceId) throws SQLException {
+		ArrayList<String> paths = new ArrayList<String>();
+		PreparedStatement selectSql = connection.prepareStatement("SELECT path FROM File WHERE idSource=?");
+		try {
+			selectSql.setFetchSize(10000);
+			selectSql.setInt(1, sourceId);
+			ResultSet resultSet = selectSql.executeQuery();
+			while (resultSet.next()) {
+				paths.add(resultSet.getString(1));
+			}
+		} finally {
+			selectSql.close();
+		}
+
+		String[] sortedPaths = paths.toArray(new String[paths.size()]);
+		paths = null;
+		Arrays.sort(sortedPaths);
+		return new HistorySnapshot(sortedPaths);
+	}
+
+	/**
+	 * @return the number of paths loaded from the database
+	 */
+	int size() {
+		return paths.length;
+	}
+
+	boolean contains(String path) {
+		if (added.contains(path))
+			return true;
+		if (removed.contains(path))
+			return false;
+		return Arrays.binarySearch(paths, path) >= 0;
+	}
+
+	void add(String path) {
+		removed.remove(path);
+		added.add(path);
+	}
+
+	void remove(String path) {
+		added.remove(path);
+		removed.add(path);
+	}
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2012 Tilman Liero
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package de.tilman.synctool;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+
+/**
+ * The synchronization history of one source directory: the history keys of
+ * the files and directories that existed on both sides after the last runs.
+ * An entry missing on one side has been deleted there if it is in the
+ * history, and added on the other side otherwise.
+ * <p>
+ * Implementations must allow concurrent calls from several traversal
+ * threads.
+ */
+interface HistoryStore extends Closeable {
+
+	/**
+	 * @return the number of entries found when the history was opened
+	 */
+	long size() throws IOException;
+
+	/**
+	 * Checks whether a path is in the history.
+	 */
+	boolean contains(String path) throws IOException;
+
+	/**
+	 * Adds a path to the history.
+	 * 
+	 * @param path the history key, relative to the source directory
+	 * @param size the file size or null for a directory
+	 * @param mtime the modification time
+	 */
+	void add(String path, Long size, long mtime) throws IOException;
+
+	/**
+	 * Updates the stored metadata of a path after its file has been replaced.
+	 */
+	void update(String path, Long size, long mtime) throws IOException;
+
+	/**
+	 * Removes a path from the history. The removal must be durable before the
+	 * file is deleted, see {@link HistoryWriter}.
+	 */
+	void remove(String path) throws IOException;
+
+	/**
+	 * Writes all pending changes.
+	 */
+	@Override
+	void close() throws IOException;
+}
@@ -0,0 +1,419 @@
+/*
+ * Copyright 2012 Tilman Liero
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.tilman.synctool;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Writes changes of the synchronization history in batches. Inserts and
+ * updates are collected with {@link PreparedStatement#addBatch()} and
+ * committed in one transaction once the batch size is reached or the flush
+ * interval has passed.
+ * <p>
+ * A killed run can only lose uncommitted inserts. Such a file exists on both
+ * sides, so the next run simply inserts it again. A lost delete however would
+ * leave a history entry for a file that exists on neither side, and a file
+ * later created at that place on one side would be taken for a deletion on
+ * the other one. Deletes are therefore committed immediately, together with
+ * all inserts queued before them, so the history is always a consistent
+ * prefix of the changes made during the run.
+ * <p>
+ * The checkpoint journal of the run, see {@link Checkpoint}, is written in the
+ * same transactions, so a copy is always recorded no later than the history
+ * of the copied file, and a deletion no later than the removal of its
+ * history. Its rows only live for the duration of a run and are
+ * not counted as changed rows.
+ * <p>
+ * The changes are written in the order they were queued: the batch of a
+ * statement is executed as soon as a change for another statement is queued.
+ */
+class HistoryWriter {
+
+	private final static Logger log = Logger.getLogger(HistoryWriter.class);
+
+	private final Connection connection;
+	private final PreparedStatement insertFileSql;
+	private final PreparedStatement updateFileSql;
+	private final PreparedStatement updateHashSql;
+	private final PreparedStatement deleteFileSql;
+	private final PreparedStatement mergeDirectorySql;
+	private final PreparedStatement deleteDirectorySql;
+	private final PreparedStatement mergeHashSql;
+	private final PreparedStatement deleteHashSql;
+	private final PreparedStatement mergeCheckpointDirectorySql;
+	private final PreparedStatement mergeCheckpointCopySql;
+	private final PreparedStatement deleteCheckpointCopySql;
+	private final PreparedStatement mergeCheckpointDeletionSql;
+	private final PreparedStatement deleteCheckpointDeletionSql;
+	private final int sourceId;
+	private final PreparedStatement[] batchedSql;
+	private PreparedStatement queuedSql = null;
+	private final int batchSize;
+	private final ScheduledExecutorService flushTimer;
+	private final SyncMetrics metrics;
+
+	private int pendingRows = 0;
+	private long changedRows = 0;
+	private boolean closed = false;
+
+	/**
+	 * @param connection the database connection, switched to manual commit mode
+	 * @param sourceId the id of the source directory
+	 * @param batchSize the number of changes after which the batch is written
+	 * @param flushInterval the maximum time in milliseconds between two flushes
+	 * @param metrics the metrics recording the time spent writing
+	 */
+	HistoryWriter(Connection connection, int sourceId, int batchSize, long flushInterval, SyncMetrics metrics) throws SQLException {
+		this.connection = connection;
+		this.sourceId = sourceId;
+		this.batchSize = batchSize;
+		this.metrics = metrics;
+
+		connection.setAutoCommit(false);
+		insertFileSql = connection.prepareStatement("INSERT INTO File (idSource, path, size, mtime) VALUES (" + sourceId + ", ?, ?, ?)");
+		updateFileSql = connection.prepareStatement("UPDATE File SET size=?, mtime=?, hash=NULL WHERE idSource=" + sourceId + " AND path=?");
+		updateHashSql = connection.prepareStatement("UPDATE File SET hash=? WHERE idSource=" + sourceId + " AND path=?");
+		deleteFileSql = connection.prepareStatement("DELETE FROM File WHERE idSource=" + sourceId + " AND path=?");
+		mergeDirectorySql = connection.prepareStatement("MERGE INTO Directory (idSource, path, srcMtime, destMtime, recorded, subdirectories)"
+				+ " KEY (idSource, path) VALUES (" + sourceId + ", ?, ?, ?, ?, ?)");
+		deleteDirectorySql = connection.prepareStatement("DELETE FROM Directory WHERE idSource=" + sourceId
+				+ " AND (path=? OR LEFT(path, ?)=?)");
+		mergeHashSql = connection.prepareStatement("MERGE INTO Hash (idSource, side, path, size, mtime, inode, hash, algorithm)"
+				+ " KEY (idSource, side, path) VALUES (" + sourceId + ", ?, ?, ?, ?, ?, ?, ?)");
+		deleteHashSql = connection.prepareStatement("DELETE FROM Hash WHERE idSource=" + sourceId
+				+ " AND (path=? OR LEFT(path, ?)=?)");
+		mergeCheckpointDirectorySql = connection.prepareStatement("MERGE INTO CheckpointDirectory (idSource, path, srcMtime, destMtime,"
+				+ " recorded, subdirectories) KEY (idSource, path) VALUES (" + sourceId + ", ?, ?, ?, ?, ?)");
+		mergeCheckpointCopySql = connection.prepareStatement("MERGE INTO CheckpointCopy (idSource, path, size, mtime, copied)"
+				+ " KEY (idSource, path) VALUES (" + sourceId + ", ?, ?, ?, ?)");
+		deleteCheckpointCopySql = connection.prepareStatement("DELETE FROM CheckpointCopy WHERE idSource=" + sourceId + " AND path=?");
+		mergeCheckpointDeletionSql = connection.prepareStatement("MERGE INTO CheckpointDeletion (idSource, path, size, mtime)"
+				+ " KEY (idSource, path) VALUES (" + sourceId + ", ?, ?, ?)");
+		deleteCheckpointDeletionSql = connection.prepareStatement("DELETE FROM CheckpointDeletion WHERE idSource=" + sourceId
+				+ " AND path=?");
+		batchedSql = new PreparedStatement[] { insertFileSql, updateFileSql, updateHashSql, mergeDirectorySql, deleteDirectorySql,
+				mergeHashSql, mergeCheckpointDirectorySql, mergeCheckpointCopySql, deleteCheckpointCopySql,
+				mergeCheckpointDeletionSql, deleteCheckpointDeletionSql };
+
+		flushTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "HistoryWriter");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		flushTimer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flush();
+				} catch (SQLException e) {
+					log.error("Error writing synchronization history", e);
+				}
+			}
+		}, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Queues the insert of a path into the history.
+	 * 
+	 * @param path the history key, relative to the source directory
+	 * @param size the file size or null for a directory
+	 * @param mtime the modification time
+	 */
+	synchronized void insert(String path, Long size, long mtime) throws SQLException {
+		insertFileSql.setString(1, path);
+		setSize(insertFileSql, 2, size);
+		insertFileSql.setLong(3, mtime);
+		addBatch(insertFileSql);
+		rowQueued();
+	}
+
+	/**
+	 * Queues the update of the stored metadata of a path after its file has
+	 * been replaced. The stored hash is cleared.
+	 */
+	synchronized void update(String path, Long size, long mtime) throws SQLException {
+		setSize(updateFileSql, 1, size);
+		updateFileSql.setLong(2, mtime);
+		updateFileSql.setString(3, path);
+		addBatch(updateFileSql);
+		changedRows++;
+		rowQueued();
+	}
+
+	/**
+	 * Queues storing the content hash of a path.
+	 */
+	synchronized void updateHash(String path, String hash) throws SQLException {
+		updateHashSql.setString(1, hash);
+		updateHashSql.setString(2, path);
+		addBatch(updateHashSql);
+		changedRows++;
+		rowQueued();
+	}
+
+	/**
+	 * Queues recording the modification times and subdirectories of a
+	 * synchronized directory pair.
+	 * 
+	 * @param path the history key of the source directory
+	 * @param srcMtime the modification time of the source directory
+	 * @param destMtime the modification time of the destination directory
+	 * @param subdirectories the names of the subdirectories, separated by
+	 *        {@link DirectoryIndex#SUBDIRECTORY_SEPARATOR}
+	 */
+	synchronized void recordDirectory(String path, long srcMtime, long destMtime, String subdirectories) throws SQLException {
+		mergeDirectorySql.setString(1, path);
+		mergeDirectorySql.setLong(2, srcMtime);
+		mergeDirectorySql.setLong(3, destMtime);
+		mergeDirectorySql.setLong(4, System.currentTimeMillis());
+		mergeDirectorySql.setString(5, subdirectories);
+		addBatch(mergeDirectorySql);
+		changedRows++;
+		rowQueued();
+	}
+
+	/**
+	 * Queues removing the records of a deleted directory and all directories
+	 * below it.
+	 */
+	synchronized void deleteDirectory(String path) throws SQLException {
+		String prefix = path + SyncTool.KEY_SEPARATOR;
+		deleteDirectorySql.setString(1, path);
+		deleteDirectorySql.setInt(2, prefix.length());
+		deleteDirectorySql.setString(3, prefix);
+		addBatch(deleteDirectorySql);
+		changedRows++;
+		rowQueued();
+	}
+
+	/**
+	 * Queues storing the content hash of a file in the hash cache.
+	 * 
+	 * @param side {@link HashCache#SOURCE} or {@link HashCache#DESTINATION}
+	 * @param path the history key of the file
+	 * @param file the hashed file
+	 * @param hash the hash
+	 * @param algorithm the hash algorithm
+	 */
+	synchronized void cacheHash(String side, String path, FileEntry file, String hash, String algorithm) throws SQLException {
+		mergeHashSql.setString(1, side);
+		mergeHashSql.setString(2, path);
+		mergeHashSql.setLong(3, file.length());
+		mergeHashSql.setLong(4, file.lastModified());
+		mergeHashSql.setString(5, HashCache.inodeOf(file));
+		mergeHashSql.setString(6, hash);
+		mergeHashSql.setString(7, algorithm);
+		addBatch(mergeHashSql);
+		changedRows++;
+		rowQueued();
+	}
+
+	/**
+	 * Queues recording a directory pair whose contents and subdirectories
+	 * have been synchronized completely in the checkpoint journal. The
+	 * subdirectories are recorded before their parent, so the names of the
+	 * subdirectories are not stored with it.
+	 * 
+	 * @see #recordDirectory(String, long, long, String)
+	 */
+	synchronized void checkpointDirectory(String path, long srcMtime, long destMtime) throws SQLException {
+		mergeCheckpointDirectorySql.setString(1, path);
+		mergeCheckpointDirectorySql.setLong(2, srcMtime);
+		mergeCheckpointDirectorySql.setLong(3, destMtime);
+		mergeCheckpointDirectorySql.setLong(4, System.currentTimeMillis());
+		mergeCheckpointDirectorySql.setString(5, "");
+		addBatch(mergeCheckpointDirectorySql);
+		rowQueued();
+	}
+
+	/**
+	 * Queues recording the start or the progress of a copy in the checkpoint
+	 * journal.
+	 * 
+	 * @param path the history key of the copied file
+	 * @param size the size of the copied file or null for a directory
+	 * @param mtime the modification time of the copied file
+	 * @param copied the number of bytes of the copy that are on disk
+	 */
+	synchronized void checkpointCopy(String path, Long size, long mtime, long copied) throws SQLException {
+		mergeCheckpointCopySql.setString(1, path);
+		setSize(mergeCheckpointCopySql, 2, size);
+		mergeCheckpointCopySql.setLong(3, mtime);
+		mergeCheckpointCopySql.setLong(4, copied);
+		addBatch(mergeCheckpointCopySql);
+		rowQueued();
+	}
+
+	/**
+	 * Queues removing a finished copy from the checkpoint journal.
+	 */
+	synchronized void completeCopy(String path) throws SQLException {
+		deleteCheckpointCopySql.setString(1, path);
+		addBatch(deleteCheckpointCopySql);
+		rowQueued();
+	}
+
+	/**
+	 * Queues recording a deletion in the checkpoint journal. The deletion is
+	 * committed with the removal of the history of the deleted file at the
+	 * latest, see {@link #delete(String)}.
+	 * 
+	 * @param path the history key of the deleted file
+	 * @param size the size of the deleted file or null for a directory
+	 * @param mtime the modification time of the deleted file
+	 */
+	synchronized void checkpointDeletion(String path, Long size, long mtime) throws SQLException {
+		mergeCheckpointDeletionSql.setString(1, path);
+		setSize(mergeCheckpointDeletionSql, 2, size);
+		mergeCheckpointDeletionSql.setLong(3, mtime);
+		addBatch(mergeCheckpointDeletionSql);
+		rowQueued();
+	}
+
+	/**
+	 * Queues removing an executed deletion from the checkpoint journal.
+	 */
+	synchronized void completeDeletion(String path) throws SQLException {
+		deleteCheckpointDeletionSql.setString(1, path);
+		addBatch(deleteCheckpointDeletionSql);
+		rowQueued();
+	}
+
+	/**
+	 * Clears the checkpoint journal of the source directory and commits all
+	 * pending changes.
+	 */
+	synchronized void clearCheckpoint() throws SQLException {
+		long start = System.nanoTime();
+		if (pendingRows > 0)
+			executeBatches();
+		Statement statement = connection.createStatement();
+		try {
+			statement.executeUpdate("DELETE FROM CheckpointDirectory WHERE idSource=" + sourceId);
+			statement.executeUpdate("DELETE FROM CheckpointCopy WHERE idSource=" + sourceId);
+			statement.executeUpdate("DELETE FROM CheckpointDeletion WHERE idSource=" + sourceId);
+		} finally {
+			statement.close();
+		}
+		connection.commit();
+		pendingRows = 0;
+		metrics.databaseLatency.record(metrics.time(SyncMetrics.Phase.DATABASE, start));
+	}
+
+	private void setSize(PreparedStatement sql, int index, Long size) throws SQLException {
+		if (size == null)
+			sql.setNull(index, Types.BIGINT);
+		else
+			sql.setLong(index, size);
+	}
+
+	private void addBatch(PreparedStatement sql) throws SQLException {
+		if (queuedSql != null && queuedSql != sql)
+			queuedSql.executeBatch();
+		queuedSql = sql;
+		sql.addBatch();
+	}
+
+	private void rowQueued() throws SQLException {
+		if (++pendingRows >= batchSize)
+			flush();
+	}
+
+	private void executeBatches() throws SQLException {
+		if (queuedSql != null) {
+			queuedSql.executeBatch();
+			queuedSql = null;
+		}
+	}
+
+	/**
+	 * Deletes a path from the history, together with the cached hashes of the
+	 * path and all paths below it, and commits all pending changes.
+	 */
+	synchronized void delete(String path) throws SQLException {
+		long start = System.nanoTime();
+		if (pendingRows > 0)
+			executeBatches();
+		deleteFileSql.setString(1, path);
+		deleteFileSql.execute();
+		changedRows++;
+		String prefix = path + SyncTool.KEY_SEPARATOR;
+		deleteHashSql.setString(1, path);
+		deleteHashSql.setInt(2, prefix.length());
+		deleteHashSql.setString(3, prefix);
+		deleteHashSql.execute();
+		connection.commit();
+		pendingRows = 0;
+		metrics.databaseLatency.record(metrics.time(SyncMetrics.Phase.DATABASE, start));
+	}
+
+	/**
+	 * @return the number of history rows changed or deleted, which leave
+	 *         unused space in the database file
+	 */
+	synchronized long getChangedRows() {
+		return changedRows;
+	}
+
+	/**
+	 * Writes and commits all pending changes.
+	 */
+	synchronized void flush() throws SQLException {
+		if (closed || pendingRows == 0)
+			return;
+		log.debug("Writing " + pendingRows + " history changes");
+		long start = System.nanoTime();
+		executeBatches();
+		connection.commit();
+		pendingRows = 0;
+		metrics.databaseLatency.record(metrics.time(SyncMetrics.Phase.DATABASE, start));
+	}
+
+	/**
+	 * Writes all pending changes and restores auto-commit mode. Calling this
+	 * method more than once has no effect.
+	 */
+	synchronized void close() throws SQLException {
+		if (closed)
+			return;
+		flushTimer.shutdown();
+		flush();
+		closed = true;
+		for (PreparedStatement sql : batchedSql) {
+			sql.close();
+		}
+		deleteFileSql.close();
+		deleteHashSql.close();
+		connection.setAutoCommit(true);
+	}
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2012 Tilman Liero
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package de.tilman.synctool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+import org.apache.log4j.Logger;
+import org.h2.jdbcx.JdbcConnectionPool;
+
+import com.martiansoftware.jsap.CommandLineTokenizer;
+import com.martiansoftware.jsap.JSAP;
+import com.martiansoftware.jsap.JSAPResult;
+
+
+/**
+ * Runs the synchronization jobs of a job file concurrently in one process.
+ * Every line of the file holds the source path, the destination path and
+ * the options of one job, as on the command line. Empty lines and lines
+ * starting with # are ignored. Options that apply to the whole process, like
+ * logging, are only accepted on the command line, and jobs cannot run as
+ * daemons, as the database is shut down after the last job.
+ * <p>
+ * The jobs share one database, the one given on the command line, through a
+ * connection pool. The database is only shut down, and compacted if needed,
+ * after the last job has finished. A {@link DeviceScheduler} keeps jobs
+ * sharing a device from running at the same time.
+ */
+class JobRunner {
+
+	private final static Logger log = Logger.getLogger(JobRunner.class);
+
+	/**
+	 * The options that cannot be given for a single job
+	 */
+	private final static String[] PROCESS_OPTIONS = { "daemon", "job file", "compact history", "debug", "logfile",
+			"rolling-logfile", "SMTP user", "SMTP password", "e-mail address", "jabber address", "jabber server",
+			"jabber user", "jabber password" };
+
+	private final List<JSAPResult> jobs = new ArrayList<JSAPResult>();
+	private final String databaseFile;
+	private final DeviceScheduler scheduler;
+	private final int compactThreshold;
+	private final long compactInterval;
+
+	/**
+	 * Reads the job file.
+	 * 
+	 * @param jsap the parser for the job options
+	 * @param config the options given on the command line
+	 */
+	JobRunner(JSAP jsap, JSAPResult config) {
+		this.databaseFile = config.getString("database file");
+		this.scheduler = new DeviceScheduler(config.getInt("jobs per device"));
+		this.compactThreshold = config.getInt("compact threshold");
+		this.compactInterval = config.getInt("compact interval") * 24L * 60 * 60 * 1000;
+
+		File jobFile = new File(config.getString("job file"));
+		try {
+			int number = 0;
+			for (String line : Files.readAllLines(jobFile.toPath(), StandardCharsets.UTF_8)) {
+				number++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				// all jobs use the database of the command line, which also names their history files
+				List<String> arguments = new ArrayList<String>(Arrays.asList("--dbfile", databaseFile));
+				arguments.addAll(Arrays.asList(CommandLineTokenizer.tokenize(line)));
+				JSAPResult job = jsap.parse(arguments.toArray(new String[arguments.size()]));
+				String processOption = job.success() ? getProcessOption(job) : null;
+				if (!job.success() || processOption != null || job.getString("source path") == null
+						|| job.getString("destination path") == null) {
+					for (Iterator<?> errors = job.getErrorMessageIterator(); errors.hasNext();) {
+						log.error("Error: " + errors.next());
+					}
+					if (processOption != null)
+						log.error("Error: the option \"" + processOption + "\" is only accepted on the command line");
+					log.fatal("Invalid job in line " + number + " of " + jobFile);
+					System.exit(-1007);
+				}
+				jobs.add(job);
+			}
+		} catch (IOException ioe) {
+			log.fatal(ioe.getMessage(), ioe);
+			System.exit(-1007);
+		}
+	}
+
+	/**
+	 * @return the first option of a job that applies to the whole process or
+	 *         null, if it has none
+	 */
+	static String getProcessOption(JSAPResult job) {
+		for (String option : PROCESS_OPTIONS) {
+			if (job.userSpecified(option))
+				return option;
+		}
+		return null;
+	}
+
+	/**
+	 * Runs all jobs and waits for them to finish.
+	 */
+	void run() {
+		log.info("Running " + jobs.size() + " jobs");
+		JdbcConnectionPool pool = JdbcConnectionPool.create("jdbc:h2:file:" + databaseFile + ";DB_CLOSE_ON_EXIT=FALSE", "sa", "");
+		pool.setMaxConnections(jobs.size() + 1);
+
+		// the jobs are created one after the other, as they create missing tables
+		final List<SyncTool> syncTools = new ArrayList<SyncTool>();
+		for (int i = 0; i < jobs.size(); i++) {
+			syncTools.add(new SyncTool(jobs.get(i), pool, "job " + (i + 1)));
+		}
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < jobs.size(); i++) {
+			final String name = "job " + (i + 1);
+			final SyncTool syncTool = syncTools.get(i);
+			final String srcPath = jobs.get(i).getString("source path");
+			final String destPath = jobs.get(i).getString("destination path");
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						List<Semaphore> devices = scheduler.acquire(new File(srcPath), new File(destPath));
+						try {
+							log.info("Starting " + name + ": " + srcPath + " -> " + destPath);
+							syncTool.sync(srcPath, destPath);
+							log.info("Finished " + name);
+						} finally {
+							scheduler.release(devices);
+						}
+					} catch (Exception e) {
+						log.fatal(e.getMessage(), e);
+						System.exit(-7);
+					}
+				}
+			}, "Job-" + (i + 1));
+			thread.start();
+			threads.add(thread);
+		}
+
+		long changedRows = 0;
+		boolean dryRun = true;
+		try {
+			for (int i = 0; i < threads.size(); i++) {
+				threads.get(i).join();
+				changedRows += syncTools.get(i).getChangedRows();
+				dryRun &= jobs.get(i).getBoolean("dry-run");
+			}
+			Connection connection = pool.getConnection();
+			HistoryMaintenance maintenance = new HistoryMaintenance(connection, compactThreshold, compactInterval);
+			// a database only read by dry runs is left as it is
+			if (dryRun)
+				maintenance.shutdownUnchanged();
+			else
+				maintenance.shutdown(changedRows, false);
+			connection.close();
+		} catch (InterruptedException e) {
+			log.fatal(e.getMessage(), e);
+			System.exit(-7);
+		} catch (SQLException e) {
+			log.fatal(e.getMessage(), e);
+			System.exit(-6);
+		} finally {
+			pool.dispose();
+		}
+	}
+}
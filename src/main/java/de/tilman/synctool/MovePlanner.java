@@ -0,0 +1,458 @@
+/*
+ * Copyright 2012 Tilman Liero
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package de.tilman.synctool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+
+/**
+ * Finds the copies that can be replaced by renaming, linking or cloning an
+ * entry on the side the copy goes to. A moved or renamed entry looks like a
+ * new entry at its new place and a deleted one at its old place. Instead of
+ * being executed during the traversal, these copies and deletions are
+ * collected until the end of the pass and then matched:
+ * <ul>
+ * <li>A new file matches a file deleted on the other side that has the same
+ * size and modification time. A new directory matches a deleted directory
+ * with the same names, sizes and modification times in its whole tree. The
+ * deleted entry is then renamed to the new one.</li>
+ * <li>A new directory without a match that contains matching files is only
+ * created, and its entries are matched one by one.</li>
+ * <li>A new file that is a hard link of a file already synchronized gets a
+ * hard link of the counterpart of that file on the other side. A new file
+ * with the size and modification time of a synchronized file is cloned from
+ * its counterpart.</li>
+ * </ul>
+ * Size and modification time only make files candidates: before a file is
+ * renamed, cloned or linked to a file that is not a hard link of it, the
+ * contents of both are compared, with the comparator if one is given and byte
+ * by byte otherwise. Small files are always copied, as matching them saves
+ * little.
+ * 
+ * @param <T> the context kept with every copy and deletion by the caller
+ */
+class MovePlanner<T> {
+
+	private final static Logger log = Logger.getLogger(MovePlanner.class);
+
+	/**
+	 * A copy or deletion collected during the traversal.
+	 */
+	static class Change<T> {
+
+		final String key;
+		final FileEntry entry;
+		final File directory;
+		final boolean toDestination;
+		final T context;
+		/** The copy of the directory this copy has been split from, or null */
+		final Change<T> parent;
+
+		/**
+		 * @param key the history key of the entry
+		 * @param entry the entry to be copied or deleted
+		 * @param directory the target directory of a copy, null for a deletion
+		 * @param toDestination true if the destination side is changed
+		 * @param context the context of the caller
+		 * @param parent the copy of the parent directory or null
+		 */
+		Change(String key, FileEntry entry, File directory, boolean toDestination, T context, Change<T> parent) {
+			this.key = key;
+			this.entry = entry;
+			this.directory = directory;
+			this.toDestination = toDestination;
+			this.context = context;
+			this.parent = parent;
+		}
+
+		/**
+		 * @return the file created by a copy
+		 */
+		File getTarget() {
+			return new File(directory, entry.getName());
+		}
+	}
+
+	/**
+	 * A copy that can be replaced by a cheaper operation. If neither a
+	 * deletion nor an original is given, the copy is one of a directory that
+	 * is only created, as its entries are matched one by one.
+	 */
+	static class Match<T> {
+
+		/** The copy to be replaced */
+		final Change<T> copy;
+		/** The deletion whose entry is renamed to the target of the copy, or null */
+		final Change<T> deletion;
+		/** The file on the target side to be linked or cloned, or null */
+		final File original;
+		/** True if the original is linked, false if it is cloned */
+		final boolean link;
+
+		Match(Change<T> copy, Change<T> deletion, File original, boolean link) {
+			this.copy = copy;
+			this.deletion = deletion;
+			this.original = original;
+			this.link = link;
+		}
+	}
+
+	/**
+	 * The result of matching the changes of a pass.
+	 */
+	static class Plan<T> {
+
+		final List<Match<T>> matches = new ArrayList<Match<T>>();
+		/** The copies that have to be executed as usual */
+		final List<Change<T>> copies = new ArrayList<Change<T>>();
+		/** The deletions that have to be executed as usual */
+		final List<Change<T>> deletions = new ArrayList<Change<T>>();
+	}
+
+	private final long minSize;
+	private final FileComparator comparator;
+
+	private List<Change<T>> copies = new ArrayList<Change<T>>();
+	private List<Change<T>> deletions = new ArrayList<Change<T>>();
+	private Map<String, List<FileEntry[]>> synchronizedFiles = new HashMap<String, List<FileEntry[]>>();
+
+	/**
+	 * @param minSize the size in bytes from which on files are matched
+	 * @param comparator compares the contents of matching files or null to
+	 *        compare them byte by byte
+	 */
+	MovePlanner(long minSize, FileComparator comparator) {
+		this.minSize = Math.max(minSize, 1);
+		this.comparator = comparator;
+	}
+
+	/**
+	 * Collects the copy of a new entry.
+	 * 
+	 * @param directory the target directory
+	 * @param toDestination true if the entry is copied to the destination
+	 */
+	synchronized void addCopy(String key, FileEntry entry, File directory, boolean toDestination, T context) {
+		copies.add(new Change<T>(key, entry, directory, toDestination, context, null));
+	}
+
+	/**
+	 * Collects the deletion of an entry.
+	 * 
+	 * @param toDestination true if the entry is deleted in the destination
+	 */
+	synchronized void addDeletion(String key, FileEntry entry, boolean toDestination, T context) {
+		deletions.add(new Change<T>(key, entry, null, toDestination, context, null));
+	}
+
+	/**
+	 * Remembers a pair of equal files as originals for links and clones.
+	 */
+	synchronized void addSynchronized(FileEntry srcFile, FileEntry destFile) {
+		if (srcFile.isDirectory() || srcFile.length() < minSize)
+			return;
+		String signature = signature(srcFile);
+		List<FileEntry[]> pairs = synchronizedFiles.get(signature);
+		if (pairs == null) {
+			pairs = new ArrayList<FileEntry[]>(1);
+			synchronizedFiles.put(signature, pairs);
+		}
+		pairs.add(new FileEntry[] { srcFile, destFile });
+	}
+
+	/**
+	 * Matches the collected changes and starts collecting those of the next
+	 * pass.
+	 */
+	synchronized Plan<T> plan() {
+		Plan<T> plan = new Plan<T>();
+
+		// the deletions that could be renamed, by side and attributes
+		boolean[] directoryCopies = new boolean[2];
+		for (Change<T> copy : copies) {
+			if (copy.entry.isDirectory())
+				directoryCopies[copy.toDestination ? 1 : 0] = true;
+		}
+		Map<String, List<Change<T>>> deleted = new HashMap<String, List<Change<T>>>();
+		for (Change<T> deletion : deletions) {
+			if (deletion.entry.isDirectory() ? !directoryCopies[deletion.toDestination ? 1 : 0] : deletion.entry.length() < minSize)
+				continue;
+			String signature = matchingSignature(deletion.entry);
+			if (signature == null)
+				continue;
+			List<Change<T>> candidates = deleted.get(side(deletion) + signature);
+			if (candidates == null) {
+				candidates = new ArrayList<Change<T>>(1);
+				deleted.put(side(deletion) + signature, candidates);
+			}
+			candidates.add(deletion);
+		}
+
+		// the directories come first, as the entries of split directories
+		// are matched like the other files
+		Set<Change<T>> renamed = new HashSet<Change<T>>();
+		List<Change<T>> fileCopies = new ArrayList<Change<T>>();
+		Deque<Change<T>> pending = new ArrayDeque<Change<T>>(copies);
+		while (!pending.isEmpty()) {
+			Change<T> copy = pending.poll();
+			if (!copy.entry.isDirectory()) {
+				fileCopies.add(copy);
+				continue;
+			}
+			Match<T> match = null;
+			String fingerprint = matchingSignature(copy.entry);
+			if (fingerprint != null) {
+				List<Change<T>> candidates = deleted.get(side(copy) + fingerprint);
+				Change<T> deletion = candidates != null ? findDeletion(copy, candidates, true) : null;
+				if (deletion == null && candidates != null)
+					deletion = findDeletion(copy, candidates, false);
+				if (deletion != null) {
+					renamed.add(deletion);
+					match = new Match<T>(copy, deletion, null, false);
+				} else if (containsMatches(copy, copy.entry.getFile(), deleted)) {
+					List<Change<T>> entries = split(copy);
+					if (entries != null) {
+						match = new Match<T>(copy, null, null, false);
+						pending.addAll(entries);
+					}
+				}
+			}
+			if (match != null)
+				plan.matches.add(match);
+			else
+				plan.copies.add(copy);
+		}
+
+		// renames keeping the name first, then other renames, then links and
+		// clones, which may refer to renamed files
+		Set<Change<T>> replaced = new HashSet<Change<T>>();
+		Map<Object, File> linkable = new HashMap<Object, File>();
+		for (int pass = 0; pass < 3; pass++) {
+			for (Change<T> copy : fileCopies) {
+				if (copy.entry.length() < minSize || replaced.contains(copy))
+					continue;
+				Match<T> match = null;
+				if (pass < 2) {
+					List<Change<T>> candidates = deleted.get(side(copy) + signature(copy.entry));
+					Change<T> deletion = candidates != null ? findDeletion(copy, candidates, pass == 0) : null;
+					if (deletion != null) {
+						renamed.add(deletion);
+						match = new Match<T>(copy, deletion, null, false);
+					}
+				} else {
+					match = findOriginal(copy, linkable);
+				}
+				if (match == null)
+					continue;
+				replaced.add(copy);
+				plan.matches.add(match);
+				if (copy.entry.fileKey() != null && (match.deletion != null || match.link))
+					linkable.put(copy.entry.fileKey(), copy.getTarget());
+			}
+		}
+		for (Change<T> copy : fileCopies) {
+			if (!replaced.contains(copy))
+				plan.copies.add(copy);
+		}
+		for (Change<T> deletion : deletions) {
+			if (!renamed.contains(deletion))
+				plan.deletions.add(deletion);
+		}
+
+		copies = new ArrayList<Change<T>>();
+		deletions = new ArrayList<Change<T>>();
+		synchronizedFiles = new HashMap<String, List<FileEntry[]>>();
+		return plan;
+	}
+
+	private static String side(Change<?> change) {
+		return change.toDestination ? "destination:" : "source:";
+	}
+
+	/**
+	 * Checks whether a directory tree contains a file that might match a
+	 * deleted or synchronized file.
+	 */
+	private boolean containsMatches(Change<T> copy, File directory, Map<String, List<Change<T>>> deleted) {
+		File[] files = directory.listFiles();
+		if (files == null)
+			return false;
+		for (File file : files) {
+			if (file.isDirectory()) {
+				if (containsMatches(copy, file, deleted))
+					return true;
+			} else if (file.length() >= minSize) {
+				String signature = file.length() + ":" + file.lastModified();
+				if (deleted.containsKey(side(copy) + signature) || synchronizedFiles.containsKey(signature))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Splits the copy of a directory into the copies of its entries.
+	 * 
+	 * @return the copies or null, if the directory cannot be read
+	 */
+	private List<Change<T>> split(Change<T> copy) {
+		List<Change<T>> entries = new ArrayList<Change<T>>();
+		try {
+			for (FileEntry entry : FileEntry.list(copy.entry.getFile())) {
+				if (FileCopier.isTemporary(entry.getName()) || FileCopier.isPartialMarker(entry.getName()))
+					continue;
+				entries.add(new Change<T>(SyncTool.childKey(copy.key, entry.getName()), entry, copy.getTarget(), copy.toDestination,
+						copy.context, copy));
+			}
+		} catch (IOException e) {
+			log.warn("Could not read " + copy.entry + ": " + e.getMessage());
+			return null;
+		}
+		return entries;
+	}
+
+	/**
+	 * Takes the deletion matching a copy from the candidates.
+	 * 
+	 * @param sameName true to accept only a deletion of the same name
+	 */
+	private Change<T> findDeletion(Change<T> copy, List<Change<T>> candidates, boolean sameName) {
+		for (Iterator<Change<T>> i = candidates.iterator(); i.hasNext();) {
+			Change<T> candidate = i.next();
+			if (sameName && !candidate.entry.getName().equals(copy.entry.getName()))
+				continue;
+			if (!copy.entry.isDirectory() && !equalContents(copy.entry.getFile(), candidate.entry.getFile()))
+				continue;
+			i.remove();
+			return candidate;
+		}
+		return null;
+	}
+
+	/**
+	 * Looks for a file on the target side the copy can be linked to or cloned
+	 * from: a hard link of the copied file that has already been renamed or
+	 * linked, or a synchronized file.
+	 * 
+	 * @param linkable the targets of renames and links by the file key of
+	 *        the copied file
+	 */
+	private Match<T> findOriginal(Change<T> copy, Map<Object, File> linkable) {
+		Object fileKey = copy.entry.fileKey();
+		if (fileKey != null && linkable.containsKey(fileKey))
+			return new Match<T>(copy, null, linkable.get(fileKey), true);
+		List<FileEntry[]> pairs = synchronizedFiles.get(signature(copy.entry));
+		if (pairs == null)
+			return null;
+		for (FileEntry[] pair : pairs) {
+			FileEntry sameSide = copy.toDestination ? pair[0] : pair[1];
+			FileEntry otherSide = copy.toDestination ? pair[1] : pair[0];
+			if (fileKey != null && fileKey.equals(sameSide.fileKey()))
+				return new Match<T>(copy, null, otherSide.getFile(), true);
+		}
+		for (FileEntry[] pair : pairs) {
+			FileEntry sameSide = copy.toDestination ? pair[0] : pair[1];
+			FileEntry otherSide = copy.toDestination ? pair[1] : pair[0];
+			if (equalContents(copy.entry.getFile(), sameSide.getFile()))
+				return new Match<T>(copy, null, otherSide.getFile(), false);
+		}
+		return null;
+	}
+
+	/**
+	 * Compares the contents of two files. Files that cannot be read do not
+	 * match.
+	 */
+	private boolean equalContents(File file, File other) {
+		try {
+			if (comparator == null)
+				return FileUtils.contentEquals(file, other);
+			return comparator.compare(file, other) != null;
+		} catch (IOException e) {
+			log.warn("Could not compare " + file + " with " + other + ": " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * @return the attributes that have to be equal for a match or null, if
+	 *         the entry cannot be read
+	 */
+	private String matchingSignature(FileEntry entry) {
+		if (!entry.isDirectory())
+			return signature(entry);
+		try {
+			return fingerprint(entry.getFile());
+		} catch (IOException e) {
+			log.warn("Could not read " + entry + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	private static String signature(FileEntry file) {
+		return file.length() + ":" + file.lastModified();
+	}
+
+	/**
+	 * Hashes the relative paths, sizes and modification times of all entries
+	 * of a directory tree.
+	 */
+	static String fingerprint(File directory) throws IOException {
+		MessageDigest digest = new XXHash64();
+		addToFingerprint(digest, directory, "");
+		return new String(Hex.encodeHex(digest.digest()));
+	}
+
+	private static void addToFingerprint(MessageDigest digest, File directory, String path) throws IOException {
+		String[] names = directory.list();
+		if (names == null)
+			throw new IOException("Could not list " + directory);
+		Arrays.sort(names);
+		for (String name : names) {
+			if (FileCopier.isTemporary(name) || FileCopier.isPartialMarker(name))
+				continue;
+			File file = new File(directory, name);
+			String childPath = path + "/" + name;
+			if (file.isDirectory()) {
+				digest.update((childPath + "/\n").getBytes(StandardCharsets.UTF_8));
+				addToFingerprint(digest, file, childPath);
+			} else {
+				digest.update((childPath + "\0" + file.length() + "\0" + file.lastModified() + "\n").getBytes(StandardCharsets.UTF_8));
+			}
+		}
+	}
+}
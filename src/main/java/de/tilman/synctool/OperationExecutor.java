@@ -0,0 +1,108 @@
+/*
+ * Copyright 2012 Tilman Liero
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.tilman.synctool;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Executes the copy and delete operations decided by the traversal on
+ * separate threads. Operations on large files and directories run in their
+ * own lane, so they cannot hold up the many small files. Both lanes have
+ * bounded queues; when a queue is full, the submitting thread waits, which
+ * keeps the traversal from running too far ahead.
+ */
+class OperationExecutor {
+
+	private final ThreadPoolExecutor smallLane;
+	private final ThreadPoolExecutor largeLane;
+	private final long largeFileThreshold;
+
+	/**
+	 * Blocks the submitting thread until the queue has room.
+	 */
+	private final static RejectedExecutionHandler WAIT_FOR_QUEUE = new RejectedExecutionHandler() {
+		@Override
+		public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+			if (executor.isShutdown())
+				throw new RejectedExecutionException("Executor has been shut down");
+			try {
+				executor.getQueue().put(runnable);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException(e);
+			}
+		}
+	};
+
+	/**
+	 * @param smallThreads the number of threads for small files and deletes
+	 * @param largeThreads the number of threads for large files and
+	 *        directories
+	 * @param largeFileThreshold the size in bytes from which on a file is
+	 *        considered large
+	 */
+	OperationExecutor(int smallThreads, int largeThreads, long largeFileThreshold) {
+		this.largeFileThreshold = largeFileThreshold;
+		smallLane = createLane("Copy", smallThreads, smallThreads * 16);
+		largeLane = createLane("CopyLarge", largeThreads, largeThreads * 2);
+	}
+
+	private static ThreadPoolExecutor createLane(final String name, int threads, int queueSize) {
+		return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable runnable) {
+						return new Thread(runnable, name + "-" + count.incrementAndGet());
+					}
+				}, WAIT_FOR_QUEUE);
+	}
+
+	/**
+	 * Queues an operation.
+	 *
+	 * @param entry the file or directory to be copied or deleted
+	 * @param copy true if the entry is copied, false if it is deleted
+	 * @param operation the operation
+	 */
+	void execute(FileEntry entry, boolean copy, Runnable operation) {
+		if (copy && (entry.isDirectory() || entry.length() >= largeFileThreshold))
+			largeLane.execute(operation);
+		else
+			smallLane.execute(operation);
+	}
+
+	/**
+	 * Waits for all queued operations and stops the threads.
+	 */
+	void shutdown() throws InterruptedException {
+		smallLane.shutdown();
+		largeLane.shutdown();
+		smallLane.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		largeLane.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2012 Tilman Liero
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.tilman.synctool;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+
+/**
+ * The names of the entries of a directory in sorted order, read with a fixed
+ * amount of memory. The names are collected in chunks of a fixed size; every
+ * full chunk is sorted and written to a temporary file. The chunks are then
+ * merged while the names are read. Directories with fewer entries than the
+ * chunk size are sorted in memory without temporary files.
+ * <p>
+ * Temporary files of interrupted copies are not part of the listing, see
+ * {@link #getTemporaryFiles()}.
+ */
+class SortedListing implements Closeable {
+
+	/**
+	 * A sorted run of names, either in memory or in a temporary file.
+	 */
+	private static class Chunk implements Comparable<Chunk> {
+
+		private final String[] names;
+		private final DataInputStream in;
+		private int index;
+		private int remaining;
+		String current;
+
+		Chunk(String[] names, int count) {
+			this.names = names;
+			this.in = null;
+			this.remaining = count;
+		}
+
+		Chunk(File file, int count) throws IOException {
+			this.names = null;
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			this.remaining = count;
+		}
+
+		boolean advance() throws IOException {
+			if (remaining == 0) {
+				current = null;
+				return false;
+			}
+			remaining--;
+			current = names != null ? names[index++] : in.readUTF();
+			return true;
+		}
+
+		void close() throws IOException {
+			if (in != null)
+				in.close();
+		}
+
+		@Override
+		public int compareTo(Chunk other) {
+			return current.compareTo(other.current);
+		}
+	}
+
+	private final List<File> chunkFiles = new ArrayList<File>();
+	private final List<Chunk> chunks = new ArrayList<Chunk>();
+	private final PriorityQueue<Chunk> queue = new PriorityQueue<Chunk>();
+	private final List<File> temporaryFiles = new ArrayList<File>();
+
+	/**
+	 * Reads the names of a directory.
+	 *
+	 * @param directory the directory
+	 * @param chunkSize the maximum number of names held in memory
+	 */
+	SortedListing(File directory, int chunkSize) throws IOException {
+		try {
+			String[] names = new String[chunkSize];
+			int count = 0;
+			DirectoryStream<Path> stream = Files.newDirectoryStream(directory.toPath());
+			try {
+				for (Path path : stream) {
+					String name = path.getFileName().toString();
+					if (FileCopier.isTemporary(name) || FileCopier.isPartialMarker(name)) {
+						temporaryFiles.add(path.toFile());
+						continue;
+					}
+					names[count++] = name;
+					if (count == chunkSize) {
+						spill(names, count);
+						count = 0;
+					}
+				}
+			} finally {
+				stream.close();
+			}
+			Arrays.sort(names, 0, count);
+			chunks.add(new Chunk(names, count));
+
+			for (Chunk chunk : chunks) {
+				if (chunk.advance())
+					queue.add(chunk);
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	private void spill(String[] names, int count) throws IOException {
+		Arrays.sort(names, 0, count);
+		File file = File.createTempFile("synctool-listing", ".tmp");
+		chunkFiles.add(file);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			for (int i = 0; i < count; i++) {
+				out.writeUTF(names[i]);
+			}
+		} finally {
+			out.close();
+		}
+		chunks.add(new Chunk(file, count));
+	}
+
+	/**
+	 * @return the temporary files and markers left behind by interrupted
+	 *         copies
+	 */
+	List<File> getTemporaryFiles() {
+		return temporaryFiles;
+	}
+
+	/**
+	 * @return the next name in sorted order or null, if all names have been
+	 *         read
+	 */
+	String next() throws IOException {
+		Chunk chunk = queue.poll();
+		if (chunk == null)
+			return null;
+		String name = chunk.current;
+		if (chunk.advance())
+			queue.add(chunk);
+		return name;
+	}
+
+	/**
+	 * Closes and deletes the temporary files.
+	 */
+	@Override
+	public void close() throws IOException {
+		for (Chunk chunk : chunks) {
+			chunk.close();
+		}
+		for (File file : chunkFiles) {
+			file.delete();
+		}
+	}
+}
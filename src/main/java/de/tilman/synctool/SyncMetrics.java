@@ -0,0 +1,426 @@
+/*
+ * Copyright 2012 Tilman Liero
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.tilman.synctool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Counters, timers and latency histograms of a synchronization run. All
+ * methods may be called concurrently by the traversal and worker threads.
+ * <p>
+ * Phase times are summed over all threads and may overlap: the time spent
+ * hashing is also part of the time spent comparing, and the time spent
+ * waiting for the rate limit is part of the time spent copying, for example.
+ */
+class SyncMetrics implements SyncMetricsMBean {
+
+	final static String OBJECT_NAME = "de.tilman.synctool:type=SyncMetrics";
+
+	enum Phase {
+		LISTING, HISTORY, COMPARE, HASH, COPY, DATABASE, THROTTLE;
+
+		String label() {
+			return name().toLowerCase(Locale.ROOT);
+		}
+	}
+
+	/**
+	 * A histogram of durations with buckets for powers of two nanoseconds.
+	 */
+	static class Histogram {
+
+		private final static int BUCKETS = 40;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+
+		void record(long nanos) {
+			int bucket = Math.min(64 - Long.numberOfLeadingZeros(Math.max(nanos, 0)), BUCKETS - 1);
+			buckets.incrementAndGet(bucket);
+			count.increment();
+			sum.add(nanos);
+		}
+
+		long count() {
+			return count.sum();
+		}
+
+		long sum() {
+			return sum.sum();
+		}
+
+		/**
+		 * @return the upper bound in nanoseconds of the bucket containing the
+		 *         given percentile (0-100)
+		 */
+		long percentile(double percentile) {
+			long total = count();
+			if (total == 0)
+				return 0;
+			long rank = (long) Math.ceil(total * percentile / 100);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += buckets.get(i);
+				if (seen >= rank)
+					return upperBound(i);
+			}
+			return upperBound(BUCKETS - 1);
+		}
+
+		static long upperBound(int bucket) {
+			return 1L << bucket;
+		}
+
+		long bucket(int i) {
+			return buckets.get(i);
+		}
+	}
+
+	final LongAdder entriesProcessed = new LongAdder();
+	final LongAdder filesCompared = new LongAdder();
+	final LongAdder filesCopied = new LongAdder();
+	final LongAdder filesDeleted = new LongAdder();
+	final LongAdder dirsCompared = new LongAdder();
+	final LongAdder dirsCopied = new LongAdder();
+	final LongAdder dirsDeleted = new LongAdder();
+	final LongAdder entriesMoved = new LongAdder();
+	final LongAdder filesCloned = new LongAdder();
+	final LongAdder bytesCopied = new LongAdder();
+	final LongAdder bytesHashed = new LongAdder();
+
+	/**
+	 * Latency of reading the attributes of a file
+	 */
+	final Histogram statLatency = new Histogram();
+
+	/**
+	 * Latency of history lookups and writes
+	 */
+	final Histogram databaseLatency = new Histogram();
+
+	private final LongAdder[] phaseNanos = new LongAdder[Phase.values().length];
+
+	private volatile long startTime = System.currentTimeMillis();
+	private volatile long expectedEntries;
+
+	SyncMetrics() {
+		for (int i = 0; i < phaseNanos.length; i++) {
+			phaseNanos[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Marks the start of a run.
+	 * 
+	 * @param expectedEntries the estimated number of entries to be processed
+	 *        or 0, if unknown
+	 */
+	void start(long expectedEntries) {
+		this.expectedEntries = expectedEntries;
+		startTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Adds the time since the given {@link System#nanoTime()} to a phase.
+	 * 
+	 * @return the duration in nanoseconds
+	 */
+	long time(Phase phase, long startNanos) {
+		long nanos = System.nanoTime() - startNanos;
+		phaseNanos[phase.ordinal()].add(nanos);
+		return nanos;
+	}
+
+	long phaseMillis(Phase phase) {
+		return TimeUnit.NANOSECONDS.toMillis(phaseNanos[phase.ordinal()].sum());
+	}
+
+	@Override
+	public long getEntriesProcessed() {
+		return entriesProcessed.sum();
+	}
+
+	@Override
+	public long getExpectedEntries() {
+		return expectedEntries;
+	}
+
+	@Override
+	public long getFilesCompared() {
+		return filesCompared.sum();
+	}
+
+	@Override
+	public long getFilesCopied() {
+		return filesCopied.sum();
+	}
+
+	@Override
+	public long getFilesDeleted() {
+		return filesDeleted.sum();
+	}
+
+	@Override
+	public long getDirectoriesCompared() {
+		return dirsCompared.sum();
+	}
+
+	@Override
+	public long getDirectoriesCopied() {
+		return dirsCopied.sum();
+	}
+
+	@Override
+	public long getDirectoriesDeleted() {
+		return dirsDeleted.sum();
+	}
+
+	@Override
+	public long getEntriesMoved() {
+		return entriesMoved.sum();
+	}
+
+	@Override
+	public long getFilesCloned() {
+		return filesCloned.sum();
+	}
+
+	@Override
+	public long getBytesCopied() {
+		return bytesCopied.sum();
+	}
+
+	@Override
+	public long getBytesHashed() {
+		return bytesHashed.sum();
+	}
+
+	@Override
+	public long getElapsedMillis() {
+		return System.currentTimeMillis() - startTime;
+	}
+
+	@Override
+	public long getListingMillis() {
+		return phaseMillis(Phase.LISTING);
+	}
+
+	@Override
+	public long getHistoryMillis() {
+		return phaseMillis(Phase.HISTORY);
+	}
+
+	@Override
+	public long getCompareMillis() {
+		return phaseMillis(Phase.COMPARE);
+	}
+
+	@Override
+	public long getHashMillis() {
+		return phaseMillis(Phase.HASH);
+	}
+
+	@Override
+	public long getCopyMillis() {
+		return phaseMillis(Phase.COPY);
+	}
+
+	@Override
+	public long getDatabaseMillis() {
+		return phaseMillis(Phase.DATABASE);
+	}
+
+	@Override
+	public long getThrottleMillis() {
+		return phaseMillis(Phase.THROTTLE);
+	}
+
+	/**
+	 * @return a line describing the progress of the run, with an estimate of
+	 *         the remaining time if the number of entries is known from the
+	 *         last run
+	 */
+	@Override
+	public String getProgress() {
+		long processed = getEntriesProcessed();
+		long elapsed = Math.max(getElapsedMillis(), 1);
+		double rate = processed * 1000.0 / elapsed;
+		StringBuilder line = new StringBuilder("Progress: ").append(processed);
+		// the estimate is useless once it has been exceeded
+		boolean estimated = expectedEntries > processed;
+		if (estimated)
+			line.append(" of ~").append(expectedEntries).append(" entries (")
+					.append(processed * 100 / expectedEntries).append("%)");
+		else
+			line.append(" entries");
+		line.append(", ").append(formatBytes(getBytesCopied())).append(" copied, ")
+				.append(String.format(Locale.ROOT, "%.0f", rate)).append(" entries/s");
+		if (estimated && rate > 0)
+			line.append(", ETA ").append(formatDuration((long) ((expectedEntries - processed) / rate * 1000)));
+		return line.toString();
+	}
+
+	/**
+	 * @return the summary printed at the end of a run
+	 */
+	List<String> summary() {
+		List<String> lines = new ArrayList<String>();
+		lines.add("Subdirectories compared: " + getDirectoriesCompared());
+		lines.add("  Subdirectories copied: " + getDirectoriesCopied());
+		lines.add("  Subdirectories deleted: " + getDirectoriesDeleted());
+		lines.add("Files compared: " + getFilesCompared());
+		lines.add("  Files copied: " + getFilesCopied());
+		lines.add("  Files deleted: " + getFilesDeleted());
+		lines.add("Files and directories moved: " + getEntriesMoved() + ", files linked or cloned: " + getFilesCloned());
+		lines.add("Bytes copied: " + formatBytes(getBytesCopied()) + ", hashed: " + formatBytes(getBytesHashed()));
+		lines.add("Time: " + formatDuration(getElapsedMillis()));
+		StringBuilder phases = new StringBuilder("  Thread time:");
+		for (Phase phase : Phase.values()) {
+			phases.append(String.format(Locale.ROOT, " %s %.1f s", phase.label(), phaseMillis(phase) / 1000.0));
+		}
+		lines.add(phases.toString());
+		lines.add(latencyLine("  Stat latency", statLatency));
+		lines.add(latencyLine("  Database latency", databaseLatency));
+		return lines;
+	}
+
+	private static String latencyLine(String name, Histogram histogram) {
+		return String.format(Locale.ROOT, "%s: %d calls, p50 < %.3f ms, p99 < %.3f ms", name, histogram.count(),
+				histogram.percentile(50) / 1e6, histogram.percentile(99) / 1e6);
+	}
+
+	static String formatBytes(long bytes) {
+		if (bytes < 1024)
+			return bytes + " B";
+		String units = "KMGTPE";
+		int unit = (63 - Long.numberOfLeadingZeros(bytes)) / 10;
+		return String.format(Locale.ROOT, "%.1f %siB", bytes / (double) (1L << (unit * 10)), units.charAt(unit - 1));
+	}
+
+	static String formatDuration(long millis) {
+		long seconds = millis / 1000;
+		return String.format(Locale.ROOT, "%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+	}
+
+	/**
+	 * @return the metrics as JSON object
+	 */
+	String toJson() {
+		StringBuilder json = new StringBuilder("{\n");
+		json.append("  \"elapsedMillis\": ").append(getElapsedMillis()).append(",\n");
+		json.append("  \"expectedEntries\": ").append(expectedEntries).append(",\n");
+		json.append("  \"counters\": {");
+		appendJsonCounters(json);
+		json.append("\n  },\n  \"phaseMillis\": {");
+		for (Phase phase : Phase.values()) {
+			json.append(phase.ordinal() == 0 ? "\n" : ",\n");
+			json.append("    \"").append(phase.label()).append("\": ").append(phaseMillis(phase));
+		}
+		json.append("\n  },\n  \"latency\": {\n");
+		appendJsonHistogram(json, "stat", statLatency);
+		json.append(",\n");
+		appendJsonHistogram(json, "database", databaseLatency);
+		json.append("\n  }\n}\n");
+		return json.toString();
+	}
+
+	private void appendJsonCounters(StringBuilder json) {
+		String[] names = { "entriesProcessed", "filesCompared", "filesCopied", "filesDeleted", "directoriesCompared",
+				"directoriesCopied", "directoriesDeleted", "entriesMoved", "filesCloned", "bytesCopied", "bytesHashed" };
+		long[] values = counterValues();
+		for (int i = 0; i < names.length; i++) {
+			json.append(i == 0 ? "\n" : ",\n");
+			json.append("    \"").append(names[i]).append("\": ").append(values[i]);
+		}
+	}
+
+	private long[] counterValues() {
+		return new long[] { getEntriesProcessed(), getFilesCompared(), getFilesCopied(), getFilesDeleted(),
+				getDirectoriesCompared(), getDirectoriesCopied(), getDirectoriesDeleted(), getEntriesMoved(), getFilesCloned(), getBytesCopied(), getBytesHashed() };
+	}
+
+	private static void appendJsonHistogram(StringBuilder json, String name, Histogram histogram) {
+		json.append("    \"").append(name).append("\": {\"count\": ").append(histogram.count()).append(", \"sumNanos\": ")
+				.append(histogram.sum()).append(", \"p50Nanos\": ").append(histogram.percentile(50)).append(", \"p90Nanos\": ")
+				.append(histogram.percentile(90)).append(", \"p99Nanos\": ").append(histogram.percentile(99)).append('}');
+	}
+
+	/**
+	 * @return the metrics in the Prometheus text format
+	 */
+	String toPrometheus() {
+		StringBuilder text = new StringBuilder();
+		String[] names = { "entries_processed", "files_compared", "files_copied", "files_deleted", "directories_compared",
+				"directories_copied", "directories_deleted", "entries_moved", "files_cloned", "bytes_copied", "bytes_hashed" };
+		long[] values = counterValues();
+		for (int i = 0; i < names.length; i++) {
+			text.append("# TYPE synctool_").append(names[i]).append("_total counter\n");
+			text.append("synctool_").append(names[i]).append("_total ").append(values[i]).append('\n');
+		}
+		text.append("# TYPE synctool_elapsed_seconds gauge\n");
+		text.append("synctool_elapsed_seconds ").append(getElapsedMillis() / 1000.0).append('\n');
+		text.append("# TYPE synctool_expected_entries gauge\n");
+		text.append("synctool_expected_entries ").append(expectedEntries).append('\n');
+		text.append("# TYPE synctool_phase_seconds_total counter\n");
+		for (Phase phase : Phase.values()) {
+			text.append("synctool_phase_seconds_total{phase=\"").append(phase.label()).append("\"} ")
+					.append(phaseMillis(phase) / 1000.0).append('\n');
+		}
+		appendPrometheusHistogram(text, "synctool_stat_latency_seconds", statLatency);
+		appendPrometheusHistogram(text, "synctool_database_latency_seconds", databaseLatency);
+		return text.toString();
+	}
+
+	private static void appendPrometheusHistogram(StringBuilder text, String name, Histogram histogram) {
+		text.append("# TYPE ").append(name).append(" histogram\n");
+		long cumulative = 0;
+		for (int i = 0; i < Histogram.BUCKETS; i++) {
+			cumulative += histogram.bucket(i);
+			text.append(name).append("_bucket{le=\"").append(Histogram.upperBound(i) / 1e9).append("\"} ").append(cumulative)
+					.append('\n');
+		}
+		text.append(name).append("_bucket{le=\"+Inf\"} ").append(histogram.count()).append('\n');
+		text.append(name).append("_sum ").append(histogram.sum() / 1e9).append('\n');
+		text.append(name).append("_count ").append(histogram.count()).append('\n');
+	}
+
+	/**
+	 * Writes the metrics to a file, replacing it atomically so readers never
+	 * see a partially written file.
+	 * 
+	 * @param prometheus true for the Prometheus text format, false for JSON
+	 */
+	void writeTo(File file, boolean prometheus) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		Files.write(temp.toPath(), (prometheus ? toPrometheus() : toJson()).getBytes(StandardCharsets.UTF_8));
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2012 Tilman Liero
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.tilman.synctool;
+
+
+/**
+ * The management interface of {@link SyncMetrics}, published over JMX as
+ * {@value SyncMetrics#OBJECT_NAME}.
+ */
+public interface SyncMetricsMBean {
+
+	long getEntriesProcessed();
+
+	long getExpectedEntries();
+
+	long getFilesCompared();
+
+	long getFilesCopied();
+
+	long getFilesDeleted();
+
+	long getDirectoriesCompared();
+
+	long getDirectoriesCopied();
+
+	long getDirectoriesDeleted();
+
+	long getEntriesMoved();
+
+	long getFilesCloned();
+
+	long getBytesCopied();
+
+	long getBytesHashed();
+
+	long getElapsedMillis();
+
+	long getListingMillis();
+
+	long getHistoryMillis();
+
+	long getCompareMillis();
+
+	long getHashMillis();
+
+	long getCopyMillis();
+
+	long getDatabaseMillis();
+
+	long getThrottleMillis();
+
+	String getProgress();
+}
@@ -19,9 +19,11 @@
 package de.tilman.synctool;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
@@ -32,18 +34,37 @@ import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Collection;
 import java.util.List;
+import java.util.ListIterator;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import javax.sql.DataSource;
 
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Appender;
 import org.apache.log4j.BasicConfigurator;
-import org.apache.log4j.ConsoleAppender;
 import org.apache.log4j.FileAppender;
 import org.apache.log4j.Level;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PatternLayout;
 import org.apache.log4j.RollingFileAppender;
+import org.apache.log4j.WriterAppender;
 import org.jivesoftware.smack.XMPPException;
 
 import com.martiansoftware.jsap.FlaggedOption;
@@ -66,6 +87,17 @@ public class SyncTool {
 
 	private final static Logger log = Logger.getLogger(SyncTool.class);
 
+	/**
+	 * Separates the path components of history keys
+	 */
+	final static String KEY_SEPARATOR = "/";
+
+	/**
+	 * The interval in milliseconds between two rescans in daemon mode if the
+	 * directories cannot be watched and no rescan interval is configured
+	 */
+	private final static long FALLBACK_RESCAN_INTERVAL = 60 * 60 * 1000L;
+
 	/**
 	 * Defines the different possible operations for two files in the file tree
 	 */
@@ -77,26 +109,83 @@ public class SyncTool {
 	private Statement statement;
 
 	private ResultSet resultSet;
-	private PreparedStatement selectFileSql;
-	private PreparedStatement insertFileSql;
-	private PreparedStatement deleteFileSql;
+	private HistoryWriter historyWriter;
+	private HistoryStore history;
+	private boolean fileHistory;
+	private String databaseFile;
+	private DataSource dataSource;
+	private String jobName;
+	private long changedRows;
+	private HashCache hashCache;
+	private DirectoryIndex directoryIndex;
+	private Checkpoint checkpoint;
+	private volatile boolean checkpointDirectories;
 
 	private boolean dryRun;
 	private boolean hashing;
+	private FileComparator comparator;
+	private int hashThreads;
+	private int hashThreadsPerDevice;
+	private HashingService hashingService;
+	private int copyThreads;
+	private int largeCopyThreads;
+	private long largeFileThreshold;
+	private OperationExecutor operationExecutor;
+	private long deltaThreshold;
+	private MovePlanner<DirectoryCompletion> movePlanner;
+	private List<MovePlanner.Change<DirectoryCompletion>> createdDirectories;
+	private File chunkStoreDirectory;
+	private ChunkStore chunkStore;
+	private long bandwidth;
+	private long sourceBandwidth;
+	private int iops;
+	private int sourceIops;
+	private boolean adaptiveRate;
+	private Throttle toDestination;
+	private Throttle toSource;
 	private boolean silent;
 	private boolean ignoreDirAttribs;
+	private boolean incremental;
+	private int parallelism;
+	private boolean mergeWalk;
+	private int listingChunkSize;
+	private boolean daemon;
+	private long debounce;
+	private long rescanInterval;
+	private volatile DirectoryWatcher watcher;
+	private volatile boolean terminated;
+	private long historyCacheSize;
+	private int historyBatchSize;
+	private long historyFlushInterval;
+	private int compactThreshold;
+	private long compactInterval;
 	
-	private long filesCompared;
-	private long dirsCompared;
-	private long dirsCopied;
-	private long dirsDeleted;
-	private long filesCopied;
-	private long filesDeleted;
+	private SyncMetrics metrics = new SyncMetrics();
+	private File metricsFile;
+	private boolean prometheusFormat;
+	private int progressInterval;
 	
 	private List<String> ignoredFiles = null;
+
+	private final FileCopier copier;
 	
 	public SyncTool(JSAPResult config) {
-		
+		this(config, null, null);
+	}
+
+	/**
+	 * Creates a synchronization job that shares the database with other jobs
+	 * in the same process.
+	 * 
+	 * @param config the options of the job
+	 * @param dataSource the connection pool of the database or null, to
+	 *        connect to the database file given in the options
+	 * @param jobName the name of the job or null
+	 */
+	SyncTool(JSAPResult config, DataSource dataSource, String jobName) {
+		this.dataSource = dataSource;
+		this.jobName = jobName;
+
 		this.dryRun = config.getBoolean("dry-run");
 		if (dryRun)
 			log.info("Performing dry-run, no changes to the file system");
@@ -109,24 +198,164 @@ public class SyncTool {
 		if (ignoreDirAttribs)
 			log.info("Ignoring directory attributes");
 
+		this.incremental = config.getBoolean("incremental");
+		if (incremental)
+			log.info("Skipping directories that have not changed since the last run");
+
+		this.parallelism = config.getInt("threads");
+		if (parallelism < 1) {
+			log.fatal("The number of threads must be at least 1");
+			System.exit(-9);
+		}
+		if (parallelism > 1)
+			log.info("Traversing directories with " + parallelism + " threads");
+
+		this.copyThreads = config.getInt("copy threads");
+		this.largeCopyThreads = config.getInt("large copy threads");
+		this.largeFileThreshold = config.getInt("large file threshold") * 1024L * 1024L;
+		if (copyThreads > 0) {
+			if (largeCopyThreads < 1) {
+				log.fatal("The number of threads must be at least 1");
+				System.exit(-9);
+			}
+			log.info("Copying with " + copyThreads + " threads, " + largeCopyThreads + " for large files");
+		}
+
+		this.copier = new FileCopier(config.getInt("checkpoint size") * 1024L * 1024L);
+
+		this.deltaThreshold = config.getInt("delta threshold") * 1024L * 1024L;
+		if (deltaThreshold > 0)
+			log.info("Updating files from " + config.getInt("delta threshold") + " MB on in place");
+
+		if (config.getString("chunk store") != null) {
+			this.chunkStoreDirectory = new File(config.getString("chunk store"));
+			log.info("Storing the destination files as chunks in " + chunkStoreDirectory);
+			if (deltaThreshold > 0)
+				log.warn("Files are not updated in place in a chunk store, only their changed chunks are written");
+		}
+
+		// the limits towards the source default to those towards the destination
+		this.bandwidth = config.getInt("bandwidth") * 1024L;
+		this.sourceBandwidth = config.getInt("source bandwidth") < 0 ? bandwidth : config.getInt("source bandwidth") * 1024L;
+		this.iops = config.getInt("iops");
+		this.sourceIops = config.getInt("source iops") < 0 ? iops : config.getInt("source iops");
+		this.adaptiveRate = config.getBoolean("adaptive rate");
+		if (adaptiveRate && bandwidth <= 0 && sourceBandwidth <= 0) {
+			log.fatal("Adaptive rate control needs a bandwidth limit");
+			System.exit(-13);
+		}
+		logLimits("to the destination", bandwidth, iops);
+		logLimits("to the source", sourceBandwidth, sourceIops);
+
+		this.mergeWalk = config.getBoolean("merge walk");
+		this.listingChunkSize = config.getInt("listing chunk size");
+		if (mergeWalk) {
+			if (listingChunkSize < 1) {
+				log.fatal("The listing chunk size must be at least 1");
+				System.exit(-9);
+			}
+			log.info("Walking sorted directory listings in chunks of " + listingChunkSize + " entries");
+			if (parallelism > 1)
+				log.warn("Directories are traversed by a single thread when walking sorted listings");
+		}
+
+		this.daemon = config.getBoolean("daemon");
+		this.debounce = config.getLong("debounce");
+		this.rescanInterval = config.getInt("rescan interval") * 60L * 1000L;
+		if (daemon) {
+			if (rescanInterval > 0)
+				log.info("Watching for changes after the first run, rescanning every " + config.getInt("rescan interval") + " minutes");
+			else
+				log.info("Watching for changes after the first run");
+		}
+
+		if (config.getString("metrics file") != null)
+			this.metricsFile = new File(config.getString("metrics file"));
+		String metricsFormat = config.getString("metrics format").toLowerCase();
+		if (!metricsFormat.equals("json") && !metricsFormat.equals("prometheus")) {
+			log.fatal("Unknown metrics format " + metricsFormat);
+			System.exit(-11);
+		}
+		this.prometheusFormat = metricsFormat.equals("prometheus");
+		this.progressInterval = config.getInt("progress interval");
+
+		String historyStore = config.getString("history store").toLowerCase();
+		if (!historyStore.equals("database") && !historyStore.equals("file")) {
+			log.fatal("Unknown history store " + historyStore);
+			System.exit(-12);
+		}
+		this.fileHistory = historyStore.equals("file");
+		this.databaseFile = config.getString("database file");
+		this.historyCacheSize = config.getInt("history cache size") * 1024L * 1024L;
+		this.historyBatchSize = config.getInt("history batch size");
+		this.historyFlushInterval = config.getLong("history flush interval");
+		this.compactThreshold = config.getInt("compact threshold");
+		this.compactInterval = config.getInt("compact interval") * 24L * 60 * 60 * 1000;
+
 		this.hashing = config.getBoolean("hashing");
-		if (hashing)
-			log.info("Using MD5 hashes to compare files");
+		if (hashing) {
+			String algorithm = config.getString("hash algorithm").toUpperCase();
+			try {
+				comparator = new FileComparator(algorithm);
+			} catch (NoSuchAlgorithmException e) {
+				log.fatal("Unknown hash algorithm " + algorithm);
+				System.exit(-10);
+			}
+			log.info("Comparing file contents, using " + algorithm + " hashes");
+
+			this.hashThreads = config.getInt("hash threads");
+			this.hashThreadsPerDevice = config.getInt("hash threads per device");
+			if (hashThreads > 0)
+				log.info("Comparing with " + hashThreads + " threads, " + hashThreadsPerDevice + " per device");
+		}
+
+		if (config.getBoolean("detect moves")) {
+			// matching files are compared like any other files
+			movePlanner = new MovePlanner<DirectoryCompletion>(config.getInt("move threshold") * 1024L * 1024L, comparator);
+			log.info("Detecting moved files and directories, checking single files from " + config.getInt("move threshold") + " MB on");
+		}
 		
 		if (config.getString("ignore file") != null) {
 			ignoredFiles = Arrays.asList(config.getStringArray("ignore file"));
 		}
 
-		
+		// a history file makes the database unnecessary unless hashes or directories are recorded
+		if (!fileHistory || hashing || incremental || config.getBoolean("compact history"))
+			openDatabase();
+	}
+
+	/**
+	 * Connects to the database and creates or updates its tables.
+	 */
+	private void openDatabase() {
 		try {
-			log.info("Connecting to database \"" + config.getString("database file") + "\"");
-			Class.forName("org.h2.Driver");
+			if (dataSource != null) {
+				connection = dataSource.getConnection();
+			} else {
+				log.info("Connecting to database \"" + databaseFile + "\"");
+				Class.forName("org.h2.Driver");
 
-			connection = DriverManager.getConnection("jdbc:h2:file:" + config.getString("database file"), "sa", "");
+				// closed by the shutdown hook in sync() once the pending history has been written
+				connection = DriverManager.getConnection("jdbc:h2:file:" + databaseFile + ";DB_CLOSE_ON_EXIT=FALSE", "sa", "");
+			}
 			connection.setAutoCommit(true);
 			statement = connection.createStatement();
-			
-			resultSet = connection.getMetaData().getTables(null, null, "%", new String[] { "TABLE" });
+			createTables(connection);
+		} catch (Exception e) {
+			log.fatal(e.getMessage(), e);
+			System.exit(-1);
+		}
+	}
+
+	/**
+	 * Creates the tables of the database or adds the columns and tables of
+	 * later versions.
+	 */
+	static void createTables(Connection connection) throws SQLException {
+		Statement statement = connection.createStatement();
+		try {
+			// H2 2.x reports its tables as "BASE TABLE", so look up the table by name
+			ResultSet resultSet = connection.getMetaData().getTables(null, null, "SOURCE", null);
 			if (!resultSet.next()) {
 				log.info("Creating database structure");
 				statement.execute("CREATE CACHED TABLE Source ("
@@ -143,9 +372,70 @@ public class SyncTool {
 				statement.execute("CREATE INDEX IDX_ID_PATH ON File(path, idSource);");
 			}
 			
-		} catch (Exception e) {
-			log.fatal(e.getMessage(), e);
-			System.exit(-1);
+			// metadata added in later versions
+			statement.execute("ALTER TABLE File ADD COLUMN IF NOT EXISTS size BIGINT;");
+			statement.execute("ALTER TABLE File ADD COLUMN IF NOT EXISTS mtime BIGINT;");
+			statement.execute("ALTER TABLE File ADD COLUMN IF NOT EXISTS hash VARCHAR;");
+			statement.execute("CREATE CACHED TABLE IF NOT EXISTS Directory ("
+					+ "path VARCHAR NOT NULL, "
+					+ "idSource INTEGER NOT NULL, "
+					+ "srcMtime BIGINT NOT NULL, "
+					+ "destMtime BIGINT NOT NULL, "
+					+ "recorded BIGINT NOT NULL, "
+					+ "subdirectories VARCHAR NOT NULL, "
+					+ "PRIMARY KEY (idSource, path), "
+					+ "FOREIGN KEY (idSource)"
+					+ " REFERENCES Source(id)"
+					+ " ON DELETE CASCADE);");
+			statement.execute("CREATE CACHED TABLE IF NOT EXISTS Hash ("
+					+ "idSource INTEGER NOT NULL, "
+					+ "side CHAR(1) NOT NULL, "
+					+ "path VARCHAR NOT NULL, "
+					+ "size BIGINT NOT NULL, "
+					+ "mtime BIGINT NOT NULL, "
+					+ "inode VARCHAR, "
+					+ "hash VARCHAR NOT NULL, "
+					+ "algorithm VARCHAR NOT NULL, "
+					+ "PRIMARY KEY (idSource, side, path), "
+					+ "FOREIGN KEY (idSource)"
+					+ " REFERENCES Source(id)"
+					+ " ON DELETE CASCADE);");
+			statement.execute("ALTER TABLE Source ADD COLUMN IF NOT EXISTS relativePaths BOOLEAN DEFAULT FALSE NOT NULL;");
+			statement.execute("CREATE CACHED TABLE IF NOT EXISTS CheckpointDirectory ("
+					+ "path VARCHAR NOT NULL, "
+					+ "idSource INTEGER NOT NULL, "
+					+ "srcMtime BIGINT NOT NULL, "
+					+ "destMtime BIGINT NOT NULL, "
+					+ "recorded BIGINT NOT NULL, "
+					+ "subdirectories VARCHAR NOT NULL, "
+					+ "PRIMARY KEY (idSource, path), "
+					+ "FOREIGN KEY (idSource)"
+					+ " REFERENCES Source(id)"
+					+ " ON DELETE CASCADE);");
+			statement.execute("CREATE CACHED TABLE IF NOT EXISTS CheckpointCopy ("
+					+ "idSource INTEGER NOT NULL, "
+					+ "path VARCHAR NOT NULL, "
+					+ "size BIGINT, "
+					+ "mtime BIGINT NOT NULL, "
+					+ "copied BIGINT NOT NULL, "
+					+ "PRIMARY KEY (idSource, path), "
+					+ "FOREIGN KEY (idSource)"
+					+ " REFERENCES Source(id)"
+					+ " ON DELETE CASCADE);");
+			statement.execute("CREATE CACHED TABLE IF NOT EXISTS CheckpointDeletion ("
+					+ "idSource INTEGER NOT NULL, "
+					+ "path VARCHAR NOT NULL, "
+					+ "size BIGINT, "
+					+ "mtime BIGINT NOT NULL, "
+					+ "PRIMARY KEY (idSource, path), "
+					+ "FOREIGN KEY (idSource)"
+					+ " REFERENCES Source(id)"
+					+ " ON DELETE CASCADE);");
+			statement.execute("CREATE CACHED TABLE IF NOT EXISTS Maintenance ("
+					+ "lastCompaction BIGINT NOT NULL, "
+					+ "changedRows BIGINT NOT NULL);");
+		} finally {
+			statement.close();
 		}
 	}
 
@@ -179,217 +469,1388 @@ public class SyncTool {
 				log.fatal("Source and destination point to the same directory: " + canonicalSrcPath);
 				System.exit(-4);
 			}
+			if (chunkStoreDirectory != null) {
+				String storePath = chunkStoreDirectory.getCanonicalPath() + File.separator;
+				if (storePath.startsWith(canonicalSrcPath + File.separator) || storePath.startsWith(canonicalDestPath + File.separator)) {
+					log.fatal("The chunk store must not be inside the synchronized directories: " + chunkStoreDirectory);
+					System.exit(-14);
+				}
+			}
 		} catch (IOException ioe) {
 			log.fatal(ioe.getMessage(), ioe);
 			System.exit(-5);
 		}
 
 		try {
-			resultSet = statement.executeQuery("SELECT * FROM Source WHERE path='" + canonicalSrcPath + "' LIMIT 1");
+			metrics = new SyncMetrics();
+			toDestination = createThrottle("to the destination", bandwidth, iops);
+			toSource = createThrottle("to the source", sourceBandwidth, sourceIops);
+
+			chunkStore = null;
+			if (chunkStoreDirectory != null) {
+				chunkStore = new ChunkStore(chunkStoreDirectory);
+				if (!dryRun)
+					chunkStore.register(destRoot);
+			}
 
 			// check the database for the source directory
 			Integer sourceId = null;
-			if (resultSet.next()) {
-				sourceId = resultSet.getInt(1);
-				Timestamp lastSync = resultSet.getTimestamp(3);
-				log.info("Last sync for source path: " + lastSync);
+			if (connection != null)
+				sourceId = lookUpSource(canonicalSrcPath);
+			if (connection != null && !dryRun)
+				historyWriter = new HistoryWriter(connection, sourceId, historyBatchSize, historyFlushInterval, metrics);
+
+			if (fileHistory) {
+				File historyFile = new File(databaseFile + "-" + DigestUtils.sha256Hex(canonicalSrcPath) + ".history");
+				log.info("Using history file \"" + historyFile + "\"");
+				// earlier versions named the file by String.hashCode(), which several sources can share
+				File legacyFile = new File(String.format("%s-%08x.history", databaseFile, canonicalSrcPath.hashCode()));
+				if (!historyFile.exists() && legacyFile.exists())
+					log.warn("Ignoring history file \"" + legacyFile + "\" of an earlier version, which may belong to another source."
+							+ " Files deleted on one side since the last run are copied again from the other side.");
+				history = new FileHistoryStore(historyFile, canonicalSrcPath, historyBatchSize, historyFlushInterval, dryRun);
 			} else {
-				log.info("Inserting new source path into database: " + canonicalSrcPath);
-				if (!dryRun) {
-					statement.executeUpdate("INSERT INTO Source (id, path, lastSync) VALUES (NULL, '" + canonicalSrcPath
-							+ "', CURRENT_TIMESTAMP)");
-					resultSet = statement.executeQuery("SELECT * FROM Source WHERE path='" + canonicalSrcPath + "' LIMIT 1");
-					resultSet.next();
-					sourceId = resultSet.getInt(1);
-				} else {
-					sourceId = -1;
+				history = new DatabaseHistoryStore(connection, sourceId, historyWriter, historyCacheSize, metrics);
+			}
+
+			// write the pending history changes if the process gets terminated
+			Thread shutdownHook = new Thread("HistoryWriter shutdown") {
+				@Override
+				public void run() {
+					terminated = true;
+					closeWatcher();
+					closeHistory();
 				}
+			};
+			Runtime.getRuntime().addShutdownHook(shutdownHook);
+
+			hashCache = null;
+			if (hashing)
+				hashCache = new HashCache(connection, sourceId, comparator.getAlgorithm());
+
+			directoryIndex = null;
+			if (incremental) {
+				directoryIndex = DirectoryIndex.load(connection, "Directory", sourceId);
+				log.info("Loaded " + directoryIndex.size() + " directory records");
+			}
+
+			// the journal of an interrupted run is continued
+			checkpoint = null;
+			if (historyWriter != null) {
+				checkpoint = Checkpoint.load(connection, sourceId);
+				if (!checkpoint.isEmpty())
+					log.info("Resuming interrupted run: " + checkpoint.getCompletedDirectories() + " directories completed, "
+							+ checkpoint.getInterruptedCopies() + " copies and " + checkpoint.getInterruptedDeletions()
+							+ " deletions interrupted");
+			}
+
+			// the history of the last run tells how many entries to expect
+			metrics.start(history.size());
+			ObjectName metricsName = registerMetrics();
+			ScheduledExecutorService progressTimer = startProgressReports();
+
+			// watch before the first run, so no change during the run is missed
+			watcher = null;
+			if (daemon) {
+				try {
+					watcher = new DirectoryWatcher(srcRoot, destRoot);
+					log.info("Watching " + watcher.size() + " directories");
+				} catch (IOException e) {
+					// e.g. the limit of inotify watches has been reached
+					log.warn("Could not watch the directories, synchronizing the whole trees periodically instead: "
+							+ e.getMessage());
+				}
+			}
+
+			log.info("Synchronizing " + srcRoot + " with " + destRoot);
+			traverse(srcRoot, destRoot, null);
+			if (daemon) {
+				try {
+					watch(srcRoot, destRoot);
+				} finally {
+					closeWatcher();
+				}
+				// the shutdown hook writes the history of a terminated daemon
+				if (terminated)
+					return;
+			}
+
+			if (progressTimer != null)
+				progressTimer.shutdownNow();
+
+			Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			history.close();
+			if (hashCache != null)
+				hashCache.close();
+			if (historyWriter != null) {
+				historyWriter.close();
+				changedRows = historyWriter.getChangedRows();
+			}
+
+			if (connection != null) {
+				log.info("Updating source entry in database");
+				if (!dryRun)
+					statement.executeUpdate("UPDATE Source SET lastSync=CURRENT_TIMESTAMP WHERE id=" + sourceId);
+
+				// a shared database is shut down once all jobs have finished
+				if (dataSource == null) {
+					HistoryMaintenance maintenance = new HistoryMaintenance(connection, compactThreshold, compactInterval);
+					if (dryRun)
+						maintenance.shutdownUnchanged();
+					else
+						maintenance.shutdown(changedRows, false);
+				}
+				statement.close();
+				connection.close();
 			}
 			
-			// prepare SQL statements
-			selectFileSql = connection.prepareCall("SELECT * FROM File WHERE path=? AND idSource=" + sourceId + " LIMIT 1");
-			insertFileSql = connection.prepareCall("INSERT INTO File (idSource, path) VALUES (" + sourceId + ", ?)");
-			deleteFileSql = connection.prepareCall("DELETE FROM File WHERE idSource=" + sourceId + " AND path=?");
-
-			filesCompared = 0;
-			dirsCompared = 0;
-			dirsCopied = 0;
-			dirsDeleted = 0;
-			filesCopied = 0;
-			filesDeleted = 0;
+			if (chunkStore != null)
+				log.info(chunkStore.getStatistics());
+			List<String> summary = metrics.summary();
+			for (String line : summary) {
+				log.info(line);
+			}
+			Appender emailCollector = Logger.getRootLogger().getAppender("EmailCollector");
+			if (emailCollector instanceof EmailCollector && jobName == null)
+				((EmailCollector) emailCollector).setSummary(summary);
+			writeMetrics();
+			unregisterMetrics(metricsName);
 			
-			log.info("Synchronizing " + srcRoot + " with " + destRoot);
-			recurse(srcRoot, destRoot);
+		} catch (SQLException e) {
+			log.fatal(e.getMessage(), e);
+			System.exit(-6);
+		} catch (Exception e) {
+			log.fatal(e.getMessage(), e);
+			System.exit(-7);
+		}
 
-			selectFileSql.close();
-			insertFileSql.close();
-			deleteFileSql.close();
+	}
 
-			log.info("Updating source entry in database");
-			if (!dryRun)
-				statement.executeUpdate("UPDATE Source SET lastSync=CURRENT_TIMESTAMP WHERE id=" + sourceId);
+	/**
+	 * @return the number of database rows changed or deleted by the last
+	 *         synchronization
+	 */
+	long getChangedRows() {
+		return changedRows;
+	}
 
-			statement.execute("SHUTDOWN COMPACT");
+	/**
+	 * @return true if the process has been terminated while watching for
+	 *         changes
+	 */
+	boolean isTerminated() {
+		return terminated;
+	}
+
+	/**
+	 * Compacts the database without synchronizing.
+	 */
+	public void compactHistory() {
+		try {
+			new HistoryMaintenance(connection, compactThreshold, compactInterval).shutdown(0, true);
 			statement.close();
 			connection.close();
-			
-			log.info("Subdirectories compared: " + dirsCompared);
-			log.info("  Subdirectories copied: " + dirsCopied);
-			log.info("  Subdirectories deleted: " + dirsDeleted);
-			log.info("Files compared: " + filesCompared);
-			log.info("  Files copied: " + filesCopied);
-			log.info("  Files deleted: " + filesDeleted);
-			
 		} catch (SQLException e) {
 			log.fatal(e.getMessage(), e);
 			System.exit(-6);
 		}
+	}
 
+	/**
+	 * Looks up the id of a source directory in the database and inserts the
+	 * directory if it is not found.
+	 * 
+	 * @param canonicalSrcPath the canonical path of the source directory
+	 * @return the id of the source directory, -1 if it is new and this is a
+	 *         dry run
+	 */
+	private int lookUpSource(String canonicalSrcPath) throws SQLException {
+		resultSet = statement.executeQuery("SELECT * FROM Source WHERE path='" + canonicalSrcPath + "' LIMIT 1");
+		if (resultSet.next()) {
+			int sourceId = resultSet.getInt(1);
+			Timestamp lastSync = resultSet.getTimestamp(3);
+			log.info("Last sync for source path: " + lastSync);
+			if (!resultSet.getBoolean("relativePaths")) {
+				// the conversion cannot be undone, and a dry run would not find the old keys
+				if (dryRun) {
+					log.fatal("The synchronization history of " + canonicalSrcPath + " was written by an earlier version."
+							+ " It is converted by the first run that is not a dry run.");
+					System.exit(-15);
+				}
+				convertToRelativePaths(connection, sourceId, canonicalSrcPath);
+			}
+			return sourceId;
+		}
+
+		log.info("Inserting new source path into database: " + canonicalSrcPath);
+		if (dryRun)
+			return -1;
+		statement.executeUpdate("INSERT INTO Source (path, lastSync, relativePaths) VALUES ('" + canonicalSrcPath
+				+ "', CURRENT_TIMESTAMP, TRUE)");
+		resultSet = statement.executeQuery("SELECT * FROM Source WHERE path='" + canonicalSrcPath + "' LIMIT 1");
+		resultSet.next();
+		return resultSet.getInt(1);
 	}
-	
 
-	private File[] srcFiles;
-	private HashMap<String, File> destMap;
+	/**
+	 * Runs one synchronization pass over the whole trees or over the given
+	 * directories and waits for all operations of the pass to finish.
+	 * 
+	 * @param srcRoot the source directory
+	 * @param destRoot the destination directory
+	 * @param changed the keys of the directories to synchronize, without
+	 *        their subdirectories, or null to synchronize the whole trees
+	 */
+	private void traverse(File srcRoot, File destRoot, Collection<String> changed) throws IOException,
+			InterruptedException, SQLException {
+		hashingService = null;
+		if (hashing && hashThreads > 0)
+			hashingService = new HashingService(hashThreads, hashThreadsPerDevice, srcRoot, destRoot);
+		operationExecutor = null;
+		if (copyThreads > 0)
+			operationExecutor = new OperationExecutor(copyThreads, largeCopyThreads, largeFileThreshold);
+		// only the directories of a pass over the whole trees are complete, and
+		// incremental runs resume from the directory records
+		checkpointDirectories = checkpoint != null && changed == null && !incremental;
+
+		if (changed != null) {
+			for (String key : changed) {
+				File srcDir = key.isEmpty() ? srcRoot : new File(srcRoot, key);
+				File destDir = key.isEmpty() ? destRoot : new File(destRoot, key);
+				// directories removed or copied as a whole are handled with their parents
+				if (srcDir.isDirectory() && destDir.isDirectory()) {
+					log.info("Synchronizing changes in " + srcDir);
+					syncDirectory(srcDir, destDir, key, new DirectoryCompletion(srcDir, destDir, key, !key.isEmpty(), null, false));
+				}
+			}
+		} else if (mergeWalk) {
+			mergeWalk(srcRoot, destRoot, "", false, null);
+		} else {
+			ForkJoinPool pool = new ForkJoinPool(parallelism);
+			pool.invoke(new DirectoryTask(srcRoot, destRoot, "", false, null));
+			pool.shutdown();
+		}
+		if (hashingService != null)
+			hashingService.shutdown();
+		// comparisons may still queue operations and find synchronized files
+		createdDirectories = new ArrayList<MovePlanner.Change<DirectoryCompletion>>();
+		if (movePlanner != null)
+			executeMoves();
+		if (operationExecutor != null)
+			operationExecutor.shutdown();
+		// directories created for moved files are complete once all copies are
+		for (MovePlanner.Change<DirectoryCompletion> created : createdDirectories) {
+			if (!dryRun && !ignoreDirAttribs)
+				created.getTarget().setLastModified(created.entry.lastModified());
+		}
+		if (checkpointDirectories) {
+			historyWriter.clearCheckpoint();
+			checkpoint.clear();
+		}
+		// all manifests are read to find unused chunks, so wait for a pass over the whole trees
+		if (chunkStore != null && changed == null && !dryRun && chunkStore.hasUnusedChunks())
+			chunkStore.removeUnusedChunks();
+	}
 
 	/**
-	 * Synchronizes two directories recursively.
+	 * Synchronizes the directories reported as changed until the process is
+	 * terminated. Changes are collected until none has been reported for the
+	 * debounce interval. The whole trees are rescanned periodically and
+	 * whenever changes have been lost.
+	 * <p>
+	 * The copies and deletions of a pass are reported as changes, too, so
+	 * every pass that changes something is followed by one that confirms
+	 * the result.
+	 * <p>
+	 * Without a watcher, the whole trees are rescanned periodically, at least
+	 * once an hour. The loop ends when the watcher is closed by the shutdown
+	 * hook.
+	 */
+	private void watch(File srcRoot, File destRoot) throws IOException, InterruptedException, SQLException {
+		DirectoryWatcher watcher = this.watcher;
+		long interval = rescanInterval;
+		if (watcher == null && interval <= 0)
+			interval = FALLBACK_RESCAN_INTERVAL;
+		log.info(watcher != null ? "Waiting for changes" : "Rescanning every " + interval / 60000 + " minutes");
+		long nextRescan = interval > 0 ? System.currentTimeMillis() + interval : Long.MAX_VALUE;
+		while (!terminated) {
+			long timeout = Math.max(nextRescan - System.currentTimeMillis(), 1);
+			SortedSet<String> changed;
+			if (watcher != null) {
+				try {
+					changed = watcher.poll(timeout, debounce);
+				} catch (ClosedWatchServiceException e) {
+					return;
+				}
+			} else {
+				Thread.sleep(timeout);
+				changed = new TreeSet<String>();
+			}
+			if (changed == null || System.currentTimeMillis() >= nextRescan) {
+				log.info(changed == null ? "Changes have been lost, rescanning " + srcRoot : "Rescanning " + srcRoot);
+				traverse(srcRoot, destRoot, null);
+				if (interval > 0)
+					nextRescan = System.currentTimeMillis() + interval;
+			} else if (!changed.isEmpty()) {
+				traverse(srcRoot, destRoot, changed);
+			}
+		}
+	}
+
+	/**
+	 * Converts the history of a source directory written by older versions,
+	 * which used the canonical paths of the files as keys, to keys relative to
+	 * the source directory. Entries outside of the source directory were never
+	 * looked up and are dropped, as are the directory records.
 	 * 
-	 * @param srcDir the source directory
-	 * @param destDir the destination directory
+	 * @param connection the database connection
+	 * @param sourceId the id of the source directory
+	 * @param canonicalSrcPath the canonical path of the source directory
 	 */
-	private void recurse(File srcDir, File destDir) {
-		
-		log.debug(" get listing for source directory");
-		srcFiles = srcDir.listFiles();
-		destMap = new HashMap<String, File>();
-		log.debug(" get listing for destination directory");
-		for (File file : destDir.listFiles()) {
-			destMap.put(file.getName(), file);
+	static void convertToRelativePaths(Connection connection, int sourceId, String canonicalSrcPath) throws SQLException {
+		log.info("Converting synchronization history to relative paths");
+		String prefix = canonicalSrcPath + File.separator;
+
+		connection.setAutoCommit(false);
+		PreparedStatement deleteSql = connection.prepareStatement("DELETE FROM File WHERE idSource=? AND LEFT(path, ?)<>?");
+		deleteSql.setInt(1, sourceId);
+		deleteSql.setInt(2, prefix.length());
+		deleteSql.setString(3, prefix);
+		int dropped = deleteSql.executeUpdate();
+		deleteSql.close();
+
+		PreparedStatement updateSql = connection.prepareStatement("UPDATE File SET path=REPLACE(SUBSTRING(path, ?), ?, ?) WHERE idSource=?");
+		updateSql.setInt(1, prefix.length() + 1);
+		updateSql.setString(2, File.separator);
+		updateSql.setString(3, KEY_SEPARATOR);
+		updateSql.setInt(4, sourceId);
+		int converted = updateSql.executeUpdate();
+		updateSql.close();
+
+		Statement statement = connection.createStatement();
+		try {
+			statement.executeUpdate("DELETE FROM Directory WHERE idSource=" + sourceId);
+			statement.executeUpdate("UPDATE Source SET relativePaths=TRUE WHERE id=" + sourceId);
+		} finally {
+			statement.close();
 		}
+		connection.commit();
+		connection.setAutoCommit(true);
+		log.info("Converted " + converted + " history entries, dropped " + dropped + " entries outside of the source directory");
+	}
 
-		ArrayList<File[]> recurseList = new ArrayList<File[]>();
+	/**
+	 * Stops watching the directories, which releases the watches of the
+	 * operating system.
+	 */
+	private void closeWatcher() {
+		DirectoryWatcher current = watcher;
+		watcher = null;
+		if (current == null)
+			return;
+		try {
+			current.close();
+		} catch (IOException e) {
+			log.error("Error closing the directory watcher", e);
+		}
+	}
 
+	/**
+	 * Writes the pending history changes and closes the database when the JVM
+	 * is shut down before the synchronization has finished.
+	 */
+	private void closeHistory() {
 		try {
-			log.debug(" sync source side");
-			for (int i = srcFiles.length - 1; i >= 0; i--) {
-				File srcFile = srcFiles[i];
-				srcFiles[i] = null;
-				File destFile = destMap.remove(srcFile.getName());
-				
-				// check for files to ignore 
-				if (ignoredFiles != null) {
-					if (ignoredFiles.contains(srcFile.getPath())) {
-						log.info("  Ignoring file " + srcFile.getPath());
-						continue;
+			history.close();
+		} catch (IOException e) {
+			log.error("Error writing synchronization history", e);
+		}
+		try {
+			if (historyWriter != null)
+				historyWriter.close();
+			if (connection != null)
+				connection.close();
+		} catch (SQLException e) {
+			log.error("Error writing synchronization history", e);
+		}
+	}
+
+	/**
+	 * Synchronizes a pair of directories and forks a subtask for every pair of
+	 * subdirectories that has neither been copied nor deleted.
+	 */
+	private class DirectoryTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final File srcDir;
+		private final File destDir;
+		private final String key;
+		private final boolean subdirectory;
+		private final DirectoryCompletion parent;
+
+		DirectoryTask(File srcDir, File destDir, String key, boolean subdirectory, DirectoryCompletion parent) {
+			this.srcDir = srcDir;
+			this.destDir = destDir;
+			this.key = key;
+			this.subdirectory = subdirectory;
+			this.parent = parent;
+		}
+
+		@Override
+		protected void compute() {
+			if (subdirectory && !silent)
+				log.info("Entering directory " + srcDir);
+
+			List<File[]> subdirectories = null;
+			DirectoryCompletion completion = null;
+			try {
+				if (directoryIndex != null)
+					subdirectories = directoryIndex.getUnchangedSubdirectories(key, srcDir, destDir);
+				if (subdirectories == null && checkpoint != null)
+					subdirectories = checkpoint.getCompletedSubdirectories(key, srcDir, destDir);
+				if (subdirectories == null) {
+					completion = new DirectoryCompletion(srcDir, destDir, key, subdirectory, parent, false);
+					subdirectories = syncDirectory(srcDir, destDir, key, completion);
+				} else {
+					log.debug(" directory unchanged since last run or completed by interrupted run");
+					completion = new DirectoryCompletion(srcDir, destDir, key, subdirectory, parent, true);
+					for (int i = 0; i < subdirectories.size(); i++) {
+						completion.addSubdirectory();
 					}
+					completion.listingDone(null);
 				}
+			} catch (Exception e) {
+				log.fatal(e.getMessage(), e);
+				System.exit(-7);
+			}
 
-				// check synchronization history
-				log.debug("  get source history from database");
-				selectFileSql.setString(1, srcFile.getCanonicalPath());
-				resultSet = selectFileSql.executeQuery();
-				boolean history = false;
-				if (resultSet.next())
-					history = true;
-
-				// determine what to do and do it
-				log.debug("  get operation");
-				Operation operation = getOperation(srcFile, destFile, history);
-				log.debug("  synchronize");
-				if (operation == Operation.COPYDESTINATION)
-					syncFileToDirectory(destFile, srcDir, Operation.COPY);
-				else
-					syncFileToDirectory(srcFile, destDir, operation);
+			List<DirectoryTask> subtasks = new ArrayList<DirectoryTask>();
+			for (File[] recurseDir : subdirectories) {
+				subtasks.add(new DirectoryTask(recurseDir[0], recurseDir[1], childKey(key, recurseDir[0].getName()), true,
+						completion));
+			}
+			invokeAll(subtasks);
+		}
+	}
+
+	/**
+	 * Tracks the operations of a directory pair that are still running in the
+	 * background. Once the last one has finished, the attributes of the
+	 * directory are synchronized and the directory pair is recorded for
+	 * incremental runs and in the checkpoint journal.
+	 * <p>
+	 * While the checkpoint journal is written, the subdirectories count as
+	 * operations of their parent, so a directory is journaled only after its
+	 * whole subtree and no list of subdirectories has to be kept for it.
+	 */
+	private class DirectoryCompletion {
+
+		private final File srcDir;
+		private final File destDir;
+		private final String key;
+		private final boolean subdirectory;
+		private final DirectoryCompletion parent;
+		private final boolean skipped;
+		private final boolean linked = checkpointDirectories;
+		private final AtomicInteger pending = new AtomicInteger(1);
+		private volatile List<File[]> subdirectories;
+
+		/**
+		 * @param parent the completion of the parent directory pair or null
+		 * @param skipped true if the directory pair is unchanged or has been
+		 *        completed by an interrupted run, so only its subdirectories are
+		 *        waited for
+		 */
+		DirectoryCompletion(File srcDir, File destDir, String key, boolean subdirectory, DirectoryCompletion parent,
+				boolean skipped) {
+			this.srcDir = srcDir;
+			this.destDir = destDir;
+			this.key = key;
+			this.subdirectory = subdirectory;
+			this.parent = parent;
+			this.skipped = skipped;
+		}
+
+		/**
+		 * Registers an operation started in the background.
+		 */
+		void acquire() {
+			pending.incrementAndGet();
+		}
+
+		/**
+		 * Marks an operation as finished. The listing pass itself counts as
+		 * one operation, which is finished by {@link #listingDone(List)}.
+		 */
+		void release() {
+			if (pending.decrementAndGet() > 0)
+				return;
+			if (!skipped) {
+				try {
+					if (subdirectory && !dryRun && !ignoreDirAttribs)
+						syncAttributes(srcDir, destDir);
+					if (incremental && !dryRun)
+						recordDirectory(key, srcDir, destDir, subdirectories);
+					if (linked)
+						historyWriter.checkpointDirectory(key, srcDir.lastModified(), destDir.lastModified());
+				} catch (SQLException e) {
+					log.fatal(e.getMessage(), e);
+					System.exit(-7);
+				}
+			}
+			if (parent != null && parent.linked)
+				parent.release();
+		}
 
+		/**
+		 * Registers a subdirectory that has to be completed before this
+		 * directory pair is journaled.
+		 */
+		void addSubdirectory() {
+			if (linked)
+				acquire();
+		}
+
+		void listingDone(List<File[]> subdirectories) {
+			// the subdirectories are only needed for the directory records
+			if (incremental)
+				this.subdirectories = subdirectories;
+			release();
+		}
+	}
+
+	/**
+	 * Synchronizes the contents of two directories. All state is kept locally,
+	 * so several directory pairs may be processed concurrently.
+	 * 
+	 * @param srcDir the source directory
+	 * @param destDir the destination directory
+	 * @param key the history key of the directories
+	 * @param completion the completion of the directory pair
+	 * @return the pairs of subdirectories that still have to be synchronized
+	 */
+	private List<File[]> syncDirectory(final File srcDir, final File destDir, String key,
+			final DirectoryCompletion completion) {
+		
+		ArrayList<File[]> recurseList = new ArrayList<File[]>();
+
+		try {
+			log.debug(" get listing for source directory");
+			long start = System.nanoTime();
+			List<FileEntry> srcFiles = FileEntry.list(srcDir, metrics.statLatency);
+			removeTemporaryFiles(key, srcFiles);
+			HashMap<String, FileEntry> destMap = new HashMap<String, FileEntry>();
+			log.debug(" get listing for destination directory");
+			List<FileEntry> destFiles = FileEntry.list(destDir, metrics.statLatency);
+			removeTemporaryFiles(key, destFiles);
+			metrics.time(SyncMetrics.Phase.LISTING, start);
+			for (FileEntry entry : destFiles) {
+				destMap.put(entry.getName(), destinationEntry(entry));
+			}
+
+			log.debug(" sync source side");
+			for (int i = srcFiles.size() - 1; i >= 0; i--) {
+				FileEntry srcFile = srcFiles.remove(i);
+				FileEntry destFile = destMap.remove(srcFile.getName());
+				
 				// if the file is a directory and has not been copied or
 				// deleted, add for recursion
-				if (srcFile.isDirectory() && operation == Operation.NONE) {
+				if (syncSourceEntry(srcFile, destFile, key, srcDir, destDir, completion)) {
 					log.debug("  adding directory for recursion");
-					if (destFile == null) {
-						destFile = new File(destDir, srcFile.getName());
-					}
-					recurseList.add(new File[] { srcFile, destFile });
+					recurseList.add(new File[] { srcFile.getFile(), new File(destDir, srcFile.getName()) });
+					completion.addSubdirectory();
 				}
 			}
 
 			// opposite direction: process remaining files from destination
 			log.debug(" sync destination side");
-			for (File destFile : destMap.values()) {
-				if (ignoredFiles.contains(destFile.getPath())) {
-					log.info("  Ignoring file " + destFile.getPath());
-					continue;
+			for (FileEntry destFile : destMap.values()) {
+				syncDestinationEntry(destFile, key, srcDir, completion);
+			}
+
+		} catch (Exception e) {
+			log.fatal(e.getMessage(), e);
+			System.exit(-7);
+		}
+		
+		completion.listingDone(recurseList);
+		return recurseList;
+	}
+
+	/**
+	 * Synchronizes two directory trees with a fixed amount of memory per
+	 * directory level. Both directories are read as {@link SortedListing}s
+	 * and walked in parallel like the merge step of a merge sort. The
+	 * attributes of an entry are only read when it is reached, and
+	 * subdirectories are synchronized as soon as they are reached, so no
+	 * listings or pending subdirectories are kept in memory.
+	 * 
+	 * @param srcDir the source directory
+	 * @param destDir the destination directory
+	 * @param key the history key of the directories
+	 * @param subdirectory false for the root directories
+	 * @param parent the completion of the parent directory pair or null
+	 */
+	private void mergeWalk(File srcDir, File destDir, String key, boolean subdirectory, DirectoryCompletion parent)
+			throws IOException, SQLException {
+		if (subdirectory && !silent)
+			log.info("Entering directory " + srcDir);
+
+		List<File[]> subdirectories = null;
+		if (directoryIndex != null)
+			subdirectories = directoryIndex.getUnchangedSubdirectories(key, srcDir, destDir);
+		if (subdirectories == null && checkpoint != null)
+			subdirectories = checkpoint.getCompletedSubdirectories(key, srcDir, destDir);
+		if (subdirectories != null) {
+			log.debug(" directory unchanged since last run or completed by interrupted run");
+			DirectoryCompletion completion = new DirectoryCompletion(srcDir, destDir, key, subdirectory, parent, true);
+			for (File[] recurseDir : subdirectories) {
+				completion.addSubdirectory();
+				mergeWalk(recurseDir[0], recurseDir[1], childKey(key, recurseDir[0].getName()), true, completion);
+			}
+			completion.listingDone(null);
+			return;
+		}
+
+		// the subdirectories are only needed for the directory index
+		List<File[]> recurseList = incremental ? new ArrayList<File[]>() : null;
+		DirectoryCompletion completion = new DirectoryCompletion(srcDir, destDir, key, subdirectory, parent, false);
+
+		long start = System.nanoTime();
+		SortedListing srcListing = new SortedListing(srcDir, listingChunkSize);
+		try {
+			SortedListing destListing = new SortedListing(destDir, listingChunkSize);
+			metrics.time(SyncMetrics.Phase.LISTING, start);
+			try {
+				for (File file : srcListing.getTemporaryFiles()) {
+					removeTemporaryFile(key, file);
 				}
-				
-				// check synchronization history
-				selectFileSql.setString(1, new File(srcDir, destFile.getName()).getCanonicalPath());
-				log.debug("  get history");
-				resultSet = selectFileSql.executeQuery();
-				boolean history = false;
-				if (resultSet.next())
-					history = true;
+				for (File file : destListing.getTemporaryFiles()) {
+					removeTemporaryFile(key, file);
+				}
+
+				String srcName = srcListing.next();
+				String destName = destListing.next();
+				while (srcName != null || destName != null) {
+					int order = srcName == null ? 1 : destName == null ? -1 : srcName.compareTo(destName);
+					FileEntry srcFile = order <= 0 ? readEntry(new File(srcDir, srcName)) : null;
+					FileEntry destFile = order >= 0 ? destinationEntry(readEntry(new File(destDir, destName))) : null;
+
+					if (srcFile != null) {
+						if (syncSourceEntry(srcFile, destFile, key, srcDir, destDir, completion)) {
+							File[] recurseDir = new File[] { srcFile.getFile(), new File(destDir, srcFile.getName()) };
+							if (recurseList != null)
+								recurseList.add(recurseDir);
+							completion.addSubdirectory();
+							mergeWalk(recurseDir[0], recurseDir[1], childKey(key, srcFile.getName()), true, completion);
+						}
+					} else if (destFile != null) {
+						syncDestinationEntry(destFile, key, srcDir, completion);
+					}
 
-				log.debug("  synchronize");
-				syncFileToDirectory(destFile, srcDir, getOperation(destFile, null, history));
+					if (order <= 0)
+						srcName = srcListing.next();
+					if (order >= 0)
+						destName = destListing.next();
+				}
+			} finally {
+				destListing.close();
 			}
+		} finally {
+			srcListing.close();
+		}
 
-			// recurse all directories that have not been deleted or entirely
-			// copied
-			for (File[] recurseDir : recurseList) {
-				if (!silent)
-					log.info("Entering directory " + recurseDir[0]);
-				recurse(recurseDir[0], recurseDir[1]);
+		completion.listingDone(recurseList);
+	}
+
+	/**
+	 * Reads the attributes of a file, see {@link FileEntry#readIfExists(File)}.
+	 */
+	private FileEntry readEntry(File file) throws IOException {
+		long start = System.nanoTime();
+		FileEntry entry = FileEntry.readIfExists(file);
+		metrics.statLatency.record(metrics.time(SyncMetrics.Phase.LISTING, start));
+		return entry;
+	}
+
+	/**
+	 * Reads the size of a file from its manifest, if the destination is kept
+	 * in a chunk store.
+	 * 
+	 * @param entry an entry of the destination or null
+	 */
+	private FileEntry destinationEntry(FileEntry entry) throws IOException {
+		if (chunkStore == null || entry == null || entry.isDirectory())
+			return entry;
+		return chunkStore.readEntry(entry, !dryRun);
+	}
+
+	/**
+	 * Synchronizes an entry of the source directory with the entry of the same
+	 * name in the destination directory.
+	 * 
+	 * @param srcFile the source entry
+	 * @param destFile the destination entry or null, if there is none
+	 * @param key the history key of the directories
+	 * @return true if the entries are directories that still have to be
+	 *         synchronized
+	 */
+	private boolean syncSourceEntry(final FileEntry srcFile, final FileEntry destFile, String key, final File srcDir,
+			final File destDir, final DirectoryCompletion completion) throws SQLException, IOException {
+
+		metrics.entriesProcessed.increment();
+
+		// check for files to ignore 
+		if (isIgnored(srcFile.getFile())) {
+			log.info("  Ignoring file " + srcFile);
+			return false;
+		}
+
+		// check synchronization history
+		log.debug("  get source history from database");
+		final String fileKey = childKey(key, srcFile.getName());
+		final boolean history = hasHistory(fileKey);
+
+		// compare the file contents in the background
+		if (hashingService != null && needsContentComparison(srcFile, destFile)) {
+			log.debug("  queue content comparison");
+			completion.acquire();
+			hashingService.submit(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						applyOperation(getOperation(fileKey, srcFile, destFile, history), fileKey, srcFile, destFile, srcDir, destDir,
+								completion);
+					} catch (Exception e) {
+						log.fatal(e.getMessage(), e);
+						System.exit(-7);
+					} finally {
+						completion.release();
+					}
+				}
+			});
+			return false;
+		}
+
+		// determine what to do and do it
+		log.debug("  get operation");
+		Operation operation = getOperation(fileKey, srcFile, destFile, history);
+		log.debug("  synchronize");
+		applyOperation(operation, fileKey, srcFile, destFile, srcDir, destDir, completion);
+
+		return srcFile.isDirectory() && operation == Operation.NONE;
+	}
+
+	/**
+	 * Synchronizes an entry of the destination directory that has no
+	 * counterpart in the source directory.
+	 */
+	private void syncDestinationEntry(FileEntry destFile, String key, File srcDir, DirectoryCompletion completion)
+			throws SQLException, IOException {
+		metrics.entriesProcessed.increment();
+		if (isIgnored(destFile.getFile())) {
+			log.info("  Ignoring file " + destFile);
+			return;
+		}
+		
+		// check synchronization history
+		log.debug("  get history");
+		String fileKey = childKey(key, destFile.getName());
+		boolean history = hasHistory(fileKey);
+
+		log.debug("  synchronize");
+		Operation operation = getOperation(fileKey, destFile, null, history);
+		if (movePlanner != null) {
+			completion.acquire();
+			if (operation == Operation.COPY)
+				movePlanner.addCopy(fileKey, destFile, srcDir, false, completion);
+			else
+				movePlanner.addDeletion(fileKey, destFile, true, completion);
+			return;
+		}
+		// the file is either copied to the source or deleted in the destination
+		executeOperation(destFile, fileKey, srcDir, operation, operation == Operation.DELETE, completion);
+	}
+
+	/**
+	 * Removes the temporary files left behind by interrupted copies from a
+	 * directory listing and deletes them. Files whose in-place update has been
+	 * interrupted are reset to be overwritten again.
+	 * 
+	 * @param key the history key of the directory
+	 */
+	private void removeTemporaryFiles(String key, List<FileEntry> entries) throws IOException {
+		List<String> reset = new ArrayList<String>();
+		for (Iterator<FileEntry> i = entries.iterator(); i.hasNext();) {
+			FileEntry entry = i.next();
+			if (FileCopier.isTemporary(entry.getName()) || FileCopier.isPartialMarker(entry.getName())) {
+				i.remove();
+				File target = removeTemporaryFile(key, entry.getFile());
+				if (target != null)
+					reset.add(target.getName());
 			}
+		}
+		if (reset.isEmpty())
+			return;
+		for (ListIterator<FileEntry> i = entries.listIterator(); i.hasNext();) {
+			FileEntry entry = i.next();
+			if (reset.contains(entry.getName()))
+				i.set(FileEntry.read(entry.getFile()));
+		}
+	}
 
-		} catch (Exception e) {
+	/**
+	 * Deletes a temporary file left behind by an interrupted copy or handles
+	 * the marker of an interrupted in-place update. Temporary files of copies
+	 * that can be resumed are kept.
+	 * 
+	 * @param key the history key of the directory
+	 * @return the file reset by the marker or null
+	 */
+	private File removeTemporaryFile(String key, File file) throws IOException {
+		if (FileCopier.isTemporary(file.getName())) {
+			if (checkpoint != null && checkpoint.isResumable(childKey(key, FileCopier.temporaryTarget(file.getName())))) {
+				log.info("Keeping incomplete copy " + file + " to resume it");
+				return null;
+			}
+			log.info("Removing incomplete copy " + file);
+			if (!dryRun)
+				FileUtils.deleteQuietly(file);
+		} else if (!dryRun) {
+			File target = FileCopier.resetPartial(file);
+			log.warn("Resetting incompletely updated file " + target);
+			return target;
+		}
+		return null;
+	}
+
+	/**
+	 * Checks whether the contents of two files have to be read to decide if
+	 * they are equal.
+	 */
+	private boolean needsContentComparison(FileEntry srcFile, FileEntry destFile) {
+		return hashing && destFile != null && !srcFile.isDirectory() && !destFile.isDirectory()
+				&& srcFile.lastModified() == destFile.lastModified() && srcFile.length() == destFile.length();
+	}
+
+	/**
+	 * Executes the operation determined for a pair of files, limited by the
+	 * throttle of the side that is changed. With move detection, the copies
+	 * and deletions of entries without counterpart are left to the
+	 * {@link MovePlanner}.
+	 */
+	private void applyOperation(Operation operation, String key, FileEntry srcFile, FileEntry destFile, File srcDir, File destDir,
+			DirectoryCompletion completion) {
+		if (movePlanner != null) {
+			if (destFile == null && operation != Operation.NONE) {
+				completion.acquire();
+				if (operation == Operation.COPY)
+					movePlanner.addCopy(key, srcFile, destDir, true, completion);
+				else
+					movePlanner.addDeletion(key, srcFile, false, completion);
+				return;
+			}
+			if (destFile != null && operation == Operation.NONE)
+				movePlanner.addSynchronized(srcFile, destFile);
+		}
+		if (operation == Operation.COPYDESTINATION)
+			executeOperation(destFile, key, srcDir, Operation.COPY, false, completion);
+		else
+			executeOperation(srcFile, key, destDir, operation, operation != Operation.DELETE, completion);
+	}
+
+	/**
+	 * Executes an operation on the calling thread or, if an
+	 * {@link OperationExecutor} is in use, queues it. The directory is not
+	 * completed before a queued operation has finished.
+	 * 
+	 * @param destinationSide true if the destination is changed, false if
+	 *        the source is changed
+	 */
+	private void executeOperation(final FileEntry entry, final String key, final File directory, final Operation operation,
+			final boolean destinationSide, final DirectoryCompletion completion) {
+		if (operationExecutor == null || operation == Operation.NONE) {
+			syncFileToDirectory(entry, key, directory, operation, destinationSide);
+			return;
+		}
+		completion.acquire();
+		operationExecutor.execute(entry, operation == Operation.COPY, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					syncFileToDirectory(entry, key, directory, operation, destinationSide);
+				} finally {
+					completion.release();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Executes the copies and deletions collected by the {@link MovePlanner}
+	 * during a pass. Copies are replaced by renames, links and clones where
+	 * possible; if that fails, the copy and deletion are executed as planned.
+	 * The directories of the collected changes are released once everything
+	 * has been started.
+	 */
+	private void executeMoves() {
+		MovePlanner.Plan<DirectoryCompletion> plan = movePlanner.plan();
+		List<MovePlanner.Change<DirectoryCompletion>> done = new ArrayList<MovePlanner.Change<DirectoryCompletion>>();
+		for (MovePlanner.Match<DirectoryCompletion> match : plan.matches) {
+			if (executeMatch(match)) {
+				done.add(match.copy);
+				if (match.deletion != null)
+					done.add(match.deletion);
+			} else {
+				plan.copies.add(match.copy);
+				if (match.deletion != null)
+					plan.deletions.add(match.deletion);
+			}
+		}
+		for (MovePlanner.Change<DirectoryCompletion> copy : plan.copies) {
+			executeOperation(copy.entry, copy.key, copy.directory, Operation.COPY, copy.toDestination, copy.context);
+			done.add(copy);
+		}
+		for (MovePlanner.Change<DirectoryCompletion> deletion : plan.deletions) {
+			executeOperation(deletion.entry, deletion.key, null, Operation.DELETE, deletion.toDestination, deletion.context);
+			done.add(deletion);
+		}
+		// the entries of split directories have not been registered
+		for (MovePlanner.Change<DirectoryCompletion> change : done) {
+			if (change.parent == null)
+				change.context.release();
+		}
+	}
+
+	/**
+	 * Renames, links or clones a file instead of copying it, or creates a
+	 * directory whose entries are matched one by one.
+	 * 
+	 * @return false if the copy has to be executed instead
+	 */
+	private boolean executeMatch(MovePlanner.Match<DirectoryCompletion> match) {
+		MovePlanner.Change<DirectoryCompletion> copy = match.copy;
+		if (match.deletion == null && match.original == null) {
+			createDirectory(copy);
+			return true;
+		}
+		File target = copy.getTarget();
+		Throttle throttle = copy.toDestination ? toDestination : toSource;
+		long start = System.nanoTime();
+		try {
+			if (target.exists())
+				return false;
+			if (throttle != null && !dryRun)
+				throttle.acquireOperation();
+			if (match.deletion != null) {
+				File file = match.deletion.entry.getFile();
+				log.info("Moving " + (copy.entry.isDirectory() ? "directory " : "file ") + file + " to " + target);
+				if (!dryRun) {
+					Files.move(file.toPath(), target.toPath());
+					if (copy.entry.isDirectory() && !ignoreDirAttribs)
+						target.setLastModified(copy.entry.lastModified());
+				}
+				if (checkpoint != null)
+					historyWriter.completeDeletion(match.deletion.key);
+				metrics.entriesMoved.increment();
+			} else if (match.link) {
+				log.info("Linking file " + match.original + " to " + target);
+				if (!dryRun)
+					Files.createLink(target.toPath(), match.original.toPath());
+				metrics.filesCloned.increment();
+			} else {
+				if (!dryRun && !copier.cloneFileToDirectory(match.original, copy.directory, copy.entry.getName(), copy.entry.lastModified()))
+					return false;
+				log.info("Cloning file " + match.original + " to " + target);
+				metrics.filesCloned.increment();
+			}
+			if (checkpoint != null)
+				historyWriter.completeCopy(copy.key);
+			return true;
+		} catch (IOException e) {
+			log.warn("Could not create " + target + " from " + (match.deletion != null ? match.deletion.entry.getFile() : match.original)
+					+ ", copying it instead: " + e.getMessage());
+			return false;
+		} catch (SQLException e) {
 			log.fatal(e.getMessage(), e);
-			System.exit(-7);
+			System.exit(-8);
+			return false;
+		} finally {
+			metrics.time(SyncMetrics.Phase.COPY, start);
+		}
+	}
+
+	/**
+	 * Creates the target of a directory copy that has been split by the
+	 * {@link MovePlanner}. Its modification time is set once its entries
+	 * have been copied.
+	 */
+	private void createDirectory(MovePlanner.Change<DirectoryCompletion> copy) {
+		File target = copy.getTarget();
+		Throttle throttle = copy.toDestination ? toDestination : toSource;
+		long start = System.nanoTime();
+		try {
+			log.info("Creating directory " + target);
+			if (!dryRun) {
+				if (throttle != null)
+					throttle.acquireOperation();
+				if (!target.isDirectory())
+					Files.createDirectory(target.toPath());
+			}
+			createdDirectories.add(copy);
+			metrics.dirsCopied.increment();
+			if (checkpoint != null)
+				historyWriter.completeCopy(copy.key);
+		} catch (IOException e) {
+			log.fatal(e.getMessage(), e);
+			System.exit(-8);
+		} catch (SQLException e) {
+			log.fatal(e.getMessage(), e);
+			System.exit(-8);
+		} finally {
+			metrics.time(SyncMetrics.Phase.COPY, start);
+		}
+	}
+
+	/**
+	 * Stores the modification times and subdirectories of a synchronized
+	 * directory pair for incremental runs.
+	 */
+	private void recordDirectory(String key, File srcDir, File destDir, List<File[]> subdirectories) throws SQLException {
+		historyWriter.recordDirectory(key, srcDir.lastModified(), destDir.lastModified(), subdirectoryNames(subdirectories));
+	}
+
+	/**
+	 * Joins the names of subdirectories as stored with a directory record.
+	 */
+	private static String subdirectoryNames(List<File[]> subdirectories) {
+		StringBuilder names = new StringBuilder();
+		for (File[] subdirectory : subdirectories) {
+			if (names.length() > 0)
+				names.append(DirectoryIndex.SUBDIRECTORY_SEPARATOR);
+			names.append(subdirectory[0].getName());
+		}
+		return names.toString();
+	}
+
+	/**
+	 * Checks whether the file has been excluded from synchronization.
+	 */
+	private boolean isIgnored(File file) {
+		return ignoredFiles != null && ignoredFiles.contains(file.getPath());
+	}
+
+	/**
+	 * Builds the history key of a directory entry from the key of its
+	 * directory. Keys are relative to the source root and always use '/' as
+	 * separator.
+	 */
+	static String childKey(String directoryKey, String name) {
+		if (directoryKey.isEmpty())
+			return name;
+		return directoryKey + KEY_SEPARATOR + name;
+	}
+
+	/**
+	 * Publishes the metrics of the run over JMX.
+	 * 
+	 * @return the name of the MBean or null, if it could not be registered
+	 */
+	private ObjectName registerMetrics() {
+		try {
+			ObjectName name = new ObjectName(jobName == null ? SyncMetrics.OBJECT_NAME : SyncMetrics.OBJECT_NAME + ",name="
+					+ ObjectName.quote(jobName));
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(name))
+				server.unregisterMBean(name);
+			server.registerMBean(new StandardMBean(metrics, SyncMetricsMBean.class), name);
+			return name;
+		} catch (JMException e) {
+			log.warn("Could not publish metrics over JMX: " + e.getMessage());
+			return null;
+		}
+	}
+
+	private void unregisterMetrics(ObjectName name) {
+		if (name == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException e) {
+			log.warn("Could not remove metrics from JMX: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Starts logging the progress of the run periodically and updating the
+	 * metrics file.
+	 * 
+	 * @return the timer or null, if progress reports are disabled
+	 */
+	private ScheduledExecutorService startProgressReports() {
+		if (progressInterval <= 0)
+			return null;
+		ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "Progress");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		timer.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				log.info(metrics.getProgress());
+				writeMetrics();
+			}
+		}, progressInterval, progressInterval, TimeUnit.SECONDS);
+		return timer;
+	}
+
+	/**
+	 * Writes the metrics file, if one has been configured.
+	 */
+	private void writeMetrics() {
+		if (metricsFile == null)
+			return;
+		try {
+			metrics.writeTo(metricsFile, prometheusFormat);
+		} catch (IOException e) {
+			log.error("Could not write metrics to " + metricsFile + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Looks up a key in the synchronization history.
+	 */
+	private boolean hasHistory(String key) throws IOException {
+		long start = System.nanoTime();
+		try {
+			return history.contains(key);
+		} finally {
+			metrics.time(SyncMetrics.Phase.HISTORY, start);
 		}
 	}
 
+	/**
+	 * Adds a file to the synchronization history.
+	 */
+	private void addHistory(String key, FileEntry file) throws IOException {
+		history.add(key, file.isDirectory() ? null : file.length(), file.lastModified());
+	}
+
+	/**
+	 * Updates the stored metadata of a file that is about to be replaced by
+	 * the given file.
+	 */
+	private void updateHistory(String key, FileEntry replacement) throws IOException {
+		history.update(key, replacement.isDirectory() ? null : replacement.length(), replacement.lastModified());
+	}
+
+	/**
+	 * Removes a file from the synchronization history.
+	 */
+	private void removeHistory(String key, FileEntry file) throws IOException, SQLException {
+		// with a history file, the database still holds the cached hashes;
+		// deleting them commits the journaled deletion before the history
+		// file forgets the path
+		if (historyWriter != null && fileHistory)
+			historyWriter.delete(key);
+		history.remove(key);
+		if (historyWriter != null && incremental && file.isDirectory())
+			historyWriter.deleteDirectory(key);
+	}
+
+	/**
+	 * Logs the rate limits of one direction.
+	 */
+	private void logLimits(String direction, long bytesPerSecond, int operationsPerSecond) {
+		if (bytesPerSecond <= 0 && operationsPerSecond <= 0)
+			return;
+		log.info("Limiting changes " + direction + " to "
+				+ (bytesPerSecond > 0 ? SyncMetrics.formatBytes(bytesPerSecond) + "/s" : "unlimited bandwidth") + " and "
+				+ (operationsPerSecond > 0 ? operationsPerSecond + " operations/s" : "unlimited operations")
+				+ (adaptiveRate && bytesPerSecond > 0 ? ", lowering the bandwidth when the latency rises" : ""));
+	}
+
+	/**
+	 * @return the throttle for one direction or null, if it is not limited
+	 */
+	private Throttle createThrottle(String direction, long bytesPerSecond, int operationsPerSecond) {
+		if (bytesPerSecond <= 0 && operationsPerSecond <= 0)
+			return null;
+		return new Throttle(direction, bytesPerSecond, operationsPerSecond, adaptiveRate, metrics);
+	}
+
+	/**
+	 * Records a copy in the checkpoint journal. This has to happen before the
+	 * history of the copied file is changed.
+	 */
+	private void startCopy(String key, FileEntry file) throws SQLException {
+		if (checkpoint != null)
+			historyWriter.checkpointCopy(key, file.isDirectory() ? null : file.length(), file.lastModified(), checkpoint.getCopied(key, file));
+	}
+
+	/**
+	 * Records a deletion in the checkpoint journal. This has to happen before
+	 * the history of the deleted file is removed, so a deletion deferred to
+	 * the end of the pass or queued for the copy threads is repeated if the
+	 * run is interrupted, instead of the file being copied back.
+	 */
+	private void startDeletion(String key, FileEntry file) throws SQLException {
+		if (checkpoint != null)
+			historyWriter.checkpointDeletion(key, file.isDirectory() ? null : file.length(), file.lastModified());
+	}
+
+	/**
+	 * Creates the listener recording the progress of a file copy in the
+	 * checkpoint journal.
+	 * 
+	 * @return the listener or null, if no journal is written
+	 */
+	private FileCopier.Progress copyProgress(final String key, final FileEntry file) {
+		if (checkpoint == null)
+			return null;
+		return new FileCopier.Progress() {
+			@Override
+			public void copied(long position) throws IOException {
+				try {
+					historyWriter.checkpointCopy(key, file.length(), file.lastModified(), position);
+				} catch (SQLException e) {
+					throw new IOException(e);
+				}
+			}
+		};
+	}
+
 	/**
 	 * Conducts the specified operation for the file.
 	 * 
-	 * @param file the file to be processed
+	 * @param entry the file to be processed
+	 * @param key the history key of the file
 	 * @param directory the target directory
 	 * @param operation the operation to be executed
+	 * @param destinationSide true if the destination is changed, false if
+	 *        the source is changed
 	 */
-	private void syncFileToDirectory(File file, File directory, Operation operation) {
+	private void syncFileToDirectory(FileEntry entry, String key, File directory, Operation operation, boolean destinationSide) {
+
+		File file = entry.getFile();
+		Throttle throttle = destinationSide ? toDestination : toSource;
+		long start = System.nanoTime();
 
 		try {
 			if (operation == Operation.NONE) {
 				if (!silent)
 					log.info("No operation for " + file);
 				return;
-			} else if (operation == Operation.COPY) {
-				if (file.isDirectory()) {
+			}
+			if (throttle != null && !dryRun)
+				throttle.acquireOperation();
+			if (operation == Operation.COPY) {
+				if (chunkStore != null) {
+					copyWithChunkStore(entry, directory, destinationSide, throttle);
+				} else if (entry.isDirectory()) {
 					log.info("Copying directory " + file);
 					if (!dryRun)
-						FileUtils.copyDirectoryToDirectory(file, directory);
-					dirsCopied++;
+						metrics.bytesCopied.add(copier.copyDirectoryToDirectory(file, directory, checkpoint != null, throttle));
+					metrics.dirsCopied.increment();
+				} else if (deltaThreshold > 0 && entry.length() >= deltaThreshold && new File(directory, file.getName()).isFile()) {
+					log.info("Updating file " + file);
+					if (!dryRun) {
+						long written = copier.updateFileInDirectory(file, directory, throttle);
+						log.info("  " + written + " of " + entry.length() + " bytes written");
+						metrics.bytesCopied.add(written);
+					}
+					metrics.filesCopied.increment();
 				} else {
 					log.info("Copying file " + file);
-					if (!dryRun)
-						FileUtils.copyFileToDirectory(file, directory);
-					filesCopied++;
+					if (!dryRun) {
+						long resumeAt = checkpoint != null ? checkpoint.getCopied(key, entry) : 0;
+						if (resumeAt > 0)
+							log.info("  resuming at " + resumeAt + " of " + entry.length() + " bytes");
+						metrics.bytesCopied.add(copier.copyFileToDirectory(file, directory, resumeAt, copyProgress(key, entry), throttle));
+					}
+					metrics.filesCopied.increment();
 				}
+				if (checkpoint != null)
+					historyWriter.completeCopy(key);
 				return;
 			} else if (operation == Operation.DELETE) {
-				if (file.isDirectory()) {
+				if (entry.isDirectory()) {
 					log.info("Deleting directory " + file);
-					if (!dryRun)
+					if (!dryRun && chunkStore != null && destinationSide)
+						chunkStore.delete(file);
+					else if (!dryRun)
 						FileUtils.deleteDirectory(file);
-					dirsDeleted++;
+					metrics.dirsDeleted.increment();
 				} else {
 					log.info("Deleting file " + file);
-					if (!dryRun)
+					if (!dryRun && chunkStore != null && destinationSide)
+						chunkStore.delete(file);
+					else if (!dryRun)
 						file.delete();
-					filesDeleted++;
+					metrics.filesDeleted.increment();
 				}
+				if (checkpoint != null)
+					historyWriter.completeDeletion(key);
 				return;
 			}
 		} catch (IOException ioe) {
 			log.fatal(ioe.getMessage(), ioe);
 			System.exit(-8);
+		} catch (SQLException e) {
+			log.fatal(e.getMessage(), e);
+			System.exit(-8);
+		} finally {
+			if (operation != Operation.NONE)
+				metrics.time(SyncMetrics.Phase.COPY, start);
+		}
+	}
+
+	/**
+	 * Copies a file or directory into the chunk store of the destination or
+	 * restores it from there to the source.
+	 */
+	private void copyWithChunkStore(FileEntry entry, File directory, boolean destinationSide, Throttle throttle) throws IOException {
+		File file = entry.getFile();
+		boolean resumable = checkpoint != null;
+		if (entry.isDirectory()) {
+			log.info("Copying directory " + file);
+			if (!dryRun)
+				metrics.bytesCopied.add(destinationSide ? chunkStore.storeDirectory(file, directory, resumable, throttle)
+						: chunkStore.restoreDirectory(file, directory, resumable, throttle));
+			metrics.dirsCopied.increment();
+		} else {
+			log.info("Copying file " + file);
+			if (!dryRun) {
+				// the bytes actually stored are part of the statistics of the chunk store
+				metrics.bytesCopied.add(destinationSide ? chunkStore.storeFile(file, directory, throttle) : chunkStore.restoreFile(
+						file, directory, throttle));
+			}
+			metrics.filesCopied.increment();
+		}
+	}
+
+	/**
+	 * Copies the attributes of a source directory to the destination directory.
+	 * This is done after the contents of the directories have been
+	 * synchronized, because adding or removing entries changes the modification
+	 * time of the destination directory.
+	 */
+	private void syncAttributes(File srcDir, File destDir) {
+		if (srcDir.lastModified() != destDir.lastModified()
+//				|| srcDir.canExecute() != destDir.canExecute()
+//				|| srcDir.canRead() != destDir.canRead()
+//				|| srcDir.canWrite() != destDir.canWrite()
+				) {
+			log.info("Setting attributes for " + destDir);
+			destDir.setLastModified(srcDir.lastModified());
+//			destDir.setExecutable(srcDir.canExecute());
+//			destDir.setReadable(srcDir.canRead());
+//			destDir.setWritable(srcDir.canWrite());
 		}
 	}
 
@@ -398,59 +1859,64 @@ public class SyncTool {
 	 * on the source and the destination. This method also updates the database
 	 * for the source file.
 	 */
-	private Operation getOperation(File srcFile, File destFile, boolean history) throws SQLException, IOException {
+	private Operation getOperation(String key, FileEntry srcFile, FileEntry destFile, boolean history) throws SQLException, IOException {
 
-		if (destFile != null && destFile.exists()) {
+		if (destFile != null) {
 
-			if (!history) {
-				insertFileSql.setString(1, srcFile.getCanonicalPath());
-				if (!dryRun)
-					insertFileSql.execute();
-			}
+			if (!history)
+				addHistory(key, srcFile);
 
 			if (srcFile.isDirectory()) {
-				dirsCompared++;
-				if (!dryRun && !ignoreDirAttribs) {
-					if (srcFile.lastModified() != destFile.lastModified()
-//							|| srcFile.canExecute() != destFile.canExecute()
-//							|| srcFile.canRead() != destFile.canRead()
-//							|| srcFile.canWrite() != destFile.canWrite()
-							) {
-						log.info("Setting attributes for " + destFile);
-						destFile.setLastModified(srcFile.lastModified());
-//						destFile.setExecutable(srcFile.canExecute());
-//						destFile.setReadable(srcFile.canRead());
-//						destFile.setWritable(srcFile.canWrite());
-					}
-				}
+				// the attributes are synchronized after the directory contents
+				metrics.dirsCompared.increment();
 				return Operation.NONE;
 			}
 			
-			filesCompared++;
+			metrics.filesCompared.increment();
 
-			if (consideredEqual(srcFile, destFile))
+			if (consideredEqual(key, srcFile, destFile))
 				return Operation.NONE;
 
-			if (srcFile.lastModified() > destFile.lastModified())
+			if (srcFile.lastModified() > destFile.lastModified()) {
+				startCopy(key, srcFile);
+				if (history)
+					updateHistory(key, srcFile);
 				return Operation.COPY; // copy source file
+			}
 
+			startCopy(key, destFile);
+			if (history)
+				updateHistory(key, destFile);
 			return Operation.COPYDESTINATION; // copy destination file
 		}
 
-		// if the file exists in the history, it has been deleted on the
-		// target side and should also be deleted on the source side
 		if (history) {
-			deleteFileSql.setString(1, srcFile.getCanonicalPath());
-			if (!dryRun)
-				deleteFileSql.execute();
+			// the history of a new file is written before it is copied, so
+			// the copy may have been interrupted
+			if (checkpoint != null && checkpoint.isInterruptedCopy(key)) {
+				log.info("Repeating interrupted copy of " + srcFile);
+				startCopy(key, srcFile);
+				return Operation.COPY;
+			}
+
+			// if the file exists in the history, it has been deleted on the
+			// target side and should also be deleted on the source side
+			startDeletion(key, srcFile);
+			removeHistory(key, srcFile);
+			return Operation.DELETE;
+		}
+
+		// a deletion interrupted after its history had been removed
+		if (checkpoint != null && checkpoint.isInterruptedDeletion(key, srcFile)) {
+			log.info("Repeating interrupted deletion of " + srcFile);
+			startDeletion(key, srcFile);
 			return Operation.DELETE;
 		}
 
 		// if the file is not present in the synchronization history, it
 		// has been added on the source side and should be copied
-		insertFileSql.setString(1, srcFile.getCanonicalPath());
-		if (!dryRun)
-			insertFileSql.execute();
+		startCopy(key, srcFile);
+		addHistory(key, srcFile);
 		return Operation.COPY; // copy source file
 
 	}
@@ -458,137 +1924,366 @@ public class SyncTool {
 	/**
 	 * Determines whether two files at the same place in the file tree are
 	 * considered to be equal under the given parameters.
-	 * @throws IOException 
-	 * @throws FileNotFoundException 
 	 */
-	private boolean consideredEqual(File src, File dest) throws FileNotFoundException, IOException {
+	private boolean consideredEqual(String key, FileEntry src, FileEntry dest) throws IOException, SQLException {
+		long start = System.nanoTime();
+		try {
+			return compareFiles(key, src, dest);
+		} finally {
+			metrics.time(SyncMetrics.Phase.COMPARE, start);
+		}
+	}
+
+	private boolean compareFiles(String key, FileEntry src, FileEntry dest) throws IOException, SQLException {
 		// TODO add a certain amount to the source timestamp, if defined by parameter
 		// TODO allow a certain difference for the timestamps, if defined by parameter
 		if ((src.lastModified() == dest.lastModified()) && (src.length() == dest.length())) {
 			if (!hashing)
 				return true;
-			if (DigestUtils.md5Hex(new FileInputStream(src)).equals(DigestUtils.md5Hex(new FileInputStream(dest))))
-				return true;
+			if (chunkStore != null) {
+				// the hashes of the chunks in the manifest stand for the destination file
+				long start = System.nanoTime();
+				boolean equal = chunkStore.sameContents(src.getFile(), dest.getFile());
+				metrics.bytesHashed.add(src.length());
+				metrics.time(SyncMetrics.Phase.HASH, start);
+				return equal;
+			}
+			long start = System.nanoTime();
+			String srcHash = hashCache.get(HashCache.SOURCE, key, src);
+			String destHash = hashCache.get(HashCache.DESTINATION, key, dest);
+			metrics.databaseLatency.record(System.nanoTime() - start);
+			if (srcHash != null && destHash != null)
+				return srcHash.equals(destHash);
+
+			// read only the files without a valid cached hash
+			start = System.nanoTime();
+			if (srcHash != null) {
+				destHash = comparator.hash(dest.getFile());
+				metrics.bytesHashed.add(dest.length());
+			} else if (destHash != null) {
+				srcHash = comparator.hash(src.getFile());
+				metrics.bytesHashed.add(src.length());
+			} else {
+				srcHash = comparator.compare(src.getFile(), dest.getFile());
+				metrics.bytesHashed.add(src.length() + dest.length());
+				destHash = srcHash;
+			}
+			metrics.time(SyncMetrics.Phase.HASH, start);
+			if (srcHash == null)
+				return false;
+			if (!srcHash.equals(destHash))
+				return false;
+
+			if (!dryRun) {
+				historyWriter.cacheHash(HashCache.SOURCE, key, src, srcHash, comparator.getAlgorithm());
+				historyWriter.cacheHash(HashCache.DESTINATION, key, dest, destHash, comparator.getAlgorithm());
+				if (!fileHistory)
+					historyWriter.updateHash(key, srcHash);
+			}
+			return true;
 		}
 		return false;
 	}
 	
 
+	/**
+	 * Creates the parser for the command line options.
+	 */
+	static JSAP createParser() throws JSAPException {
+		JSAP jsap = new JSAP();
+
+		// not required for --compact-history, checked in main()
+		UnflaggedOption sourceOption = new UnflaggedOption("source path").setStringParser(JSAP.STRING_PARSER).setRequired(
+				false);
+		sourceOption.setHelp("the source path");
+		jsap.registerParameter(sourceOption);
+
+		UnflaggedOption destinationOption = new UnflaggedOption("destination path").setStringParser(JSAP.STRING_PARSER)
+				.setRequired(false);
+		destinationOption.setHelp("the destination path");
+		jsap.registerParameter(destinationOption);
+
+		FlaggedOption dbFileOption = new FlaggedOption("database file").setStringParser(JSAP.STRING_PARSER).setLongFlag(
+				"dbfile").setShortFlag('f').setDefault("synctool");
+		dbFileOption.setHelp("the path to the database file to use");
+		jsap.registerParameter(dbFileOption);
+
+		FlaggedOption historyStoreOption = new FlaggedOption("history store").setStringParser(JSAP.STRING_PARSER)
+				.setLongFlag("history-store").setDefault("database");
+		historyStoreOption.setHelp("where to keep the synchronization history, database or file (a memory-mapped file next to the database file, which is then only needed for hashing and incremental runs)");
+		jsap.registerParameter(historyStoreOption);
+
+		FlaggedOption historyCacheOption = new FlaggedOption("history cache size").setStringParser(JSAP.INTEGER_PARSER)
+				.setLongFlag("history-cache").setDefault("64");
+		historyCacheOption.setHelp("the maximum memory in MB used to hold the synchronization history in memory, 0 to query the database for each file");
+		jsap.registerParameter(historyCacheOption);
+
+		FlaggedOption historyBatchOption = new FlaggedOption("history batch size").setStringParser(JSAP.INTEGER_PARSER)
+				.setLongFlag("history-batch").setDefault("1000");
+		historyBatchOption.setHelp("the number of new history entries written to the database in one transaction");
+		jsap.registerParameter(historyBatchOption);
+
+		FlaggedOption historyFlushOption = new FlaggedOption("history flush interval").setStringParser(JSAP.LONG_PARSER)
+				.setLongFlag("history-flush").setDefault("5000");
+		historyFlushOption.setHelp("the maximum time in milliseconds before new history entries are written to the database");
+		jsap.registerParameter(historyFlushOption);
+
+		FlaggedOption compactThresholdOption = new FlaggedOption("compact threshold").setStringParser(JSAP.INTEGER_PARSER)
+				.setLongFlag("compact-threshold").setDefault("20");
+		compactThresholdOption.setHelp("compact the database at the end of a run when less than 100 minus this percentage of the file is in use or this percentage of the rows has changed since the last compaction");
+		jsap.registerParameter(compactThresholdOption);
+
+		FlaggedOption compactIntervalOption = new FlaggedOption("compact interval").setStringParser(JSAP.INTEGER_PARSER)
+				.setLongFlag("compact-interval").setDefault("30");
+		compactIntervalOption.setHelp("compact the database at the end of a run when the last compaction is older than this number of days, 0 to disable");
+		jsap.registerParameter(compactIntervalOption);
+
+		FlaggedOption jobFileOption = new FlaggedOption("job file").setStringParser(JSAP.STRING_PARSER).setLongFlag("jobs");
+		jobFileOption.setHelp("run the jobs listed in the given file concurrently instead of synchronizing the given paths; every line holds the paths and options of one job, the database is the one given on the command line");
+		jsap.registerParameter(jobFileOption);
+
+		FlaggedOption jobsPerDeviceOption = new FlaggedOption("jobs per device").setStringParser(JSAP.INTEGER_PARSER)
+				.setLongFlag("jobs-per-device").setDefault("1");
+		jobsPerDeviceOption.setHelp("the maximum number of jobs reading from or writing to the same device at the same time");
+		jsap.registerParameter(jobsPerDeviceOption);
+
+		Switch compactHistorySwitch = new Switch("compact history").setLongFlag("compact-history");
+		compactHistorySwitch.setHelp("compact the database and exit without synchronizing");
+		jsap.registerParameter(compactHistorySwitch);
+
+		FlaggedOption metricsFileOption = new FlaggedOption("metrics file").setStringParser(JSAP.STRING_PARSER)
+				.setLongFlag("metrics-file");
+		metricsFileOption.setHelp("write counters, timings and latencies to the given file at the end of the run and with every progress report");
+		jsap.registerParameter(metricsFileOption);
+
+		FlaggedOption metricsFormatOption = new FlaggedOption("metrics format").setStringParser(JSAP.STRING_PARSER)
+				.setLongFlag("metrics-format").setDefault("json");
+		metricsFormatOption.setHelp("the format of the metrics file, json or prometheus");
+		jsap.registerParameter(metricsFormatOption);
+
+		FlaggedOption progressOption = new FlaggedOption("progress interval").setStringParser(JSAP.INTEGER_PARSER)
+				.setLongFlag("progress").setDefault("60");
+		progressOption.setHelp("the interval in seconds between two progress reports, 0 to disable them");
+		jsap.registerParameter(progressOption);
+
+		FlaggedOption logfileOption = new FlaggedOption("logfile").setStringParser(JSAP.STRING_PARSER)
+				.setLongFlag("logfile").setShortFlag('l');
+		logfileOption.setHelp("the path for a logfile to write");
+		jsap.registerParameter(logfileOption);
+
+		FlaggedOption smtpUser = new FlaggedOption("SMTP user").setStringParser(JSAP.STRING_PARSER).setLongFlag(
+				"smtpuser").setShortFlag('t');
+		smtpUser.setHelp("the SMTP user for e-mail reporting");
+		jsap.registerParameter(smtpUser);
+
+		FlaggedOption smtpPassword = new FlaggedOption("SMTP password").setStringParser(JSAP.STRING_PARSER).setLongFlag(
+				"smtppassword").setShortFlag('w');
+		smtpPassword.setHelp("the SMTP password used for sending the e-mail report");
+		jsap.registerParameter(smtpPassword);
+
+		FlaggedOption emailAddress = new FlaggedOption("e-mail address").setStringParser(JSAP.STRING_PARSER).setLongFlag(
+				"email").setShortFlag('e');
+		emailAddress.setHelp("send logging output as jabber message to the given address");
+		jsap.registerParameter(emailAddress);
+
+		FlaggedOption jabberAddress = new FlaggedOption("jabber address").setStringParser(JSAP.STRING_PARSER).setLongFlag(
+				"jabber").setShortFlag('j');
+		jabberAddress.setHelp("send logging output as jabber message to the given address");
+		jsap.registerParameter(jabberAddress);
+
+		FlaggedOption jabberServer = new FlaggedOption("jabber server").setStringParser(JSAP.STRING_PARSER).setLongFlag(
+				"server").setShortFlag('r');
+		jabberServer.setHelp("the jabber server to connect to");
+		jsap.registerParameter(jabberServer);
+
+		FlaggedOption jabberUser = new FlaggedOption("jabber user").setStringParser(JSAP.STRING_PARSER).setLongFlag(
+				"user").setShortFlag('u');
+		jabberUser.setHelp("the jabber user name used for logging in to the server");
+		jsap.registerParameter(jabberUser);
+
+		FlaggedOption jabberPassword = new FlaggedOption("jabber password").setStringParser(JSAP.STRING_PARSER).setLongFlag(
+				"password").setShortFlag('p');
+		jabberPassword.setHelp("the jabber password used for logging in to the server");
+		jsap.registerParameter(jabberPassword);
+
+		FlaggedOption ignoredFile = new FlaggedOption("ignore file").setStringParser(JSAP.STRING_PARSER).setLongFlag(
+				"ignore").setShortFlag('g').setAllowMultipleDeclarations(true);
+		jabberPassword.setHelp("path to a file that should be ignored during synchronization");
+		jsap.registerParameter(ignoredFile);
+
+		FlaggedOption threads = new FlaggedOption("threads").setStringParser(JSAP.INTEGER_PARSER).setLongFlag(
+				"threads").setShortFlag('n').setDefault("1");
+		threads.setHelp("the number of threads used to traverse the directory trees");
+		jsap.registerParameter(threads);
+
+		Switch dryRunSwitch = new Switch("dry-run").setLongFlag("dry-run").setShortFlag('d');
+		dryRunSwitch.setHelp("perform a trial run with no changes made");
+		jsap.registerParameter(dryRunSwitch);
+
+		Switch incrementalSwitch = new Switch("incremental").setLongFlag("incremental");
+		incrementalSwitch.setHelp("skip directories whose modification times have not changed since the last run (files modified in place are only detected by a full run)");
+		jsap.registerParameter(incrementalSwitch);
+
+		Switch hashingSwitch = new Switch("hashing").setLongFlag("hashing").setShortFlag('h');
+		hashingSwitch.setHelp("compare the contents of files with equal size and modification time");
+		jsap.registerParameter(hashingSwitch);
+
+		FlaggedOption hashThreadsOption = new FlaggedOption("hash threads").setStringParser(JSAP.INTEGER_PARSER)
+				.setLongFlag("hash-threads").setDefault("2");
+		hashThreadsOption.setHelp("the number of threads comparing file contents in the background, 0 to compare during the traversal");
+		jsap.registerParameter(hashThreadsOption);
+
+		FlaggedOption hashThreadsPerDeviceOption = new FlaggedOption("hash threads per device").setStringParser(JSAP.INTEGER_PARSER)
+				.setLongFlag("hash-threads-per-device").setDefault("1");
+		hashThreadsPerDeviceOption.setHelp("the maximum number of files read at the same time from one device when comparing contents");
+		jsap.registerParameter(hashThreadsPerDeviceOption);
+
+		Switch mergeWalkSwitch = new Switch("merge walk").setLongFlag("merge-walk");
+		mergeWalkSwitch.setHelp("walk sorted directory listings with a fixed amount of memory, for directories with very many entries (single-threaded traversal)");
+		jsap.registerParameter(mergeWalkSwitch);
+
+		FlaggedOption listingChunkSizeOption = new FlaggedOption("listing chunk size").setStringParser(JSAP.INTEGER_PARSER)
+				.setLongFlag("listing-chunk-size").setDefault("10000");
+		listingChunkSizeOption.setHelp("the number of directory entries sorted in memory when walking sorted listings, larger directories are sorted in temporary files");
+		jsap.registerParameter(listingChunkSizeOption);
+
+		Switch daemonSwitch = new Switch("daemon").setLongFlag("daemon");
+		daemonSwitch.setHelp("keep running after the synchronization and synchronize changed directories as soon as changes are reported");
+		jsap.registerParameter(daemonSwitch);
+
+		FlaggedOption debounceOption = new FlaggedOption("debounce").setStringParser(JSAP.LONG_PARSER)
+				.setLongFlag("debounce").setDefault("2000");
+		debounceOption.setHelp("the time in milliseconds without changes before changed directories are synchronized in daemon mode");
+		jsap.registerParameter(debounceOption);
+
+		FlaggedOption rescanIntervalOption = new FlaggedOption("rescan interval").setStringParser(JSAP.INTEGER_PARSER)
+				.setLongFlag("rescan-interval").setDefault("60");
+		rescanIntervalOption.setHelp("the interval in minutes between two synchronizations of the whole trees in daemon mode, 0 to disable them");
+		jsap.registerParameter(rescanIntervalOption);
+
+		FlaggedOption copyThreadsOption = new FlaggedOption("copy threads").setStringParser(JSAP.INTEGER_PARSER)
+				.setLongFlag("copy-threads").setDefault("0");
+		copyThreadsOption.setHelp("the number of threads copying and deleting files in the background, 0 to copy during the traversal");
+		jsap.registerParameter(copyThreadsOption);
+
+		FlaggedOption largeCopyThreadsOption = new FlaggedOption("large copy threads").setStringParser(JSAP.INTEGER_PARSER)
+				.setLongFlag("large-copy-threads").setDefault("1");
+		largeCopyThreadsOption.setHelp("the number of threads copying large files and directories in the background");
+		jsap.registerParameter(largeCopyThreadsOption);
+
+		FlaggedOption largeFileThresholdOption = new FlaggedOption("large file threshold").setStringParser(JSAP.INTEGER_PARSER)
+				.setLongFlag("large-file-threshold").setDefault("16");
+		largeFileThresholdOption.setHelp("the size in MB from which on a file is copied by the threads for large files");
+		jsap.registerParameter(largeFileThresholdOption);
+
+		FlaggedOption bandwidthOption = new FlaggedOption("bandwidth").setStringParser(JSAP.INTEGER_PARSER)
+				.setLongFlag("bandwidth").setDefault("0");
+		bandwidthOption.setHelp("the maximum rate in KB per second at which files are copied to the destination (0 for no limit)");
+		jsap.registerParameter(bandwidthOption);
+
+		FlaggedOption sourceBandwidthOption = new FlaggedOption("source bandwidth").setStringParser(JSAP.INTEGER_PARSER)
+				.setLongFlag("source-bandwidth").setDefault("-1");
+		sourceBandwidthOption.setHelp("the maximum rate in KB per second at which files are copied to the source (0 for no limit, -1 for the same as --bandwidth)");
+		jsap.registerParameter(sourceBandwidthOption);
+
+		FlaggedOption iopsOption = new FlaggedOption("iops").setStringParser(JSAP.INTEGER_PARSER)
+				.setLongFlag("iops").setDefault("0");
+		iopsOption.setHelp("the maximum number of files copied or deleted per second in the destination (0 for no limit)");
+		jsap.registerParameter(iopsOption);
+
+		FlaggedOption sourceIopsOption = new FlaggedOption("source iops").setStringParser(JSAP.INTEGER_PARSER)
+				.setLongFlag("source-iops").setDefault("-1");
+		sourceIopsOption.setHelp("the maximum number of files copied or deleted per second in the source (0 for no limit, -1 for the same as --iops)");
+		jsap.registerParameter(sourceIopsOption);
+
+		Switch adaptiveRateSwitch = new Switch("adaptive rate").setLongFlag("adaptive-rate");
+		adaptiveRateSwitch.setHelp("lower the bandwidth while the latency of the copies rises, up to the limits given by --bandwidth and --source-bandwidth");
+		jsap.registerParameter(adaptiveRateSwitch);
+
+		FlaggedOption checkpointSizeOption = new FlaggedOption("checkpoint size").setStringParser(JSAP.INTEGER_PARSER)
+				.setLongFlag("checkpoint-size").setDefault("256");
+		checkpointSizeOption.setHelp("the amount of data in MB after which the progress of a file copy is recorded, so an interrupted copy can be resumed");
+		jsap.registerParameter(checkpointSizeOption);
+
+		FlaggedOption deltaThresholdOption = new FlaggedOption("delta threshold").setStringParser(JSAP.INTEGER_PARSER)
+				.setLongFlag("delta-threshold").setDefault("0");
+		deltaThresholdOption.setHelp("the size in MB from which on modified files are updated in place, writing only changed blocks (0 to always copy whole files)");
+		jsap.registerParameter(deltaThresholdOption);
+
+		FlaggedOption chunkStoreOption = new FlaggedOption("chunk store").setStringParser(JSAP.STRING_PARSER)
+				.setLongFlag("chunk-store");
+		chunkStoreOption.setHelp("store the destination files as compressed chunks in this directory, each distinct chunk only once, leaving a manifest of the chunks in place of each file; the directory may be shared by several destinations");
+		jsap.registerParameter(chunkStoreOption);
+
+		Switch detectMovesSwitch = new Switch("detect moves").setLongFlag("detect-moves");
+		detectMovesSwitch.setHelp("rename moved files and directories on the other side instead of copying them, and link or clone new duplicates of synchronized files");
+		jsap.registerParameter(detectMovesSwitch);
+
+		FlaggedOption moveThresholdOption = new FlaggedOption("move threshold").setStringParser(JSAP.INTEGER_PARSER)
+				.setLongFlag("move-threshold").setDefault("1");
+		moveThresholdOption.setHelp("the size in MB from which on single files are checked for moves and duplicates (0 for all files)");
+		jsap.registerParameter(moveThresholdOption);
+
+		FlaggedOption hashAlgorithm = new FlaggedOption("hash algorithm").setStringParser(JSAP.STRING_PARSER).setLongFlag(
+				"hash-algorithm").setDefault("MD5");
+		hashAlgorithm.setHelp("the algorithm for the file hashes stored in the database, MD5 or XXHASH64 (faster)");
+		jsap.registerParameter(hashAlgorithm);
+
+		Switch rollingSwitch = new Switch("rolling-logfile").setLongFlag("rolling-logfile").setShortFlag('o');
+		rollingSwitch.setHelp("generate a rolling logfile with a maximum size of 10 MB");
+		jsap.registerParameter(rollingSwitch);
+
+		Switch ignoreDirAttribsSwitch = new Switch("ignore directory attributes").setLongFlag("ignore-directory-attributes").setShortFlag('i');
+		ignoreDirAttribsSwitch.setHelp("do not copy attributes for directories");
+		jsap.registerParameter(ignoreDirAttribsSwitch);
+
+		Switch silentSwitch = new Switch("silent").setLongFlag("silent").setShortFlag('s');
+		silentSwitch.setHelp("do not print \"Entering directory\" and \"No operation\" messages");
+		jsap.registerParameter(silentSwitch);
+
+		FlaggedOption checkFileExists = new FlaggedOption("checkfile").setStringParser(JSAP.STRING_PARSER).setLongFlag(
+		"check-file-exists");
+		checkFileExists.setHelp("perform synchronization only if the given file exists");
+		jsap.registerParameter(checkFileExists);
+
+		Switch debugSwitch = new Switch("debug").setLongFlag("debug");
+		debugSwitch.setHelp("print debug messages");
+		jsap.registerParameter(debugSwitch);
+
+		Switch helpSwitch = new Switch("help").setLongFlag("help").setShortFlag('?');
+		helpSwitch.setHelp("print help and exit");
+		jsap.registerParameter(helpSwitch);
+
+		return jsap;
+	}
+
 	/**
 	 * @param args
 	 */
 	public static void main(String[] args) {
 		
-		BasicConfigurator.configure(new ConsoleAppender(new PatternLayout("%d{ISO8601} - %m%n")));
+		// the ConsoleAppender of the log4j 1.2 bridge does not write anything
+		BasicConfigurator.configure(new WriterAppender(new PatternLayout("%d{ISO8601} - %m%n"), System.out));
 		log.info("Starting SyncTool version 1.43");
 
-		JSAP jsap = new JSAP();
-
+		JSAP jsap = null;
 		try {
-			UnflaggedOption sourceOption = new UnflaggedOption("source path").setStringParser(JSAP.STRING_PARSER).setRequired(
-					true);
-			sourceOption.setHelp("the source path");
-			jsap.registerParameter(sourceOption);
-
-			UnflaggedOption destinationOption = new UnflaggedOption("destination path").setStringParser(JSAP.STRING_PARSER)
-					.setRequired(true);
-			destinationOption.setHelp("the destination path");
-			jsap.registerParameter(destinationOption);
-
-			FlaggedOption dbFileOption = new FlaggedOption("database file").setStringParser(JSAP.STRING_PARSER).setLongFlag(
-					"dbfile").setShortFlag('f').setDefault("synctool");
-			dbFileOption.setHelp("the path to the database file to use");
-			jsap.registerParameter(dbFileOption);
-
-			FlaggedOption logfileOption = new FlaggedOption("logfile").setStringParser(JSAP.STRING_PARSER)
-					.setLongFlag("logfile").setShortFlag('l');
-			logfileOption.setHelp("the path for a logfile to write");
-			jsap.registerParameter(logfileOption);
-
-			FlaggedOption smtpUser = new FlaggedOption("SMTP user").setStringParser(JSAP.STRING_PARSER).setLongFlag(
-					"smtpuser").setShortFlag('t');
-			smtpUser.setHelp("the SMTP user for e-mail reporting");
-			jsap.registerParameter(smtpUser);
-
-			FlaggedOption smtpPassword = new FlaggedOption("SMTP password").setStringParser(JSAP.STRING_PARSER).setLongFlag(
-					"smtppassword").setShortFlag('w');
-			smtpPassword.setHelp("the SMTP password used for sending the e-mail report");
-			jsap.registerParameter(smtpPassword);
-
-			FlaggedOption emailAddress = new FlaggedOption("e-mail address").setStringParser(JSAP.STRING_PARSER).setLongFlag(
-					"email").setShortFlag('e');
-			emailAddress.setHelp("send logging output as jabber message to the given address");
-			jsap.registerParameter(emailAddress);
-
-			FlaggedOption jabberAddress = new FlaggedOption("jabber address").setStringParser(JSAP.STRING_PARSER).setLongFlag(
-					"jabber").setShortFlag('j');
-			jabberAddress.setHelp("send logging output as jabber message to the given address");
-			jsap.registerParameter(jabberAddress);
-
-			FlaggedOption jabberServer = new FlaggedOption("jabber server").setStringParser(JSAP.STRING_PARSER).setLongFlag(
-					"server").setShortFlag('r');
-			jabberServer.setHelp("the jabber server to connect to");
-			jsap.registerParameter(jabberServer);
-
-			FlaggedOption jabberUser = new FlaggedOption("jabber user").setStringParser(JSAP.STRING_PARSER).setLongFlag(
-					"user").setShortFlag('u');
-			jabberUser.setHelp("the jabber user name used for logging in to the server");
-			jsap.registerParameter(jabberUser);
-
-			FlaggedOption jabberPassword = new FlaggedOption("jabber password").setStringParser(JSAP.STRING_PARSER).setLongFlag(
-					"password").setShortFlag('p');
-			jabberPassword.setHelp("the jabber password used for logging in to the server");
-			jsap.registerParameter(jabberPassword);
-
-			FlaggedOption ignoredFile = new FlaggedOption("ignore file").setStringParser(JSAP.STRING_PARSER).setLongFlag(
-					"ignore").setShortFlag('g').setAllowMultipleDeclarations(true);
-			jabberPassword.setHelp("path to a file that should be ignored during synchronization");
-			jsap.registerParameter(ignoredFile);
-
-			Switch dryRunSwitch = new Switch("dry-run").setLongFlag("dry-run").setShortFlag('d');
-			dryRunSwitch.setHelp("perform a trial run with no changes made");
-			jsap.registerParameter(dryRunSwitch);
-
-			Switch hashingSwitch = new Switch("hashing").setLongFlag("hashing").setShortFlag('h');
-			hashingSwitch.setHelp("generate MD5 file hashes for exact comparison");
-			jsap.registerParameter(hashingSwitch);
-
-			Switch rollingSwitch = new Switch("rolling-logfile").setLongFlag("rolling-logfile").setShortFlag('o');
-			rollingSwitch.setHelp("generate a rolling logfile with a maximum size of 10 MB");
-			jsap.registerParameter(rollingSwitch);
-
-			Switch ignoreDirAttribsSwitch = new Switch("ignore directory attributes").setLongFlag("ignore-directory-attributes").setShortFlag('i');
-			ignoreDirAttribsSwitch.setHelp("do not copy attributes for directories");
-			jsap.registerParameter(ignoreDirAttribsSwitch);
-
-			Switch silentSwitch = new Switch("silent").setLongFlag("silent").setShortFlag('s');
-			silentSwitch.setHelp("do not print \"Entering directory\" and \"No operation\" messages");
-			jsap.registerParameter(silentSwitch);
-
-			FlaggedOption checkFileExists = new FlaggedOption("checkfile").setStringParser(JSAP.STRING_PARSER).setLongFlag(
-			"check-file-exists");
-			checkFileExists.setHelp("perform synchronization only if the given file exists");
-			jsap.registerParameter(checkFileExists);
-
-			Switch debugSwitch = new Switch("debug").setLongFlag("debug");
-			debugSwitch.setHelp("print debug messages");
-			jsap.registerParameter(debugSwitch);
-
-			Switch helpSwitch = new Switch("help").setLongFlag("help").setShortFlag('?');
-			helpSwitch.setHelp("print help and exit");
-			jsap.registerParameter(helpSwitch);
-
+			jsap = createParser();
 		} catch (JSAPException e) {
 			log.fatal(e.getMessage());
 			System.exit(-1002);
 		}
 		
 		JSAPResult config = jsap.parse(args);
+		boolean missingPaths = config.success() && !config.getBoolean("compact history") && config.getString("job file") == null
+				&& (config.getString("source path") == null || config.getString("destination path") == null);
 		
-		if (!config.success() || config.getBoolean("help")) {
+		if (!config.success() || config.getBoolean("help") || missingPaths) {
 			for (java.util.Iterator errs = config.getErrorMessageIterator(); errs.hasNext();) {
 				log.error("Error: " + errs.next());
 			}
+			if (missingPaths)
+				log.error("Error: the source and the destination path are required");
 
 			log.error("Usage: java -jar synctool.jar " + jsap.getUsage() + "\n\n" + jsap.getHelp());
 			System.exit(-1003);
@@ -619,7 +2314,10 @@ public class SyncTool {
 		}
 		
 		if (config.getString("SMTP user") != null) {
-			BasicConfigurator.configure(new EmailCollector(200, config.getString("SMTP user"), config.getString("SMTP password"), config.getString("e-mail address"), "SyncTool Report"));
+			EmailCollector emailCollector = new EmailCollector(50, 200, config.getString("SMTP user"), config.getString("SMTP password"), config.getString("e-mail address"), "SyncTool Report");
+			emailCollector.setOperations("Copying file", "Copying directory", "Updating file", "Deleting file", "Deleting directory",
+					"Moving file", "Moving directory", "Creating directory", "Linking file", "Cloning file");
+			BasicConfigurator.configure(emailCollector);
 			log.info("Prepared e-mail report for " + config.getString("e-mail address"));
 			
 		}
@@ -641,10 +2339,21 @@ public class SyncTool {
 			}
 		}
 		
-		SyncTool syncTool = new SyncTool(config);
-		syncTool.sync(config.getString("source path"), config.getString("destination path"));
+		boolean terminated = false;
+		if (config.getString("job file") != null) {
+			new JobRunner(jsap, config).run();
+		} else {
+			SyncTool syncTool = new SyncTool(config);
+			if (config.getBoolean("compact history"))
+				syncTool.compactHistory();
+			else
+				syncTool.sync(config.getString("source path"), config.getString("destination path"));
+			terminated = syncTool.isTerminated();
+		}
 		
-		// shutting down the logger will trigger the generation of the e-mail report
-		LogManager.shutdown();
+		// shutting down the logger will trigger the generation of the e-mail report,
+		// the logger of a terminated daemon is shut down with the JVM
+		if (!terminated)
+			LogManager.shutdown();
 	}
 }
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2012 Tilman Liero
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.tilman.synctool;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Limits the rate of the copies and deletions in one direction with two
+ * token buckets, one for the bytes and one for the operations per second.
+ * Each bucket holds up to one second worth of tokens, so short bursts are
+ * allowed after idle periods. Tokens are reserved before they are available,
+ * so a thread waits for the reservations of the threads that came before it
+ * and concurrent copies share the rate.
+ * <p>
+ * In adaptive mode, the time taken by every chunk of data is recorded and
+ * averaged over intervals of one second. When the average latency rises to a
+ * multiple of the lowest average seen, the byte rate is cut; while it stays
+ * low, the rate grows again up to the configured maximum. The device or link
+ * is thus kept below the point where requests start to queue up.
+ */
+class Throttle {
+
+	private final static Logger log = Logger.getLogger(Throttle.class);
+
+	/**
+	 * The amount of data transferred between two checks of the byte rate
+	 */
+	final static int CHUNK_SIZE = 256 * 1024;
+
+	/**
+	 * Latency above this multiple of the baseline is taken for congestion
+	 */
+	private final static double CONGESTION_FACTOR = 2.0;
+
+	/**
+	 * Chunks served from the page cache take less than this and never count
+	 * as congestion, however much their latency varies
+	 */
+	private final static long MIN_CONGESTED_LATENCY = TimeUnit.MILLISECONDS.toNanos(2);
+
+	/**
+	 * Factor applied to the byte rate on congestion
+	 */
+	private final static double DECREASE_FACTOR = 0.7;
+
+	/**
+	 * Fraction of the maximum byte rate added per adjustment without
+	 * congestion, also the lowest rate adaptive mode goes down to
+	 */
+	private final static double INCREASE_FRACTION = 0.05;
+
+	private final static long ADJUST_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+	/**
+	 * A token bucket. A rate of 0 means no limit.
+	 */
+	private static class Bucket {
+
+		private double rate;
+		private double tokens;
+		private long last = System.nanoTime();
+
+		Bucket(double rate) {
+			this.rate = rate;
+			this.tokens = rate;
+		}
+
+		/**
+		 * Takes tokens from the bucket.
+		 * 
+		 * @return the time in nanoseconds to wait until the tokens are
+		 *         available
+		 */
+		synchronized long reserve(double amount) {
+			if (rate <= 0)
+				return 0;
+			long now = System.nanoTime();
+			tokens = Math.min(rate, tokens + (now - last) * rate / 1e9);
+			last = now;
+			tokens -= amount;
+			return tokens >= 0 ? 0 : (long) (-tokens / rate * 1e9);
+		}
+
+		synchronized void setRate(double rate) {
+			this.rate = rate;
+		}
+	}
+
+	private final String name;
+	private final Bucket bytes;
+	private final Bucket operations;
+	private final double maxRate;
+	private final boolean adaptive;
+	private final SyncMetrics metrics;
+
+	private double rate;
+	private double baseline;
+	private double latencySum;
+	private int samples;
+	private long lastAdjustment = System.nanoTime();
+
+	/**
+	 * @param name the direction, used in log messages
+	 * @param bytesPerSecond the maximum byte rate or 0 for no limit
+	 * @param operationsPerSecond the maximum number of copies and deletions
+	 *        per second or 0 for no limit
+	 * @param adaptive true to lower the byte rate when the latency rises,
+	 *        requires a byte rate
+	 * @param metrics the metrics recording the time spent waiting
+	 */
+	Throttle(String name, long bytesPerSecond, double operationsPerSecond, boolean adaptive, SyncMetrics metrics) {
+		this.name = name;
+		this.bytes = new Bucket(bytesPerSecond);
+		this.operations = new Bucket(operationsPerSecond);
+		this.maxRate = bytesPerSecond;
+		this.rate = bytesPerSecond;
+		this.adaptive = adaptive && bytesPerSecond > 0;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Waits until another copy or deletion may be started.
+	 */
+	void acquireOperation() throws InterruptedIOException {
+		pause(operations.reserve(1));
+	}
+
+	/**
+	 * Waits until the given amount of data may be transferred.
+	 */
+	void acquire(long amount) throws InterruptedIOException {
+		pause(bytes.reserve(amount));
+	}
+
+	private void pause(long nanos) throws InterruptedIOException {
+		if (nanos <= 0)
+			return;
+		long start = System.nanoTime();
+		try {
+			TimeUnit.NANOSECONDS.sleep(nanos);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while throttled");
+		} finally {
+			metrics.time(SyncMetrics.Phase.THROTTLE, start);
+		}
+	}
+
+	/**
+	 * Records the time taken to transfer a chunk of data.
+	 * 
+	 * @param amount the number of bytes transferred
+	 * @param nanos the time taken in nanoseconds
+	 */
+	void record(long amount, long nanos) {
+		if (!adaptive || amount <= 0)
+			return;
+		synchronized (this) {
+			// the latency of a full chunk
+			latencySum += nanos * (double) CHUNK_SIZE / amount;
+			samples++;
+			long now = System.nanoTime();
+			if (now - lastAdjustment < ADJUST_INTERVAL)
+				return;
+			lastAdjustment = now;
+			double latency = latencySum / samples;
+			latencySum = 0;
+			samples = 0;
+
+			// the baseline follows rising latencies slowly, in case the device has become slower for good
+			baseline = baseline == 0 || latency < baseline ? latency : baseline + (latency - baseline) * 0.01;
+			boolean congested = latency > MIN_CONGESTED_LATENCY && latency > baseline * CONGESTION_FACTOR;
+
+			double previous = rate;
+			if (congested)
+				rate = Math.max(rate * DECREASE_FACTOR, maxRate * INCREASE_FRACTION);
+			else
+				rate = Math.min(rate + maxRate * INCREASE_FRACTION, maxRate);
+			if (rate == previous)
+				return;
+			bytes.setRate(rate);
+			if (rate < previous)
+				log.debug("Latency of copies " + name + " rising, lowering the rate to "
+						+ SyncMetrics.formatBytes((long) rate) + "/s");
+		}
+	}
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2012 Tilman Liero
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package de.tilman.synctool;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+
+/**
+ * The chunks referred to by the manifests of a {@link ChunkStore}, collected
+ * with a fixed amount of memory like a {@link SortedListing}. The first 8
+ * bytes of the chunk hashes are collected in a buffer of a fixed size; every
+ * full buffer is sorted and written to a temporary file. The sorted runs are
+ * merged while the chunks of the store are looked up in ascending order.
+ * <p>
+ * The prefixes are compared as unsigned numbers, which is the order of the
+ * hex encoded hashes.
+ */
+class UsedChunks implements Closeable {
+
+	/**
+	 * A sorted run of prefixes, either in memory or in a temporary file. The
+	 * sign bit of the prefixes is flipped, so they can be compared as signed
+	 * numbers.
+	 */
+	private static class Run implements Comparable<Run> {
+
+		private final long[] prefixes;
+		private final DataInputStream in;
+		private int index;
+		private int remaining;
+		long current;
+
+		Run(long[] prefixes, int count) {
+			this.prefixes = prefixes;
+			this.in = null;
+			this.remaining = count;
+		}
+
+		Run(File file, int count) throws IOException {
+			this.prefixes = null;
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			this.remaining = count;
+		}
+
+		boolean advance() throws IOException {
+			if (remaining == 0)
+				return false;
+			remaining--;
+			current = prefixes != null ? prefixes[index++] : in.readLong();
+			return true;
+		}
+
+		void close() throws IOException {
+			if (in != null)
+				in.close();
+		}
+
+		@Override
+		public int compareTo(Run other) {
+			return Long.compare(current, other.current);
+		}
+	}
+
+	private final long[] buffer;
+	private int count;
+	private final List<File> runFiles = new ArrayList<File>();
+	private final List<Run> runs = new ArrayList<Run>();
+	private PriorityQueue<Run> queue;
+
+	/**
+	 * @param bufferSize the maximum number of prefixes held in memory
+	 */
+	UsedChunks(int bufferSize) {
+		buffer = new long[bufferSize];
+	}
+
+	/**
+	 * Adds a used chunk.
+	 *
+	 * @param prefix the first 8 bytes of the hash of the chunk
+	 */
+	void add(long prefix) throws IOException {
+		buffer[count++] = prefix ^ Long.MIN_VALUE;
+		if (count == buffer.length) {
+			spill();
+			count = 0;
+		}
+	}
+
+	/**
+	 * Sorts the buffer and removes duplicates.
+	 *
+	 * @return the number of distinct prefixes
+	 */
+	private int sortBuffer() {
+		Arrays.sort(buffer, 0, count);
+		int distinct = 0;
+		for (int i = 0; i < count; i++) {
+			if (distinct == 0 || buffer[i] != buffer[distinct - 1])
+				buffer[distinct++] = buffer[i];
+		}
+		return distinct;
+	}
+
+	private void spill() throws IOException {
+		int distinct = sortBuffer();
+		File file = File.createTempFile("synctool-chunks", ".tmp");
+		runFiles.add(file);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			for (int i = 0; i < distinct; i++) {
+				out.writeLong(buffer[i]);
+			}
+		} finally {
+			out.close();
+		}
+		runs.add(new Run(file, distinct));
+	}
+
+	/**
+	 * @return the number of runs written to temporary files
+	 */
+	int getSpilledRuns() {
+		return runFiles.size();
+	}
+
+	/**
+	 * Checks whether a chunk is used. All chunks have to be added before, and
+	 * the chunks have to be looked up in ascending order of their prefixes.
+	 *
+	 * @param prefix the first 8 bytes of the hash of the chunk
+	 */
+	boolean contains(long prefix) throws IOException {
+		if (queue == null) {
+			runs.add(new Run(buffer, sortBuffer()));
+			queue = new PriorityQueue<Run>();
+			for (Run run : runs) {
+				if (run.advance())
+					queue.add(run);
+			}
+		}
+		long value = prefix ^ Long.MIN_VALUE;
+		while (!queue.isEmpty() && queue.peek().current < value) {
+			Run run = queue.poll();
+			if (run.advance())
+				queue.add(run);
+		}
+		return !queue.isEmpty() && queue.peek().current == value;
+	}
+
+	/**
+	 * Closes and deletes the temporary files.
+	 */
+	@Override
+	public void close() throws IOException {
+		for (Run run : runs) {
+			run.close();
+		}
+		for (File file : runFiles) {
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2012 Tilman Liero
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package de.tilman.synctool;
+
+import java.security.MessageDigest;
+
+
+/**
+ * Streaming implementation of the non-cryptographic xxHash64 algorithm (seed
+ * 0). It is several times faster than MD5 and sufficient to detect changed
+ * files. The digest is the 64 bit hash in big-endian byte order.
+ */
+class XXHash64 extends MessageDigest {
+
+	private final static long PRIME1 = 0x9E3779B185EBCA87L;
+	private final static long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+	private final static long PRIME3 = 0x165667B19E3779F9L;
+	private final static long PRIME4 = 0x85EBCA77C2B2AE63L;
+	private final static long PRIME5 = 0x27D4EB2F165667C5L;
+
+	private long v1, v2, v3, v4;
+	private long totalLength;
+
+	/**
+	 * Input not yet processed, less than one stripe of 32 bytes
+	 */
+	private final byte[] memory = new byte[32];
+	private int memorySize;
+
+	XXHash64() {
+		super("XXHASH64");
+		engineReset();
+	}
+
+	@Override
+	protected void engineReset() {
+		v1 = PRIME1 + PRIME2;
+		v2 = PRIME2;
+		v3 = 0;
+		v4 = -PRIME1;
+		totalLength = 0;
+		memorySize = 0;
+	}
+
+	@Override
+	protected int engineGetDigestLength() {
+		return 8;
+	}
+
+	@Override
+	protected void engineUpdate(byte input) {
+		engineUpdate(new byte[] { input }, 0, 1);
+	}
+
+	@Override
+	protected void engineUpdate(byte[] input, int offset, int length) {
+		totalLength += length;
+		int end = offset + length;
+
+		if (memorySize > 0) {
+			int fill = Math.min(32 - memorySize, length);
+			System.arraycopy(input, offset, memory, memorySize, fill);
+			memorySize += fill;
+			offset += fill;
+			if (memorySize < 32)
+				return;
+			processStripe(memory, 0);
+			memorySize = 0;
+		}
+
+		while (offset <= end - 32) {
+			processStripe(input, offset);
+			offset += 32;
+		}
+
+		memorySize = end - offset;
+		System.arraycopy(input, offset, memory, 0, memorySize);
+	}
+
+	private void processStripe(byte[] input, int offset) {
+		v1 = round(v1, readLong(input, offset));
+		v2 = round(v2, readLong(input, offset + 8));
+		v3 = round(v3, readLong(input, offset + 16));
+		v4 = round(v4, readLong(input, offset + 24));
+	}
+
+	@Override
+	protected byte[] engineDigest() {
+		long hash;
+		if (totalLength >= 32) {
+			hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+			hash = mergeRound(hash, v1);
+			hash = mergeRound(hash, v2);
+			hash = mergeRound(hash, v3);
+			hash = mergeRound(hash, v4);
+		} else {
+			hash = PRIME5;
+		}
+		hash += totalLength;
+
+		int offset = 0;
+		while (offset <= memorySize - 8) {
+			hash ^= round(0, readLong(memory, offset));
+			hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+			offset += 8;
+		}
+		if (offset <= memorySize - 4) {
+			hash ^= (readInt(memory, offset) & 0xFFFFFFFFL) * PRIME1;
+			hash = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+			offset += 4;
+		}
+		while (offset < memorySize) {
+			hash ^= (memory[offset] & 0xFF) * PRIME5;
+			hash = Long.rotateLeft(hash, 11) * PRIME1;
+			offset++;
+		}
+
+		hash ^= hash >>> 33;
+		hash *= PRIME2;
+		hash ^= hash >>> 29;
+		hash *= PRIME3;
+		hash ^= hash >>> 32;
+
+		engineReset();
+		byte[] digest = new byte[8];
+		for (int i = 7; i >= 0; i--) {
+			digest[i] = (byte) hash;
+			hash >>>= 8;
+		}
+		return digest;
+	}
+
+	private static long round(long accumulator, long input) {
+		accumulator += input * PRIME2;
+		accumulator = Long.rotateLeft(accumulator, 31);
+		return accumulator * PRIME1;
+	}
+
+	private static long mergeRound(long accumulator, long value) {
+		accumulator ^= round(0, value);
+		return accumulator * PRIME1 + PRIME4;
+	}
+
+	private static long readLong(byte[] input, int offset) {
+		return (input[offset] & 0xFFL)
+				| (input[offset + 1] & 0xFFL) << 8
+				| (input[offset + 2] & 0xFFL) << 16
+				| (input[offset + 3] & 0xFFL) << 24
+				| (input[offset + 4] & 0xFFL) << 32
+				| (input[offset + 5] & 0xFFL) << 40
+				| (input[offset + 6] & 0xFFL) << 48
+				| (input[offset + 7] & 0xFFL) << 56;
+	}
+
+	private static int readInt(byte[] input, int offset) {
+		return (input[offset] & 0xFF)
+				| (input[offset + 1] & 0xFF) << 8
+				| (input[offset + 2] & 0xFF) << 16
+				| (input[offset + 3] & 0xFF) << 24;
+	}
+}
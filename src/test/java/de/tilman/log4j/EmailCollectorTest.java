@@ -0,0 +1,63 @@
+package de.tilman.log4j;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * Tests for the report of the EmailCollector, without sending it.
+ */
+public class EmailCollectorTest extends TestCase {
+
+	private Logger logger;
+
+	/**
+	 * @return a logger writing only to the collector
+	 */
+	private Logger attach(EmailCollector collector) {
+		Logger logger = Logger.getLogger(EmailCollectorTest.class.getName() + "." + getName());
+		logger.setAdditivity(false);
+		logger.setLevel(Level.INFO);
+		logger.addAppender(collector);
+		return logger;
+	}
+
+	private void log(EmailCollector collector, Level level, String message) {
+		if (logger == null)
+			logger = attach(collector);
+		logger.log(level, message);
+	}
+
+	public void testHeadAndTailAreKept() {
+		EmailCollector collector = new EmailCollector(2, 3, null, null, null, null);
+		for (int i = 1; i <= 10; i++) {
+			log(collector, Level.INFO, "line " + i);
+		}
+
+		String[] lines = collector.report().split("\n");
+		assertEquals("Messages: 10, warnings: 0, errors: 0", lines[0]);
+		assertTrue(lines[2].endsWith(" - line 1"));
+		assertTrue(lines[3].endsWith(" - line 2"));
+		assertEquals("[5 lines omitted]", lines[4]);
+		assertTrue(lines[5].endsWith(" - line 8"));
+		assertTrue(lines[6].endsWith(" - line 9"));
+		assertTrue(lines[7].endsWith(" - line 10"));
+		assertEquals(8, lines.length);
+	}
+
+	public void testOperationsAreCounted() {
+		EmailCollector collector = new EmailCollector(0, 1, null, null, null, null);
+		collector.setOperations("Copying file", "Deleting file");
+		log(collector, Level.INFO, "Copying file a");
+		log(collector, Level.INFO, "Copying file b");
+		log(collector, Level.INFO, "Copying files from a to b");
+		log(collector, Level.WARN, "Deleting file c");
+		log(collector, Level.ERROR, "Error");
+
+		String report = collector.report();
+		assertTrue(report.startsWith("Messages: 5, warnings: 1, errors: 1\nCopying file: 2\nDeleting file: 1\n"));
+		assertTrue(report.contains("[4 lines omitted]"));
+		assertTrue(report.endsWith(" - Error\n"));
+	}
+}
@@ -0,0 +1,83 @@
+package de.tilman.log4j;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * Tests for the buffering and batching of the JabberAppender, with the chat
+ * replaced by a list of sent messages.
+ */
+public class JabberAppenderTest extends TestCase {
+
+	private static class TestAppender extends JabberAppender {
+
+		final List<String> messages = new CopyOnWriteArrayList<String>();
+		final CountDownLatch sending = new CountDownLatch(1);
+		final CountDownLatch release;
+
+		TestAppender(int bufferSize, int linesPerMessage, long interval, CountDownLatch release) {
+			super(bufferSize, linesPerMessage, interval);
+			this.release = release;
+		}
+
+		@Override
+		public void sendChat(String message) {
+			sending.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			messages.add(message);
+		}
+	}
+
+	/**
+	 * @return a logger writing only to the appender
+	 */
+	private Logger attach(JabberAppender appender) {
+		Logger logger = Logger.getLogger(JabberAppenderTest.class.getName() + "." + getName());
+		logger.setAdditivity(false);
+		logger.setLevel(Level.INFO);
+		logger.addAppender(appender);
+		return logger;
+	}
+
+	public void testLinesAreCombined() {
+		TestAppender appender = new TestAppender(100, 3, 60000, new CountDownLatch(0));
+		Logger logger = attach(appender);
+		for (int i = 1; i <= 7; i++) {
+			logger.info("line " + i);
+		}
+		appender.close();
+
+		assertEquals(3, appender.messages.size());
+		assertEquals("line 1\nline 2\nline 3", appender.messages.get(0).replace("\r", ""));
+		assertEquals("line 4\nline 5\nline 6", appender.messages.get(1).replace("\r", ""));
+		assertEquals("line 7", appender.messages.get(2).replace("\r", ""));
+	}
+
+	public void testDroppedLinesAreReported() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		TestAppender appender = new TestAppender(2, 1, 0, release);
+		Logger logger = attach(appender);
+		logger.info("first");
+		// wait until the sender thread is blocked sending the first line
+		appender.sending.await();
+		for (int i = 0; i < 5; i++) {
+			logger.info("line " + i);
+		}
+		release.countDown();
+		appender.close();
+
+		String all = appender.messages.toString();
+		assertTrue(all, all.contains("first"));
+		assertTrue(all, all.contains("[3 lines dropped]"));
+	}
+}
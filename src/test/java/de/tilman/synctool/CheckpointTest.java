@@ -0,0 +1,170 @@
+package de.tilman.synctool;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests for resuming an interrupted run from the checkpoint journal.
+ */
+public class CheckpointTest extends TestCase {
+
+	private Connection connection;
+	private Statement statement;
+	private File directory;
+
+	@Override
+	protected void setUp() throws Exception {
+		connection = DriverManager.getConnection("jdbc:h2:mem:" + getName(), "sa", "");
+		SyncTool.createTables(connection);
+		statement = connection.createStatement();
+		statement.executeUpdate("INSERT INTO Source (id, path, lastSync) VALUES (1, '/src', CURRENT_TIMESTAMP)");
+		directory = Files.createTempDirectory("synctool-checkpoint").toFile();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		connection.close();
+		FileUtils.deleteDirectory(directory);
+	}
+
+	private File createDirectory(String path) {
+		File dir = new File(directory, path);
+		dir.mkdirs();
+		return dir;
+	}
+
+	private int count(String sql) throws Exception {
+		// the writer does not commit its batches before they are flushed
+		Statement other = DriverManager.getConnection("jdbc:h2:mem:" + getName(), "sa", "").createStatement();
+		try {
+			ResultSet resultSet = other.executeQuery(sql);
+			resultSet.next();
+			return resultSet.getInt(1);
+		} finally {
+			other.getConnection().close();
+		}
+	}
+
+	private static List<String> names(List<File[]> subdirectories) {
+		List<String> names = new ArrayList<String>();
+		for (File[] pair : subdirectories) {
+			names.add(pair[0].getName());
+		}
+		Collections.sort(names);
+		return names;
+	}
+
+	public void testCompletedSubdirectories() throws Exception {
+		File src = createDirectory("src");
+		File dest = createDirectory("dest");
+		String[] paths = new String[] { "src/a/b", "src/a/c", "src/d", "dest/a/b", "dest/a/c", "dest/d", "src/a", "dest/a",
+				"src", "dest" };
+		for (String path : paths) {
+			createDirectory(path).setLastModified(1000000000000L);
+		}
+
+		// directories are journaled after their subdirectories, d has not been completed
+		HistoryWriter writer = new HistoryWriter(connection, 1, 100, 60000, new SyncMetrics());
+		writer.checkpointDirectory("a/b", 1000000000000L, 1000000000000L);
+		writer.checkpointDirectory("a/c", 1000000000000L, 1000000000000L);
+		writer.checkpointDirectory("a", 1000000000000L, 1000000000000L);
+		writer.close();
+		assertEquals(0, writer.getChangedRows());
+
+		Checkpoint checkpoint = Checkpoint.load(connection, 1);
+		assertEquals(3, checkpoint.getCompletedDirectories());
+		assertEquals(Arrays.asList("b", "c"), names(checkpoint.getCompletedSubdirectories("a", new File(src, "a"),
+				new File(dest, "a"))));
+		assertTrue(checkpoint.getCompletedSubdirectories("a/b", new File(src, "a/b"), new File(dest, "a/b")).isEmpty());
+		assertNull(checkpoint.getCompletedSubdirectories("", src, dest));
+		assertNull(checkpoint.getCompletedSubdirectories("d", new File(src, "d"), new File(dest, "d")));
+
+		// a directory changed since it was completed is synchronized again
+		new File(src, "a/b").setLastModified(1000000002000L);
+		assertNull(checkpoint.getCompletedSubdirectories("a/b", new File(src, "a/b"), new File(dest, "a/b")));
+	}
+
+	public void testInterruptedCopies() throws Exception {
+		File file = new File(directory, "file");
+		FileUtils.writeByteArrayToFile(file, new byte[100]);
+		file.setLastModified(1000000000000L);
+
+		HistoryWriter writer = new HistoryWriter(connection, 1, 100, 60000, new SyncMetrics());
+		writer.checkpointCopy("file", 100L, 1000000000000L, 0);
+		// progress is reported by journaling the copy again
+		writer.checkpointCopy("file", 100L, 1000000000000L, 60);
+		writer.checkpointCopy("dir", null, 0, 0);
+		writer.checkpointCopy("done", 10L, 1000000000000L, 0);
+		writer.completeCopy("done");
+		writer.close();
+		assertEquals(0, writer.getChangedRows());
+
+		Checkpoint checkpoint = Checkpoint.load(connection, 1);
+		assertEquals(2, checkpoint.getInterruptedCopies());
+		assertTrue(checkpoint.isInterruptedCopy("dir"));
+		assertTrue(checkpoint.isResumable("dir"));
+		assertFalse(checkpoint.isInterruptedCopy("done"));
+		assertEquals(60, checkpoint.getCopied("file", FileEntry.readIfExists(file)));
+
+		// the source file has changed since the copy was interrupted
+		file.setLastModified(1000000002000L);
+		assertEquals(0, checkpoint.getCopied("file", FileEntry.readIfExists(file)));
+	}
+
+	public void testInterruptedDeletions() throws Exception {
+		File file = new File(directory, "file");
+		FileUtils.writeByteArrayToFile(file, new byte[100]);
+		file.setLastModified(1000000000000L);
+		File dir = createDirectory("dir");
+
+		HistoryWriter writer = new HistoryWriter(connection, 1, 100, 60000, new SyncMetrics());
+		writer.checkpointDeletion("file", 100L, 1000000000000L);
+		writer.checkpointDeletion("dir", null, 0);
+		writer.checkpointDeletion("done", 10L, 1000000000000L);
+		writer.completeDeletion("done");
+		// the journaled deletions are committed with the removal of the history
+		writer.delete("file");
+		assertEquals(2, count("SELECT COUNT(*) FROM CheckpointDeletion"));
+		writer.close();
+
+		Checkpoint checkpoint = Checkpoint.load(connection, 1);
+		assertEquals(2, checkpoint.getInterruptedDeletions());
+		assertTrue(checkpoint.isInterruptedDeletion("file", FileEntry.readIfExists(file)));
+		assertTrue(checkpoint.isInterruptedDeletion("dir", FileEntry.readIfExists(dir)));
+		assertFalse(checkpoint.isInterruptedDeletion("done", FileEntry.readIfExists(file)));
+
+		// a file created again since is copied
+		file.setLastModified(1000000002000L);
+		assertFalse(checkpoint.isInterruptedDeletion("file", FileEntry.readIfExists(file)));
+	}
+
+	public void testUnchangedRunDoesNotChangeRows() throws Exception {
+		File src = createDirectory("src");
+		File dest = createDirectory("dest");
+		for (int i = 0; i < 3; i++) {
+			FileUtils.writeStringToFile(new File(src, "dir" + i + "/file"), "contents " + i);
+		}
+		String[] args = new String[] { "-f", new File(directory, "db").getPath(), "-s", src.getPath(), dest.getPath() };
+
+		SyncTool first = new SyncTool(SyncTool.createParser().parse(args));
+		first.sync(src.getPath(), dest.getPath());
+		assertTrue(new File(dest, "dir2/file").exists());
+
+		// the journal written and cleared by the run does not count
+		SyncTool second = new SyncTool(SyncTool.createParser().parse(args));
+		second.sync(src.getPath(), dest.getPath());
+		assertEquals(0, second.getChangedRows());
+	}
+}
@@ -0,0 +1,135 @@
+package de.tilman.synctool;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests for storing files as chunks and restoring them.
+ */
+public class ChunkStoreTest extends TestCase {
+
+	private File srcDir;
+	private File destDir;
+	private File storeDir;
+
+	@Override
+	protected void setUp() throws Exception {
+		srcDir = Files.createTempDirectory("synctool-src").toFile();
+		destDir = Files.createTempDirectory("synctool-dest").toFile();
+		storeDir = Files.createTempDirectory("synctool-store").toFile();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtils.deleteDirectory(srcDir);
+		FileUtils.deleteDirectory(destDir);
+		FileUtils.deleteDirectory(storeDir);
+	}
+
+	private static byte[] randomData(int length) {
+		byte[] data = new byte[length];
+		new Random(42).nextBytes(data);
+		return data;
+	}
+
+	private static File createFile(File directory, String name, byte[] data) throws Exception {
+		File file = new File(directory, name);
+		FileUtils.writeByteArrayToFile(file, data);
+		file.setLastModified(1000000000000L);
+		return file;
+	}
+
+	public void testBoundaryAfterInsertion() throws Exception {
+		byte[] data = randomData(2 * 1024 * 1024);
+		byte[] inserted = new byte[data.length + 100];
+		System.arraycopy(data, 0, inserted, 0, 1000);
+		System.arraycopy(data, 1000, inserted, 1100, data.length - 1000);
+
+		// the boundaries after the first chunk are found at the same content
+		int first = ChunkStore.boundary(data, 0, data.length);
+		int second = ChunkStore.boundary(data, first, data.length - first);
+		assertEquals(first + 100, ChunkStore.boundary(inserted, 0, inserted.length));
+		assertEquals(second, ChunkStore.boundary(inserted, first + 100, inserted.length - first - 100));
+		assertTrue(first >= ChunkStore.MIN_CHUNK_SIZE && first <= ChunkStore.MAX_CHUNK_SIZE);
+	}
+
+	public void testStoreAndRestore() throws Exception {
+		byte[] data = randomData(1024 * 1024 + 17);
+		File src = createFile(srcDir, "file", data);
+		createFile(srcDir, "copy", data);
+
+		ChunkStore store = new ChunkStore(storeDir);
+		store.register(destDir);
+		assertEquals(data.length, store.storeFile(src, destDir, null));
+		// the duplicate does not add any chunks
+		long stored = FileUtils.sizeOfDirectory(storeDir);
+		assertEquals(data.length, store.storeFile(new File(srcDir, "copy"), destDir, null));
+		assertEquals(stored, FileUtils.sizeOfDirectory(storeDir));
+		assertEquals(data.length, store.readEntry(FileEntry.readIfExists(new File(destDir, "copy")), false).length());
+
+		File manifest = new File(destDir, "file");
+		assertEquals(data.length, ChunkStore.readManifest(manifest).size);
+		assertTrue(store.sameContents(src, manifest));
+
+		src.delete();
+		store.restoreFile(manifest, srcDir, null);
+		assertTrue(Arrays.equals(data, FileUtils.readFileToByteArray(src)));
+		assertEquals(manifest.lastModified(), src.lastModified());
+	}
+
+	public void testRemoveUnusedChunks() throws Exception {
+		File src = createFile(srcDir, "file", randomData(100 * 1024));
+		ChunkStore store = new ChunkStore(storeDir);
+		store.register(destDir);
+		store.storeFile(src, destDir, null);
+		assertFalse(store.hasUnusedChunks());
+		assertEquals(0, store.removeUnusedChunks());
+
+		store.delete(new File(destDir, "file"));
+		assertTrue(store.hasUnusedChunks());
+		assertTrue(store.removeUnusedChunks() > 0);
+		assertFalse(store.hasUnusedChunks());
+	}
+
+	public void testRemoveUnusedChunksWithSpilledRuns() throws Exception {
+		ChunkStore store = new ChunkStore(storeDir);
+		store.register(destDir);
+		store.storeFile(createFile(srcDir, "kept", randomData(2 * 1024 * 1024)), destDir, null);
+		// a file copied before the chunk store was used refers to no chunks
+		createFile(destDir, "plain", randomData(100));
+		long stored = FileUtils.sizeOfDirectory(storeDir);
+
+		// a buffer of one prefix writes a run for every chunk
+		assertEquals(0, store.removeUnusedChunks(1));
+		assertEquals(stored, FileUtils.sizeOfDirectory(storeDir));
+
+		store.delete(new File(destDir, "kept"));
+		assertTrue(store.removeUnusedChunks(1) > 0);
+		assertFalse(store.hasUnusedChunks());
+	}
+
+	public void testReadPlainFile() throws Exception {
+		byte[] data = randomData(1000);
+		File src = createFile(srcDir, "file", data);
+		File plain = createFile(destDir, "file", data);
+		ChunkStore store = new ChunkStore(storeDir);
+		store.register(destDir);
+
+		// a dry run leaves the file alone
+		assertEquals(data.length, store.readEntry(FileEntry.readIfExists(plain), false).length());
+		assertFalse(ChunkStore.isManifest(plain));
+		assertTrue(store.sameContents(src, plain));
+
+		assertEquals(data.length, store.readEntry(FileEntry.readIfExists(plain), true).length());
+		assertTrue(ChunkStore.isManifest(plain));
+		assertEquals(1000000000000L, plain.lastModified());
+		assertEquals(data.length, store.readEntry(FileEntry.readIfExists(plain), true).length());
+		assertTrue(store.sameContents(src, plain));
+	}
+}
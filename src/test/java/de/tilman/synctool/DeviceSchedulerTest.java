@@ -0,0 +1,41 @@
+package de.tilman.synctool;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for limiting the jobs per device.
+ */
+public class DeviceSchedulerTest extends TestCase {
+
+	public void testJobsOnTheSameDeviceTakeTurns() throws Exception {
+		final File directory = new File(System.getProperty("java.io.tmpdir"));
+		final DeviceScheduler scheduler = new DeviceScheduler(1);
+		List<Semaphore> first = scheduler.acquire(directory, directory);
+		assertEquals(1, first.size());
+
+		final Semaphore started = new Semaphore(0);
+		Thread second = new Thread() {
+			@Override
+			public void run() {
+				try {
+					List<Semaphore> devices = scheduler.acquire(directory, directory);
+					started.release();
+					scheduler.release(devices);
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		second.start();
+		assertFalse(started.tryAcquire(200, TimeUnit.MILLISECONDS));
+
+		scheduler.release(first);
+		assertTrue(started.tryAcquire(10, TimeUnit.SECONDS));
+		second.join();
+	}
+}
@@ -0,0 +1,62 @@
+package de.tilman.synctool;
+
+import java.io.File;
+import java.util.SortedSet;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests for reporting changed directories.
+ */
+public class DirectoryWatcherTest extends TestCase {
+
+	private File srcDir;
+	private File destDir;
+
+	@Override
+	protected void setUp() throws Exception {
+		srcDir = File.createTempFile("synctool", "src");
+		srcDir.delete();
+		new File(srcDir, "a/b").mkdirs();
+		destDir = File.createTempFile("synctool", "dest");
+		destDir.delete();
+		new File(destDir, "a").mkdirs();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtils.deleteDirectory(srcDir);
+		FileUtils.deleteDirectory(destDir);
+	}
+
+	private static SortedSet<String> poll(DirectoryWatcher watcher) throws InterruptedException {
+		SortedSet<String> changed = watcher.poll(10000, 200);
+		assertNotNull(changed);
+		return changed;
+	}
+
+	public void testChangedDirectoriesAreReported() throws Exception {
+		DirectoryWatcher watcher = new DirectoryWatcher(srcDir, destDir);
+		try {
+			assertEquals(5, watcher.size());
+
+			FileUtils.writeStringToFile(new File(srcDir, "a/b/file"), "data");
+			FileUtils.writeStringToFile(new File(destDir, "a/file"), "data");
+			assertEquals("[a, a/b]", poll(watcher).toString());
+
+			// new directories are watched, too
+			new File(destDir, "c").mkdir();
+			SortedSet<String> changed = poll(watcher);
+			assertEquals(1, changed.size());
+			assertTrue(changed.contains(""));
+			FileUtils.writeStringToFile(new File(destDir, "c/file"), "data");
+			assertEquals("[c]", poll(watcher).toString());
+
+			assertTrue(watcher.poll(100, 100).isEmpty());
+		} finally {
+			watcher.close();
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package de.tilman.synctool;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests for the block-wise file comparison and the xxHash64 implementation.
+ */
+public class FileComparatorTest extends TestCase {
+
+	private File directory;
+
+	@Override
+	protected void setUp() throws Exception {
+		directory = File.createTempFile("synctool", "test");
+		directory.delete();
+		directory.mkdir();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtils.deleteDirectory(directory);
+	}
+
+	private static String xxHash64(byte[] data) {
+		MessageDigest digest = new XXHash64();
+		return new String(Hex.encodeHex(digest.digest(data)));
+	}
+
+	private File createFile(String name, byte[] data) throws IOException {
+		File file = new File(directory, name);
+		FileUtils.writeByteArrayToFile(file, data);
+		return file;
+	}
+
+	private static byte[] testData(int length) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) (i * 31 + i / 251);
+		}
+		return data;
+	}
+
+	public void testXXHash64ReferenceValues() {
+		assertEquals("ef46db3751d8e999", xxHash64(new byte[0]));
+		assertEquals("44bc2cf5ad770999", xxHash64("abc".getBytes()));
+	}
+
+	public void testXXHash64Streaming() {
+		byte[] data = testData(1000);
+		MessageDigest digest = new XXHash64();
+		digest.update(data, 0, 7);
+		digest.update(data, 7, 40);
+		digest.update(data, 47, 953);
+		assertEquals(xxHash64(data), new String(Hex.encodeHex(digest.digest())));
+	}
+
+	public void testEqualFiles() throws Exception {
+		byte[] data = testData(FileComparator.BLOCK_SIZE * 2 + 17);
+		File src = createFile("src", data);
+		File dest = createFile("dest", data);
+
+		assertEquals(DigestUtils.md5Hex(data), new FileComparator("MD5").compare(src, dest));
+		assertEquals(xxHash64(data), new FileComparator("XXHASH64").compare(src, dest));
+	}
+
+	public void testDifferentFiles() throws Exception {
+		byte[] data = testData(FileComparator.BLOCK_SIZE + 100);
+		File src = createFile("src", data);
+		data[FileComparator.BLOCK_SIZE + 50]++;
+		File dest = createFile("dest", data);
+		File shorter = createFile("shorter", testData(100));
+
+		FileComparator comparator = new FileComparator("MD5");
+		assertNull(comparator.compare(src, dest));
+		assertNull(comparator.compare(src, shorter));
+	}
+}
@@ -0,0 +1,122 @@
+package de.tilman.synctool;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests for copying files and updating them in place.
+ */
+public class FileCopierTest extends TestCase {
+
+	private File srcDir;
+	private File destDir;
+
+	@Override
+	protected void setUp() throws Exception {
+		srcDir = File.createTempFile("synctool", "src");
+		srcDir.delete();
+		srcDir.mkdir();
+		destDir = File.createTempFile("synctool", "dest");
+		destDir.delete();
+		destDir.mkdir();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtils.deleteDirectory(srcDir);
+		FileUtils.deleteDirectory(destDir);
+	}
+
+	private static File createFile(File directory, byte[] data, long lastModified) throws IOException {
+		File file = new File(directory, "file");
+		FileUtils.writeByteArrayToFile(file, data);
+		file.setLastModified(lastModified);
+		return file;
+	}
+
+	private static byte[] testData(int length) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) (i * 31 + i / 251);
+		}
+		return data;
+	}
+
+	public void testCopyFileToDirectory() throws Exception {
+		byte[] data = testData(FileCopier.BUFFER_SIZE + 17);
+		File src = createFile(srcDir, data, 1000000000000L);
+		createFile(destDir, testData(10), 2000000000000L);
+
+		new FileCopier().copyFileToDirectory(src, destDir);
+
+		File dest = new File(destDir, "file");
+		assertTrue(Arrays.equals(data, FileUtils.readFileToByteArray(dest)));
+		assertEquals(src.lastModified(), dest.lastModified());
+		assertEquals(1, destDir.list().length);
+	}
+
+	public void testResumeCopy() throws Exception {
+		byte[] data = testData(4 * 1024 + 100);
+		File src = createFile(srcDir, data, 1000000000000L);
+
+		final List<Long> positions = new ArrayList<Long>();
+		FileCopier copier = new FileCopier(1024);
+		copier.copyFileToDirectory(src, destDir, 0, new FileCopier.Progress() {
+			@Override
+			public void copied(long position) {
+				positions.add(position);
+			}
+		}, null);
+		assertEquals(Arrays.asList(1024L, 2048L, 3072L, 4096L), positions);
+
+		// an interrupted copy with garbage after the last reported position
+		File dest = new File(destDir, "file");
+		dest.delete();
+		byte[] partial = Arrays.copyOf(data, 3000);
+		Arrays.fill(partial, 2048, 3000, (byte) 0);
+		FileUtils.writeByteArrayToFile(new File(destDir, ".synctool-file.tmp"), partial);
+		assertEquals(data.length - 2048, copier.copyFileToDirectory(src, destDir, 2048, null, null));
+		assertTrue(Arrays.equals(data, FileUtils.readFileToByteArray(dest)));
+		assertEquals(src.lastModified(), dest.lastModified());
+		assertEquals(1, destDir.list().length);
+	}
+
+	public void testUpdateFileInDirectory() throws Exception {
+		byte[] data = testData(FileCopier.DELTA_BLOCK_SIZE * 4 + 100);
+		createFile(destDir, data, 1000000000000L);
+		data[FileCopier.DELTA_BLOCK_SIZE + 5]++;
+		File src = createFile(srcDir, data, 2000000000000L);
+
+		FileCopier copier = new FileCopier();
+		assertEquals(FileCopier.DELTA_BLOCK_SIZE, copier.updateFileInDirectory(src, destDir));
+
+		File dest = new File(destDir, "file");
+		assertTrue(Arrays.equals(data, FileUtils.readFileToByteArray(dest)));
+		assertEquals(src.lastModified(), dest.lastModified());
+		assertEquals(1, destDir.list().length);
+
+		// shorter source: only the truncated last block differs
+		byte[] shorter = Arrays.copyOf(data, FileCopier.DELTA_BLOCK_SIZE * 2 + 10);
+		src = createFile(srcDir, shorter, 2000000000000L);
+		assertEquals(10, copier.updateFileInDirectory(src, destDir));
+		assertTrue(Arrays.equals(shorter, FileUtils.readFileToByteArray(dest)));
+	}
+
+	public void testResetPartial() throws Exception {
+		File target = createFile(destDir, testData(10), 2000000000000L);
+		File marker = new File(destDir, ".synctool-file.partial");
+		marker.createNewFile();
+		assertTrue(FileCopier.isPartialMarker(marker.getName()));
+
+		assertEquals(target, FileCopier.resetPartial(marker));
+		assertEquals(0, target.lastModified());
+		assertFalse(marker.exists());
+	}
+}
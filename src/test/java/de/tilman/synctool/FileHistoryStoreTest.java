@@ -0,0 +1,140 @@
+package de.tilman.synctool;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the history file and its journal.
+ */
+public class FileHistoryStoreTest extends TestCase {
+
+	private File file;
+
+	@Override
+	protected void setUp() throws Exception {
+		file = File.createTempFile("synctool", ".history");
+		file.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		file.delete();
+		new File(file.getPath() + ".journal").delete();
+	}
+
+	private FileHistoryStore open() throws IOException {
+		return new FileHistoryStore(file, "/src", 1000, 5000, false);
+	}
+
+	public void testChangesAreWrittenToTheHistoryFile() throws Exception {
+		FileHistoryStore store = open();
+		for (int i = 0; i < 1000; i++) {
+			store.add("dir/file" + i, (long) i, 1000L * i);
+		}
+		store.add("dir", null, 0);
+		store.remove("dir/file7");
+		assertTrue(store.contains("dir/file8"));
+		assertFalse(store.contains("dir/file7"));
+		store.close();
+		assertFalse(new File(file.getPath() + ".journal").exists());
+
+		store = open();
+		assertEquals(1000, store.size());
+		assertTrue(store.contains("dir"));
+		assertTrue(store.contains("dir/file999"));
+		assertFalse(store.contains("dir/file7"));
+		assertFalse(store.contains("dir/file1000"));
+
+		// few changes stay in the journal
+		store.remove("dir/file8");
+		store.add("dir/ä", 1L, 1L);
+		store.close();
+		assertTrue(new File(file.getPath() + ".journal").exists());
+
+		store = open();
+		assertEquals(1000, store.size());
+		assertFalse(store.contains("dir/file8"));
+		assertTrue(store.contains("dir/ä"));
+		store.close();
+	}
+
+	public void testIncompleteJournalRecordIsIgnored() throws Exception {
+		FileHistoryStore store = open();
+		store.add("a", 1L, 1L);
+		store.remove("b");
+		// a killed run leaves the journal without compaction
+		store = new FileHistoryStore(file, "/src", 1000, 5000, true);
+		assertTrue(store.contains("a"));
+
+		FileOutputStream out = new FileOutputStream(file.getPath() + ".journal", true);
+		out.write(new byte[] { 'A', 0, 10, 'x' });
+		out.close();
+
+		store = open();
+		assertTrue(store.contains("a"));
+		store.add("c", 1L, 1L);
+		store.close();
+
+		store = open();
+		assertTrue(store.contains("a"));
+		assertTrue(store.contains("c"));
+		assertEquals(2, store.size());
+		store.close();
+	}
+
+	public void testOtherSourceIsRefused() throws Exception {
+		FileHistoryStore store = open();
+		store.add("a", 1L, 1L);
+		// the journal of a killed run
+		try {
+			new FileHistoryStore(file, "/other", 1000, 5000, true);
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("/src"));
+		}
+		store.close();
+		assertFalse(new File(file.getPath() + ".journal").exists());
+
+		try {
+			new FileHistoryStore(file, "/other", 1000, 5000, false);
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("/src"));
+		}
+		store = open();
+		assertTrue(store.contains("a"));
+		store.close();
+	}
+
+	public void testTableSize() throws Exception {
+		assertEquals(2, FileHistoryStore.tableSize(0));
+		assertEquals(2, FileHistoryStore.tableSize(1));
+		assertEquals(8, FileHistoryStore.tableSize(3));
+		assertEquals(8, FileHistoryStore.tableSize(4));
+		assertEquals(16, FileHistoryStore.tableSize(5));
+	}
+
+	public void testMissWithAlmostFullPowerOfTwo() throws Exception {
+		int entries = (1 << 16) - 1;
+		FileHistoryStore store = open();
+		for (int i = 0; i < entries; i++) {
+			store.add("dir/file" + i, 1L, 1L);
+		}
+		store.close();
+
+		store = open();
+		assertEquals(entries, store.size());
+		assertTrue(store.getTableSize() >= 2 * entries);
+		// a nearly full table would scan most of its slots for every miss
+		long start = System.nanoTime();
+		for (int i = 0; i < 10000; i++) {
+			assertFalse(store.contains("dir/new" + i));
+		}
+		assertTrue(System.nanoTime() - start < 2000000000L);
+		assertTrue(store.contains("dir/file" + (entries - 1)));
+		store.close();
+	}
+}
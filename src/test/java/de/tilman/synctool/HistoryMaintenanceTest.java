@@ -0,0 +1,104 @@
+package de.tilman.synctool;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests for deciding when the database is compacted.
+ */
+public class HistoryMaintenanceTest extends TestCase {
+
+	private File directory;
+	private String url;
+
+	@Override
+	protected void setUp() throws Exception {
+		directory = Files.createTempDirectory("synctool-maintenance").toFile();
+		url = "jdbc:h2:file:" + new File(directory, "db").getPath() + ";DB_CLOSE_ON_EXIT=FALSE";
+		Connection connection = open();
+		SyncTool.createTables(connection);
+		Statement statement = connection.createStatement();
+		statement.executeUpdate("INSERT INTO Source (id, path, lastSync) VALUES (1, '/src', CURRENT_TIMESTAMP)");
+		for (int i = 0; i < 10; i++) {
+			statement.executeUpdate("INSERT INTO File (idSource, path, size, mtime) VALUES (1, 'file" + i + "', 1, 0)");
+		}
+		statement.close();
+		// a threshold of 100% never compacts because of the fill rate of the file
+		new HistoryMaintenance(connection, 100, 0).shutdown(0, true);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtils.deleteDirectory(directory);
+	}
+
+	private Connection open() throws Exception {
+		return DriverManager.getConnection(url, "sa", "");
+	}
+
+	/**
+	 * @return the time of the last compaction and the rows changed since
+	 */
+	private long[] shutdown(long changedRows, long interval) throws Exception {
+		new HistoryMaintenance(open(), 100, interval).shutdown(changedRows, false);
+		Connection connection = open();
+		try {
+			ResultSet resultSet = connection.createStatement().executeQuery("SELECT lastCompaction, changedRows FROM Maintenance");
+			resultSet.next();
+			return new long[] { resultSet.getLong(1), resultSet.getLong(2) };
+		} finally {
+			connection.close();
+		}
+	}
+
+	public void testUnchangedRunDoesNotCompact() throws Exception {
+		long[] before = shutdown(0, 0);
+		long[] after = shutdown(0, 0);
+		assertEquals(before[0], after[0]);
+		assertEquals(0, after[1]);
+	}
+
+	public void testChangedRowsAddUp() throws Exception {
+		long[] before = shutdown(0, 0);
+		long[] after = shutdown(6, 0);
+		assertEquals(before[0], after[0]);
+		assertEquals(6, after[1]);
+
+		// 12 of the 10 rows changed since the last compaction
+		Thread.sleep(10);
+		after = shutdown(6, 0);
+		assertTrue(after[0] > before[0]);
+		assertEquals(0, after[1]);
+	}
+
+	public void testInterval() throws Exception {
+		long[] before = shutdown(0, 0);
+		Thread.sleep(10);
+		long[] after = shutdown(0, 5);
+		assertTrue(after[0] > before[0]);
+	}
+
+	public void testDryRunLeavesMaintenanceUnchanged() throws Exception {
+		long[] before = shutdown(6, 0);
+		Thread.sleep(10);
+		// the interval has passed, but a dry run neither compacts nor records anything
+		new HistoryMaintenance(open(), 100, 5).shutdownUnchanged();
+		Connection connection = open();
+		try {
+			ResultSet resultSet = connection.createStatement().executeQuery("SELECT lastCompaction, changedRows FROM Maintenance");
+			resultSet.next();
+			assertEquals(before[0], resultSet.getLong(1));
+			assertEquals(6, resultSet.getLong(2));
+		} finally {
+			connection.close();
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package de.tilman.synctool;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for writing history changes in batches.
+ */
+public class HistoryWriterTest extends TestCase {
+
+	private Connection connection;
+	private Statement statement;
+
+	@Override
+	protected void setUp() throws Exception {
+		connection = DriverManager.getConnection("jdbc:h2:mem:" + getName(), "sa", "");
+		SyncTool.createTables(connection);
+		statement = connection.createStatement();
+		statement.executeUpdate("INSERT INTO Source (id, path, lastSync) VALUES (1, '/src', CURRENT_TIMESTAMP)");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		connection.close();
+	}
+
+	private int count(String sql) throws Exception {
+		ResultSet resultSet = statement.executeQuery(sql);
+		resultSet.next();
+		return resultSet.getInt(1);
+	}
+
+	public void testQueueOrder() throws Exception {
+		HistoryWriter writer = new HistoryWriter(connection, 1, 100, 60000, new SyncMetrics());
+		writer.checkpointCopy("a", 10L, 1000, 0);
+		writer.completeCopy("a");
+		// a second copy of the same path within the same batch
+		writer.checkpointCopy("a", 20L, 2000, 0);
+		writer.close();
+
+		assertEquals(1, count("SELECT COUNT(*) FROM CheckpointCopy WHERE path='a' AND size=20"));
+	}
+}
@@ -0,0 +1,24 @@
+package de.tilman.synctool;
+
+import junit.framework.TestCase;
+
+import com.martiansoftware.jsap.JSAP;
+
+/**
+ * Tests for the options accepted in job files.
+ */
+public class JobRunnerTest extends TestCase {
+
+	private String getProcessOption(String... arguments) throws Exception {
+		JSAP jsap = SyncTool.createParser();
+		return JobRunner.getProcessOption(jsap.parse(arguments));
+	}
+
+	public void testProcessOptions() throws Exception {
+		assertNull(getProcessOption("--dbfile", "db", "--dry-run", "--silent", "src", "dest"));
+		assertEquals("daemon", getProcessOption("--dbfile", "db", "--daemon", "src", "dest"));
+		assertEquals("debug", getProcessOption("--debug", "src", "dest"));
+		assertEquals("logfile", getProcessOption("-l", "log.txt", "src", "dest"));
+		assertEquals("job file", getProcessOption("--jobs", "jobs.txt"));
+	}
+}
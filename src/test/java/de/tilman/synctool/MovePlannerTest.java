@@ -0,0 +1,134 @@
+package de.tilman.synctool;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests for matching copies with deletions and synchronized files.
+ */
+public class MovePlannerTest extends TestCase {
+
+	private File srcDir;
+	private File destDir;
+
+	@Override
+	protected void setUp() throws Exception {
+		srcDir = Files.createTempDirectory("synctool-src").toFile();
+		destDir = Files.createTempDirectory("synctool-dest").toFile();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtils.deleteDirectory(srcDir);
+		FileUtils.deleteDirectory(destDir);
+	}
+
+	private static File createFile(File directory, String name, int length) throws Exception {
+		File file = new File(directory, name);
+		FileUtils.writeByteArrayToFile(file, new byte[length]);
+		file.setLastModified(1000000000000L + length);
+		return file;
+	}
+
+	public void testRenamedDirectory() throws Exception {
+		createFile(new File(srcDir, "new"), "a", 10);
+		createFile(new File(srcDir, "new/sub"), "b", 20);
+		createFile(new File(destDir, "old"), "a", 10);
+		createFile(new File(destDir, "old/sub"), "b", 20);
+		createFile(new File(destDir, "other"), "a", 11);
+
+		MovePlanner<String> planner = new MovePlanner<String>(0, null);
+		planner.addCopy("new", FileEntry.read(new File(srcDir, "new")), destDir, true, "");
+		planner.addDeletion("other", FileEntry.read(new File(destDir, "other")), true, "");
+		planner.addDeletion("old", FileEntry.read(new File(destDir, "old")), true, "");
+		MovePlanner.Plan<String> plan = planner.plan();
+
+		assertEquals(1, plan.matches.size());
+		assertEquals("old", plan.matches.get(0).deletion.key);
+		assertEquals(new File(destDir, "new"), plan.matches.get(0).copy.getTarget());
+		assertTrue(plan.copies.isEmpty());
+		assertEquals(1, plan.deletions.size());
+		assertEquals("other", plan.deletions.get(0).key);
+	}
+
+	public void testFilesMovedIntoNewDirectory() throws Exception {
+		createFile(new File(srcDir, "new"), "a", 2000);
+		createFile(new File(srcDir, "new"), "small", 10);
+		createFile(srcDir, "b", 2000);
+		createFile(destDir, "a", 2000);
+		createFile(destDir, "small", 10);
+
+		MovePlanner<String> planner = new MovePlanner<String>(1000, null);
+		planner.addCopy("b", FileEntry.read(new File(srcDir, "b")), destDir, true, "");
+		planner.addCopy("new", FileEntry.read(new File(srcDir, "new")), destDir, true, "");
+		planner.addDeletion("a", FileEntry.read(new File(destDir, "a")), true, "");
+		planner.addDeletion("small", FileEntry.read(new File(destDir, "small")), true, "");
+		MovePlanner.Plan<String> plan = planner.plan();
+
+		// the directory is created and the file of the same name is renamed
+		assertEquals(2, plan.matches.size());
+		assertNull(plan.matches.get(0).deletion);
+		assertNull(plan.matches.get(0).original);
+		assertEquals("new/a", plan.matches.get(1).copy.key);
+		assertEquals("a", plan.matches.get(1).deletion.key);
+		assertEquals(2, plan.copies.size());
+		assertEquals(1, plan.deletions.size());
+	}
+
+	public void testDuplicateOfSynchronizedFile() throws Exception {
+		File original = createFile(srcDir, "original", 2000);
+		File link = new File(srcDir, "link");
+		Files.createLink(link.toPath(), original.toPath());
+		File duplicate = createFile(srcDir, "duplicate", 2000);
+		File counterpart = createFile(destDir, "original", 2000);
+
+		MovePlanner<String> planner = new MovePlanner<String>(1000, null);
+		planner.addSynchronized(FileEntry.read(original), FileEntry.read(counterpart));
+		planner.addCopy("link", FileEntry.read(link), destDir, true, "");
+		planner.addCopy("duplicate", FileEntry.read(duplicate), destDir, true, "");
+		MovePlanner.Plan<String> plan = planner.plan();
+
+		assertEquals(2, plan.matches.size());
+		assertTrue(plan.matches.get(0).link);
+		assertEquals(counterpart, plan.matches.get(0).original);
+		assertFalse(plan.matches.get(1).link);
+		assertEquals(counterpart, plan.matches.get(1).original);
+		assertTrue(plan.copies.isEmpty());
+	}
+
+	public void testSameAttributesDifferentContents() throws Exception {
+		File original = createFile(srcDir, "original", 2000);
+		File counterpart = createFile(destDir, "original", 2000);
+		File renamed = createFile(srcDir, "renamed", 2000);
+		File deleted = createFile(destDir, "deleted", 2000);
+		File duplicate = createFile(srcDir, "duplicate", 2000);
+		// the same size and modification time, but other contents
+		byte[] data = new byte[2000];
+		data[1000] = 1;
+		FileUtils.writeByteArrayToFile(deleted, data);
+		deleted.setLastModified(renamed.lastModified());
+		data[1000] = 2;
+		FileUtils.writeByteArrayToFile(duplicate, data);
+		duplicate.setLastModified(original.lastModified());
+
+		MovePlanner<String> planner = new MovePlanner<String>(1000, null);
+		planner.addSynchronized(FileEntry.read(original), FileEntry.read(counterpart));
+		planner.addCopy("renamed", FileEntry.read(renamed), destDir, true, "");
+		planner.addCopy("duplicate", FileEntry.read(duplicate), destDir, true, "");
+		planner.addDeletion("deleted", FileEntry.read(deleted), true, "");
+		MovePlanner.Plan<String> plan = planner.plan();
+
+		// only the file with the contents of the synchronized one is cloned,
+		// the other one is neither renamed nor cloned
+		assertEquals(1, plan.matches.size());
+		assertEquals("renamed", plan.matches.get(0).copy.key);
+		assertEquals(counterpart, plan.matches.get(0).original);
+		assertEquals(1, plan.copies.size());
+		assertEquals("duplicate", plan.copies.get(0).key);
+		assertEquals(1, plan.deletions.size());
+	}
+}
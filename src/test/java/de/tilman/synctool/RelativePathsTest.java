@@ -0,0 +1,81 @@
+package de.tilman.synctool;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for converting the history of earlier versions to relative paths.
+ */
+public class RelativePathsTest extends TestCase {
+
+	private final static String SOURCE = File.separator + "data" + File.separator + "src";
+
+	private Connection connection;
+	private Statement statement;
+
+	@Override
+	protected void setUp() throws Exception {
+		connection = DriverManager.getConnection("jdbc:h2:mem:" + getName(), "sa", "");
+		SyncTool.createTables(connection);
+		statement = connection.createStatement();
+		// earlier versions stored the canonical paths of the files
+		statement.executeUpdate("INSERT INTO Source (id, path, lastSync, relativePaths) VALUES (1, '" + SOURCE
+				+ "', CURRENT_TIMESTAMP, FALSE)");
+		statement.executeUpdate("INSERT INTO Source (id, path, lastSync, relativePaths) VALUES (2, '" + SOURCE
+				+ "2', CURRENT_TIMESTAMP, FALSE)");
+		insertFile(1, SOURCE + File.separator + "a");
+		insertFile(1, SOURCE + File.separator + "dir" + File.separator + "b");
+		insertFile(1, SOURCE + "2" + File.separator + "c");
+		insertFile(1, File.separator + "elsewhere");
+		insertFile(2, SOURCE + "2" + File.separator + "c");
+		statement.executeUpdate("INSERT INTO Directory (path, idSource, srcMtime, destMtime, recorded, subdirectories)"
+				+ " VALUES ('" + SOURCE + "', 1, 0, 0, 0, '')");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		connection.close();
+	}
+
+	private void insertFile(int sourceId, String path) throws Exception {
+		statement.executeUpdate("INSERT INTO File (idSource, path, size, mtime) VALUES (" + sourceId + ", '" + path
+				+ "', 1, 0)");
+	}
+
+	private List<String> paths(int sourceId) throws Exception {
+		List<String> paths = new ArrayList<String>();
+		ResultSet resultSet = statement.executeQuery("SELECT path FROM File WHERE idSource=" + sourceId + " ORDER BY path");
+		while (resultSet.next()) {
+			paths.add(resultSet.getString(1));
+		}
+		return paths;
+	}
+
+	public void testConvertToRelativePaths() throws Exception {
+		SyncTool.convertToRelativePaths(connection, 1, SOURCE);
+
+		// entries of a sibling directory with the same prefix are outside of the source
+		assertEquals(Arrays.asList("a", "dir" + SyncTool.KEY_SEPARATOR + "b"), paths(1));
+		ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM Directory WHERE idSource=1");
+		resultSet.next();
+		assertEquals(0, resultSet.getInt(1));
+		resultSet = statement.executeQuery("SELECT relativePaths FROM Source WHERE id=1");
+		resultSet.next();
+		assertTrue(resultSet.getBoolean(1));
+
+		// other sources are converted on their own
+		assertEquals(Arrays.asList(SOURCE + "2" + File.separator + "c"), paths(2));
+		resultSet = statement.executeQuery("SELECT relativePaths FROM Source WHERE id=2");
+		resultSet.next();
+		assertFalse(resultSet.getBoolean(1));
+		assertTrue(connection.getAutoCommit());
+	}
+}
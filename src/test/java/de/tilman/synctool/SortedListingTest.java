@@ -0,0 +1,105 @@
+package de.tilman.synctool;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests for reading directory listings in sorted order with spilled runs.
+ */
+public class SortedListingTest extends TestCase {
+
+	private File directory;
+
+	@Override
+	protected void setUp() throws Exception {
+		directory = Files.createTempDirectory("synctool-listing").toFile();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtils.deleteDirectory(directory);
+	}
+
+	private static List<String> readAll(SortedListing listing) throws Exception {
+		List<String> names = new ArrayList<String>();
+		String name;
+		while ((name = listing.next()) != null) {
+			names.add(name);
+		}
+		return names;
+	}
+
+	private int spilledRuns() {
+		String[] files = new File(System.getProperty("java.io.tmpdir")).list();
+		int count = 0;
+		for (String name : files) {
+			if (name.startsWith("synctool-listing") && name.endsWith(".tmp"))
+				count++;
+		}
+		return count;
+	}
+
+	public void testSpilledRuns() throws Exception {
+		List<String> expected = new ArrayList<String>();
+		Random random = new Random(1);
+		for (int i = 0; i < 23; i++) {
+			// upper and lower case, digits and punctuation
+			String name = Integer.toString(random.nextInt(100000), 36) + (i % 3 == 0 ? "A" : i % 3 == 1 ? "_" : "-") + i;
+			new File(directory, name).createNewFile();
+			expected.add(name);
+		}
+		new File(directory, "Sub").mkdir();
+		expected.add("Sub");
+		Collections.sort(expected);
+
+		int runsBefore = spilledRuns();
+		SortedListing listing = new SortedListing(directory, 5);
+		try {
+			// four full runs of five names are spilled, the last four stay in memory
+			assertEquals(runsBefore + 4, spilledRuns());
+			assertEquals(expected, readAll(listing));
+			assertNull(listing.next());
+		} finally {
+			listing.close();
+		}
+		assertEquals(runsBefore, spilledRuns());
+	}
+
+	public void testTemporaryFiles() throws Exception {
+		new File(directory, "b").createNewFile();
+		new File(directory, "a").createNewFile();
+		File temp = FileCopier.temporaryFile(new File(directory, "c"));
+		temp.createNewFile();
+		File marker = new File(directory, ".synctool-b.partial");
+		marker.createNewFile();
+
+		SortedListing listing = new SortedListing(directory, 1);
+		try {
+			assertEquals(Arrays.asList("a", "b"), readAll(listing));
+			List<File> temporaryFiles = new ArrayList<File>(listing.getTemporaryFiles());
+			Collections.sort(temporaryFiles);
+			assertEquals(Arrays.asList(marker, temp), temporaryFiles);
+		} finally {
+			listing.close();
+		}
+	}
+
+	public void testEmptyDirectory() throws Exception {
+		SortedListing listing = new SortedListing(directory, 5);
+		try {
+			assertNull(listing.next());
+			assertTrue(listing.getTemporaryFiles().isEmpty());
+		} finally {
+			listing.close();
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package de.tilman.synctool;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the metrics histograms and report formats.
+ */
+public class SyncMetricsTest extends TestCase {
+
+	public void testHistogramPercentiles() {
+		SyncMetrics.Histogram histogram = new SyncMetrics.Histogram();
+		assertEquals(0, histogram.percentile(50));
+		for (int i = 0; i < 99; i++) {
+			histogram.record(1000);
+		}
+		histogram.record(1000000);
+
+		assertEquals(100, histogram.count());
+		assertEquals(99 * 1000 + 1000000, histogram.sum());
+		assertEquals(1024, histogram.percentile(50));
+		assertEquals(1024, histogram.percentile(99));
+		assertEquals(1024 * 1024, histogram.percentile(100));
+	}
+
+	public void testFormatting() {
+		assertEquals("512 B", SyncMetrics.formatBytes(512));
+		assertEquals("1.5 KiB", SyncMetrics.formatBytes(1536));
+		assertEquals("2.0 GiB", SyncMetrics.formatBytes(2L * 1024 * 1024 * 1024));
+		assertEquals("1:01:01", SyncMetrics.formatDuration(3661000));
+	}
+
+	public void testReports() {
+		SyncMetrics metrics = new SyncMetrics();
+		metrics.start(200);
+		metrics.filesCopied.add(3);
+		metrics.entriesProcessed.add(50);
+		metrics.statLatency.record(500);
+
+		assertTrue(metrics.toJson().contains("\"filesCopied\": 3"));
+		String prometheus = metrics.toPrometheus();
+		assertTrue(prometheus.contains("synctool_files_copied_total 3\n"));
+		assertTrue(prometheus.contains("synctool_stat_latency_seconds_count 1\n"));
+		assertTrue(metrics.getProgress().startsWith("Progress: 50 of ~200 entries (25%)"));
+	}
+}
@@ -0,0 +1,37 @@
+package de.tilman.synctool;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the rate limits of copies.
+ */
+public class ThrottleTest extends TestCase {
+
+	public void testByteRate() throws Exception {
+		SyncMetrics metrics = new SyncMetrics();
+		Throttle throttle = new Throttle("to the destination", 100 * 1024, 0, false, metrics);
+
+		// a full bucket allows a burst of one second
+		long start = System.nanoTime();
+		throttle.acquire(100 * 1024);
+		assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100));
+
+		throttle.acquire(50 * 1024);
+		throttle.acquireOperation();
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue(elapsed + " ms", elapsed >= 400 && elapsed < 2000);
+		assertTrue(metrics.getThrottleMillis() >= 400);
+	}
+
+	public void testOperationRate() throws Exception {
+		Throttle throttle = new Throttle("to the source", 0, 10, false, new SyncMetrics());
+		long start = System.nanoTime();
+		for (int i = 0; i < 15; i++) {
+			throttle.acquireOperation();
+		}
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue(elapsed + " ms", elapsed >= 400 && elapsed < 2000);
+	}
+}
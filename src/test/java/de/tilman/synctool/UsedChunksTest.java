@@ -0,0 +1,50 @@
+package de.tilman.synctool;
+
+import java.io.File;
+import java.io.FilenameFilter;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for collecting the used chunks of a chunk store in sorted runs.
+ */
+public class UsedChunksTest extends TestCase {
+
+	private final static long[] PREFIXES = new long[] { -1L, 5L, Long.MIN_VALUE, 7L, 5L, 0L, Long.MAX_VALUE, 3L };
+
+	private static String[] listTemporaryFiles() {
+		return new File(System.getProperty("java.io.tmpdir")).list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith("synctool-chunks");
+			}
+		});
+	}
+
+	public void testContains() throws Exception {
+		int before = listTemporaryFiles().length;
+		UsedChunks used = new UsedChunks(3);
+		try {
+			for (long prefix : PREFIXES) {
+				used.add(prefix);
+			}
+			assertEquals(2, used.getSpilledRuns());
+			assertEquals(before + 2, listTemporaryFiles().length);
+
+			// the prefixes are looked up in unsigned order
+			assertTrue(used.contains(0L));
+			assertFalse(used.contains(1L));
+			assertTrue(used.contains(3L));
+			assertTrue(used.contains(5L));
+			assertFalse(used.contains(6L));
+			assertTrue(used.contains(7L));
+			assertTrue(used.contains(Long.MAX_VALUE));
+			assertTrue(used.contains(Long.MIN_VALUE));
+			assertFalse(used.contains(-2L));
+			assertTrue(used.contains(-1L));
+		} finally {
+			used.close();
+		}
+		assertEquals(before, listTemporaryFiles().length);
+	}
+}